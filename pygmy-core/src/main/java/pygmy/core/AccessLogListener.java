@@ -0,0 +1,306 @@
+package pygmy.core;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>
+ * A {@link ResponseListener} that writes an access log without slowing down the threads answering requests.  When a
+ * response has been sent the worker thread copies the remote address, method, url, status code, body bytes, duration
+ * and request id into a slot of a preallocated ring buffer.  Claiming a slot is a single compare and set, so workers
+ * never lock or wait for each other.  A background thread takes the entries out of the ring in batches, formats them
+ * into a large buffer, and writes the buffer to the log file through a FileChannel.  The file is rolled over to
+ * <i>file</i>.1, <i>file</i>.2, ... once it grows past <i>max-size</i>.
+ * </p>
+ * <p>
+ * If the writer falls behind and the ring fills up, entries are dropped and counted when <i>when-full</i> is drop.
+ * When it is block, the worker thread waits for a free slot instead, which slows the server down to the speed of the
+ * disk.  Each line looks like:
+ * </p>
+ * <div class="code"><pre>
+ * 127.0.0.1 [19/Oct/2026:10:15:32 +0000] "GET /index.html" 200 1043 312us #17
+ * </pre></div>
+ * <p>
+ * The body size is - when it isn't known.  To enable it set <i>response-listener</i> in the server's configuration to
+ * the name of the listener and <i>&lt;name&gt;.class</i> to pygmy.core.AccessLogListener.
+ * </p>
+ * <table class="inner">
+ * <tr class="header"><td>Parameter Name</td><td>Explanation</td><td>Default Value</td><td>Required</td></tr>
+ * <tr class="row"><td>file</td><td>The file name of the access log.</td><td>access.log</td><td>No</td></tr>
+ * <tr class="altrow"><td>capacity</td><td>The number of entries the ring buffer holds.  Rounded up to a power of two.</td><td>8192</td><td>No</td></tr>
+ * <tr class="row"><td>buffer-size</td><td>The size in bytes of the write buffer.</td><td>262144</td><td>No</td></tr>
+ * <tr class="altrow"><td>max-size</td><td>The size in bytes at which the log is rolled over.</td><td>10485760</td><td>No</td></tr>
+ * <tr class="row"><td>max-files</td><td>The number of rolled over logs to keep.</td><td>5</td><td>No</td></tr>
+ * <tr class="altrow"><td>when-full</td><td>drop or block when the ring buffer is full.</td><td>drop</td><td>No</td></tr>
+ * </table>
+ */
+@Slf4j
+public class AccessLogListener implements ResponseListener, Closeable, Runnable {
+
+    public static final ConfigOption FILE_OPTION = new ConfigOption("file", "access.log", "The file name of the access log.");
+    public static final ConfigOption CAPACITY_OPTION = new ConfigOption("capacity", "8192", "The number of entries the ring buffer holds.");
+    public static final ConfigOption BUFFER_SIZE_OPTION = new ConfigOption("buffer-size", "262144", "The size in bytes of the write buffer.");
+    public static final ConfigOption MAX_SIZE_OPTION = new ConfigOption("max-size", "10485760", "The size in bytes at which the log is rolled over.");
+    public static final ConfigOption MAX_FILES_OPTION = new ConfigOption("max-files", "5", "The number of rolled over logs to keep.");
+    public static final ConfigOption WHEN_FULL_OPTION = new ConfigOption("when-full", "drop", "drop or block when the ring buffer is full.");
+
+    private static final long IDLE_PARK_NANOS = 10 * 1000 * 1000L;
+    private static final long FULL_PARK_NANOS = 100 * 1000L;
+
+    private final File file;
+    private final long maxSize;
+    private final int maxFiles;
+    private final boolean blockWhenFull;
+
+    // the ring.  A slot holds entry n when sequences[slot] is n + 1.
+    private final int mask;
+    private final AtomicLongArray sequences;
+    private final String[] remoteAddrs;
+    private final String[] methods;
+    private final String[] urls;
+    private final int[] statuses;
+    private final long[] lengths;
+    private final long[] durations;
+    private final long[] timestamps;
+    private final Integer[] requestIds;
+    private final AtomicLong head = new AtomicLong();
+    private volatile long tail;
+
+    private final LongAdder dropped = new LongAdder();
+    private final ByteBuffer buffer;
+    private final CharsetEncoder encoder = ByteArrayWriter.UTF8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final StringBuffer line = new StringBuffer(256);
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("dd/MMM/yyyy:HH:mm:ss Z", Locale.US);
+    private final Date date = new Date();
+    private FileChannel channel;
+    private long fileSize;
+    private long reportedDrops;
+
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    public AccessLogListener(Server server, String name) {
+        file = new File(FILE_OPTION.getProperty(server, name)).getAbsoluteFile();
+        blockWhenFull = "block".equalsIgnoreCase(WHEN_FULL_OPTION.getProperty(server, name));
+        int capacity = 8192;
+        int bufferSize = 262144;
+        long size = 10485760;
+        int files = 5;
+        try {
+            capacity = CAPACITY_OPTION.getInteger(server, name).intValue();
+            bufferSize = BUFFER_SIZE_OPTION.getInteger(server, name).intValue();
+            size = Long.parseLong(MAX_SIZE_OPTION.getProperty(server, name));
+            files = MAX_FILES_OPTION.getInteger(server, name).intValue();
+        } catch (NumberFormatException e) {
+            log.warn("A setting of " + name + " was not a number.  Using the defaults.");
+        }
+        maxSize = size;
+        maxFiles = files;
+        int slots = 16;
+        while (slots < capacity) {
+            slots <<= 1;
+        }
+        mask = slots - 1;
+        sequences = new AtomicLongArray(slots);
+        remoteAddrs = new String[slots];
+        methods = new String[slots];
+        urls = new String[slots];
+        statuses = new int[slots];
+        lengths = new long[slots];
+        durations = new long[slots];
+        timestamps = new long[slots];
+        requestIds = new Integer[slots];
+        buffer = ByteBuffer.allocateDirect(Math.max(bufferSize, 4096));
+
+        writer = new Thread(this, name + " AccessLogListener");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public void startTransfer(HttpRequest request) {
+    }
+
+    public void notify(HttpRequest request, long bytesSent, long totalLength) {
+    }
+
+    public void endTransfer(HttpRequest request, Exception e) {
+        if (request.isInternal()) {
+            return;
+        }
+        long sequence = claim();
+        if (sequence < 0) {
+            dropped.increment();
+            return;
+        }
+        int slot = (int) sequence & mask;
+        remoteAddrs[slot] = request.getRemoteAddr();
+        methods[slot] = request.getMethod();
+        urls[slot] = request.getUrl();
+        statuses[slot] = (e == null) ? request.getResponseStatus() : 0;
+        lengths[slot] = request.getResponseLength();
+        durations[slot] = System.nanoTime() - request.getStartNanos();
+        timestamps[slot] = request.getTimestamp();
+        requestIds[slot] = request.getRequestId();
+        sequences.lazySet(slot, sequence + 1);
+    }
+
+    /**
+     * The number of entries that were dropped because the ring buffer was full.
+     *
+     * @return the number of dropped entries.
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    private long claim() {
+        while (true) {
+            long current = head.get();
+            if (current - tail > mask) {
+                if (!blockWhenFull || !running) {
+                    return -1;
+                }
+                LockSupport.parkNanos(FULL_PARK_NANOS);
+            } else if (head.compareAndSet(current, current + 1)) {
+                return current;
+            }
+        }
+    }
+
+    public void run() {
+        try {
+            open();
+            while (running || tail != head.get()) {
+                if (drain() == 0) {
+                    flush();
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+            flush();
+        } catch (IOException e) {
+            log.error("Could not write the access log " + file, e);
+            running = false;
+        } finally {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private int drain() throws IOException {
+        int count = 0;
+        long next = tail;
+        int slot = (int) next & mask;
+        while (sequences.get(slot) == next + 1) {
+            format(slot);
+            remoteAddrs[slot] = null;
+            methods[slot] = null;
+            urls[slot] = null;
+            requestIds[slot] = null;
+            next++;
+            tail = next;
+            slot = (int) next & mask;
+            count++;
+        }
+        long drops = dropped.sum();
+        if (drops != reportedDrops) {
+            log.warn("Access log dropped " + (drops - reportedDrops) + " entries because the ring buffer was full.");
+            reportedDrops = drops;
+        }
+        return count;
+    }
+
+    private void format(int slot) throws IOException {
+        date.setTime(timestamps[slot]);
+        line.setLength(0);
+        line.append(remoteAddrs[slot]).append(" [").append(dateFormat.format(date)).append("] \"")
+                .append(methods[slot]).append(' ').append(urls[slot]).append("\" ")
+                .append(statuses[slot]).append(' ');
+        if (lengths[slot] >= 0) {
+            line.append(lengths[slot]);
+        } else {
+            line.append('-');
+        }
+        line.append(' ').append(durations[slot] / 1000).append("us #").append(requestIds[slot]).append('\n');
+
+        CharBuffer chars = CharBuffer.wrap(line);
+        while (true) {
+            CoderResult result = encoder.encode(chars, buffer, true);
+            if (!result.isOverflow()) {
+                break;
+            }
+            flush();
+        }
+        encoder.reset();
+    }
+
+    private void open() throws IOException {
+        channel = new FileOutputStream(file, true).getChannel();
+        fileSize = channel.size();
+    }
+
+    private void flush() throws IOException {
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            fileSize += channel.write(buffer);
+        }
+        buffer.clear();
+        if (fileSize >= maxSize) {
+            rollOver();
+        }
+    }
+
+    private void rollOver() throws IOException {
+        channel.close();
+        new File(file.getPath() + "." + maxFiles).delete();
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            File older = new File(file.getPath() + "." + i);
+            if (older.exists()) {
+                older.renameTo(new File(file.getPath() + "." + (i + 1)));
+            }
+        }
+        if (maxFiles > 0) {
+            file.renameTo(new File(file.getPath() + ".1"));
+        } else {
+            file.delete();
+        }
+        open();
+    }
+
+    /**
+     * Stops the writer thread once everything in the ring buffer has been written.
+     */
+    public void close() {
+        running = false;
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
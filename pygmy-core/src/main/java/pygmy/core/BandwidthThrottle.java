@@ -0,0 +1,228 @@
+package pygmy.core;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.StringTokenizer;
+
+/**
+ * <p>
+ * Limits the rate response bodies are sent at, so bulk downloads can't use up the whole uplink.  Three limits can
+ * be set, in bytes per second, and a response is held to every one that applies to it:
+ * </p>
+ * <ul>
+ * <li><i>throttle.connection</i> applies to each connection on its own.</li>
+ * <li><i>throttle.client</i> is shared by all the connections from one client IP address.</li>
+ * <li><i>throttle.urls</i> gives a limit shared by everyone downloading urls that start with a prefix, i.e.
+ * <code>/downloads=1048576, /iso=524288</code>.  The longest matching prefix is used.</li>
+ * </ul>
+ * <p>
+ * Each limit is a {@link TokenBucket} holding <i>throttle.burst</i> bytes, which is also the largest piece written to
+ * the client at once.  At most <i>throttle.max-clients</i> client buckets are kept, and the least recently used ones
+ * are dropped to make room for new clients.  The Server creates the throttle when any of the limits is set.
+ * </p>
+ * <table class="inner">
+ * <tr class="header"><td>Parameter Name</td><td>Explanation</td><td>Default Value</td><td>Required</td></tr>
+ * <tr class="row"><td>throttle.connection</td><td>Bytes per second for each connection.</td><td>None</td><td>No</td></tr>
+ * <tr class="altrow"><td>throttle.client</td><td>Bytes per second for each client IP address.</td><td>None</td><td>No</td></tr>
+ * <tr class="row"><td>throttle.urls</td><td>Comma separated list of prefix=bytes per second.</td><td>None</td><td>No</td></tr>
+ * <tr class="altrow"><td>throttle.burst</td><td>Size of the buckets in bytes.</td><td>65536</td><td>No</td></tr>
+ * <tr class="row"><td>throttle.max-clients</td><td>Number of client buckets kept.</td><td>10000</td><td>No</td></tr>
+ * </table>
+ */
+@Slf4j
+public class BandwidthThrottle {
+
+    /**
+     * The most buckets a single response can be held to.
+     */
+    public static final int MAX_BUCKETS = 3;
+
+    /**
+     * The client buckets are split into this many maps, each with its own lock.
+     */
+    private static final int CLIENT_STRIPES = 16;
+
+    private final long connectionRate;
+    private final long clientRate;
+    private final int burst;
+    private final String[] prefixes;
+    private final TokenBucket[] prefixBuckets;
+    private final ClientStripe[] clientStripes = new ClientStripe[CLIENT_STRIPES];
+
+    public BandwidthThrottle(long connectionRate, long clientRate, String urlRates, int burst, int maxClients) {
+        this.connectionRate = connectionRate;
+        this.clientRate = clientRate;
+        this.burst = burst;
+        for (int i = 0; i < clientStripes.length; i++) {
+            clientStripes[i] = new ClientStripe(Math.max(1, maxClients / clientStripes.length));
+        }
+        List prefixList = new ArrayList();
+        List bucketList = new ArrayList();
+        if (urlRates != null) {
+            StringTokenizer tokenizer = new StringTokenizer(urlRates, " ,");
+            while (tokenizer.hasMoreTokens()) {
+                String rule = tokenizer.nextToken();
+                int equals = rule.lastIndexOf('=');
+                try {
+                    long rate = Long.parseLong(rule.substring(equals + 1));
+                    prefixList.add(rule.substring(0, equals));
+                    bucketList.add(new TokenBucket(rate, burst));
+                } catch (RuntimeException e) {
+                    log.warn("Ignoring throttle.urls entry '" + rule + "'.  It must be prefix=bytes per second.");
+                }
+            }
+        }
+        prefixes = (String[]) prefixList.toArray(new String[prefixList.size()]);
+        prefixBuckets = (TokenBucket[]) bucketList.toArray(new TokenBucket[bucketList.size()]);
+    }
+
+    /**
+     * Creates the throttle from the server's configuration.
+     *
+     * @param config the server's configuration.
+     * @return the throttle, or null if no limit is configured.
+     */
+    public static BandwidthThrottle create(Properties config) {
+        String connection = config.getProperty("throttle.connection");
+        String client = config.getProperty("throttle.client");
+        String urls = config.getProperty("throttle.urls");
+        if (connection == null && client == null && urls == null) {
+            return null;
+        }
+        try {
+            return new BandwidthThrottle(
+                    connection != null ? Long.parseLong(connection) : 0,
+                    client != null ? Long.parseLong(client) : 0,
+                    urls,
+                    Integer.parseInt(config.getProperty("throttle.burst", "65536")),
+                    Integer.parseInt(config.getProperty("throttle.max-clients", "10000")));
+        } catch (NumberFormatException e) {
+            log.warn("A throttle setting was not a number.  Throttling is disabled.");
+            return null;
+        }
+    }
+
+    /**
+     * The largest number of bytes that should be written between calls to {@link #reserve}.
+     *
+     * @return the burst size in bytes.
+     */
+    public int getBurst() {
+        return burst;
+    }
+
+    /**
+     * Creates the bucket for a new connection.
+     *
+     * @return the bucket, or null if connections aren't limited.
+     */
+    public TokenBucket newConnectionBucket() {
+        return (connectionRate > 0) ? new TokenBucket(connectionRate, burst) : null;
+    }
+
+    /**
+     * Finds the buckets a response has to be held to.
+     *
+     * @param request          the request being answered.
+     * @param connectionBucket the bucket of the request's connection, may be null.
+     * @param buckets          filled in with the buckets, must hold {@link #MAX_BUCKETS}.
+     * @return the number of buckets filled in.
+     */
+    public int select(HttpRequest request, TokenBucket connectionBucket, TokenBucket[] buckets) {
+        if (request.isInternal()) {
+            return 0;
+        }
+        int count = 0;
+        if (connectionBucket != null) {
+            buckets[count++] = connectionBucket;
+        }
+        if (clientRate > 0) {
+            buckets[count++] = clientBucket(request.getRemoteAddr());
+        }
+        TokenBucket prefixBucket = prefixBucket(request.getUrl());
+        if (prefixBucket != null) {
+            buckets[count++] = prefixBucket;
+        }
+        return count;
+    }
+
+    /**
+     * Takes the bytes out of each of the buckets.
+     *
+     * @param buckets the buckets.
+     * @param count   the number of buckets.
+     * @param bytes   the number of bytes about to be sent.
+     * @return the nanoseconds to wait before sending so that every bucket can pay for the bytes.
+     */
+    public static long reserve(TokenBucket[] buckets, int count, long bytes) {
+        long wait = 0;
+        for (int i = 0; i < count; i++) {
+            wait = Math.max(wait, buckets[i].reserve(bytes));
+        }
+        return wait;
+    }
+
+    /**
+     * Waits for the time returned by {@link #reserve}.
+     *
+     * @param wait the nanoseconds to wait.
+     * @throws InterruptedIOException if the thread is interrupted while waiting.
+     */
+    public static void pause(long wait) throws InterruptedIOException {
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while throttling.");
+            }
+        }
+    }
+
+    private TokenBucket clientBucket(String address) {
+        int h = address.hashCode();
+        ClientStripe stripe = clientStripes[(h ^ (h >>> 16)) & (clientStripes.length - 1)];
+        synchronized (stripe) {
+            TokenBucket bucket = (TokenBucket) stripe.buckets.get(address);
+            if (bucket == null) {
+                bucket = new TokenBucket(clientRate, burst);
+                stripe.buckets.put(address, bucket);
+            }
+            return bucket;
+        }
+    }
+
+    private TokenBucket prefixBucket(String url) {
+        TokenBucket bucket = null;
+        int longest = -1;
+        for (int i = 0; url != null && i < prefixes.length; i++) {
+            if (prefixes[i].length() > longest && url.startsWith(prefixes[i])) {
+                bucket = prefixBuckets[i];
+                longest = prefixes[i].length();
+            }
+        }
+        return bucket;
+    }
+
+    /**
+     * A map of client address to bucket that drops its least recently used client once it is full.
+     */
+    private static class ClientStripe {
+        private final int maxClients;
+        private final LinkedHashMap buckets = new LinkedHashMap(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry eldest) {
+                return size() > maxClients;
+            }
+        };
+
+        ClientStripe(int maxClients) {
+            this.maxClients = maxClients;
+        }
+    }
+}
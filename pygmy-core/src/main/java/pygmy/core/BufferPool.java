@@ -0,0 +1,223 @@
+package pygmy.core;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * A server wide pool of I/O buffers.  Buffers are grouped into power of two size classes starting at
+ * {@link #MIN_BUFFER_SIZE} and ending at {@link #MAX_BUFFER_SIZE}.  A request for a buffer is rounded up to the
+ * next size class, so the buffer returned may be larger than was asked for.  Requests larger than the biggest size
+ * class are allocated and never pooled.  Each size class keeps at most <i>bufferpool.size</i> idle buffers.
+ * </p>
+ * <p>
+ * Byte arrays are used by the stream based code.  ByteBuffers are used by the channel based code and are allocated
+ * direct when <i>bufferpool.direct</i> is true.  When <i>bufferpool.debug</i> is true the pool remembers where every
+ * outstanding buffer was acquired.  Buffers never returned are reported by {@link #reportLeaks()}, which the server
+ * calls during shutdown, and releasing a buffer twice is logged.
+ * </p>
+ * <table class="inner">
+ * <tr class="header"><td>Parameter Name</td><td>Explanation</td><td>Default Value</td><td>Required</td></tr>
+ * <tr class="row"><td>bufferpool.size</td><td>Maximum number of idle buffers kept per size class.</td><td>64</td><td>No</td></tr>
+ * <tr class="altrow"><td>bufferpool.direct</td><td>Allocate pooled ByteBuffers outside of the heap.</td><td>false</td><td>No</td></tr>
+ * <tr class="row"><td>bufferpool.debug</td><td>Track outstanding buffers so leaks can be reported.</td><td>false</td><td>No</td></tr>
+ * </table>
+ */
+@Slf4j
+public class BufferPool {
+
+    public static final int MIN_BUFFER_SIZE = 4096;
+    public static final int MAX_BUFFER_SIZE = 64 * 1024;
+
+    private static final int SIZE_CLASSES = 5;
+
+    private final int maxPooledPerClass;
+    private final boolean direct;
+    private final boolean debug;
+
+    private final ConcurrentLinkedQueue[] arrays = new ConcurrentLinkedQueue[SIZE_CLASSES];
+    private final ConcurrentLinkedQueue[] buffers = new ConcurrentLinkedQueue[SIZE_CLASSES];
+    private final AtomicInteger[] arrayCounts = new AtomicInteger[SIZE_CLASSES];
+    private final AtomicInteger[] bufferCounts = new AtomicInteger[SIZE_CLASSES];
+
+    private final Map outstanding = Collections.synchronizedMap(new IdentityHashMap());
+
+    public BufferPool() {
+        this(64, false, false);
+    }
+
+    public BufferPool(int maxPooledPerClass, boolean direct, boolean debug) {
+        this.maxPooledPerClass = maxPooledPerClass;
+        this.direct = direct;
+        this.debug = debug;
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            arrays[i] = new ConcurrentLinkedQueue();
+            buffers[i] = new ConcurrentLinkedQueue();
+            arrayCounts[i] = new AtomicInteger();
+            bufferCounts[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * Returns a byte array at least size bytes long.  It should be handed back with {@link #release(byte[])} once
+     * the caller is done with it.
+     *
+     * @param size the minimum size of the array.
+     * @return a byte array of size or more bytes.
+     */
+    public byte[] acquire(int size) {
+        int sizeClass = sizeClass(size);
+        byte[] array = null;
+        if (sizeClass >= 0) {
+            array = (byte[]) arrays[sizeClass].poll();
+            if (array != null) {
+                arrayCounts[sizeClass].decrementAndGet();
+            } else {
+                array = new byte[classSize(sizeClass)];
+            }
+        } else {
+            array = new byte[size];
+        }
+        track(array);
+        return array;
+    }
+
+    /**
+     * Returns an array acquired from this pool.
+     *
+     * @param array the array to give back, may be null.
+     */
+    public void release(byte[] array) {
+        if (array == null || !untrack(array)) {
+            return;
+        }
+        int sizeClass = exactSizeClass(array.length);
+        if (sizeClass >= 0 && arrayCounts[sizeClass].incrementAndGet() <= maxPooledPerClass) {
+            arrays[sizeClass].offer(array);
+        } else if (sizeClass >= 0) {
+            arrayCounts[sizeClass].decrementAndGet();
+        }
+    }
+
+    /**
+     * Returns a cleared ByteBuffer with a capacity of at least size bytes.  It is direct if the pool was configured
+     * to be direct.  It should be handed back with {@link #release(ByteBuffer)}.
+     *
+     * @param size the minimum capacity of the buffer.
+     * @return a cleared ByteBuffer.
+     */
+    public ByteBuffer acquireBuffer(int size) {
+        int sizeClass = sizeClass(size);
+        ByteBuffer buffer = null;
+        if (sizeClass >= 0) {
+            buffer = (ByteBuffer) buffers[sizeClass].poll();
+            if (buffer != null) {
+                bufferCounts[sizeClass].decrementAndGet();
+                buffer.clear();
+            } else {
+                buffer = allocate(classSize(sizeClass));
+            }
+        } else {
+            buffer = allocate(size);
+        }
+        track(buffer);
+        return buffer;
+    }
+
+    /**
+     * Returns a ByteBuffer acquired from this pool.
+     *
+     * @param buffer the buffer to give back, may be null.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !untrack(buffer)) {
+            return;
+        }
+        int sizeClass = exactSizeClass(buffer.capacity());
+        if (sizeClass >= 0 && buffer.isDirect() == direct && bufferCounts[sizeClass].incrementAndGet() <= maxPooledPerClass) {
+            buffers[sizeClass].offer(buffer);
+        } else if (sizeClass >= 0 && buffer.isDirect() == direct) {
+            bufferCounts[sizeClass].decrementAndGet();
+        }
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public boolean isDebug() {
+        return debug;
+    }
+
+    /**
+     * The number of buffers handed out and not yet released.  This is only tracked in debug mode, otherwise it
+     * returns 0.
+     *
+     * @return number of outstanding buffers.
+     */
+    public int getOutstandingCount() {
+        return outstanding.size();
+    }
+
+    /**
+     * Logs every buffer that was acquired but never released along with where it was acquired.  Only works in
+     * debug mode.
+     *
+     * @return the number of leaked buffers.
+     */
+    public int reportLeaks() {
+        List leaks;
+        synchronized (outstanding) {
+            leaks = new ArrayList(outstanding.values());
+        }
+        for (Iterator i = leaks.iterator(); i.hasNext(); ) {
+            log.warn("Buffer was never released to the pool.", (Throwable) i.next());
+        }
+        return leaks.size();
+    }
+
+    private ByteBuffer allocate(int size) {
+        return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    }
+
+    private void track(Object buffer) {
+        if (debug) {
+            outstanding.put(buffer, new Throwable("Acquired by " + Thread.currentThread().getName()));
+        }
+    }
+
+    private boolean untrack(Object buffer) {
+        if (debug && outstanding.remove(buffer) == null) {
+            log.warn("Buffer released twice or was not acquired from this pool.", new Throwable());
+            return false;
+        }
+        return true;
+    }
+
+    private static int classSize(int sizeClass) {
+        return MIN_BUFFER_SIZE << sizeClass;
+    }
+
+    private static int sizeClass(int size) {
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            if (size <= classSize(i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int exactSizeClass(int size) {
+        int sizeClass = sizeClass(size);
+        return (sizeClass >= 0 && classSize(sizeClass) == size) ? sizeClass : -1;
+    }
+}
@@ -0,0 +1,278 @@
+package pygmy.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * A Writer that encodes characters straight into a list of byte arrays as they are written.  The arrays are taken
+ * from a {@link BufferPool} when one is given.  The exact number of encoded bytes is always known through
+ * {@link #size()} so a Content-Length can be sent without encoding the text a second time, and the arrays can be
+ * written out as they are with {@link #writeTo(OutputStream)} or a single gathering write with
+ * {@link #writeTo(GatheringByteChannel)}.
+ * </p>
+ * <p>
+ * UTF-8 is encoded by hand with a fast path for ASCII.  Any other charset goes through a {@link CharsetEncoder}.
+ * Unmappable characters and unpaired surrogates are replaced with '?'.
+ * </p>
+ */
+public class ByteArrayWriter extends Writer {
+
+    public static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int CHUNK_SIZE = BufferPool.MIN_BUFFER_SIZE;
+
+    private final BufferPool bufferPool;
+    private final Charset charset;
+    private final boolean utf8;
+    private CharsetEncoder encoder;
+
+    private List chunks = new ArrayList();
+    private int[] chunkLengths = new int[8];
+    private byte[] current;
+    private int position;
+    private long size;
+    private char pendingHighSurrogate;
+
+    public ByteArrayWriter() {
+        this(UTF8, null);
+    }
+
+    public ByteArrayWriter(Charset charset, BufferPool bufferPool) {
+        this.charset = charset;
+        this.bufferPool = bufferPool;
+        this.utf8 = UTF8.equals(charset);
+        if (!utf8) {
+            encoder = charset.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    public void write(int c) throws IOException {
+        if (utf8) {
+            encodeUtf8((char) c);
+        } else {
+            encode(CharBuffer.wrap(new char[]{(char) c}));
+        }
+    }
+
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        if (utf8) {
+            int end = off + len;
+            for (int i = off; i < end; i++) {
+                char c = cbuf[i];
+                if (c < 0x80 && pendingHighSurrogate == 0 && current != null && position < current.length) {
+                    current[position++] = (byte) c;
+                    size++;
+                } else {
+                    encodeUtf8(c);
+                }
+            }
+        } else {
+            encode(CharBuffer.wrap(cbuf, off, len));
+        }
+    }
+
+    public void write(String str, int off, int len) throws IOException {
+        if (utf8) {
+            int end = off + len;
+            for (int i = off; i < end; i++) {
+                char c = str.charAt(i);
+                if (c < 0x80 && pendingHighSurrogate == 0 && current != null && position < current.length) {
+                    current[position++] = (byte) c;
+                    size++;
+                } else {
+                    encodeUtf8(c);
+                }
+            }
+        } else {
+            encode(CharBuffer.wrap(str, off, off + len));
+        }
+    }
+
+    public void flush() {
+    }
+
+    public void close() {
+    }
+
+    /**
+     * Encodes any character held back waiting for the second half of a surrogate pair.  Called before the content
+     * is measured or sent.
+     */
+    public void finish() throws IOException {
+        if (pendingHighSurrogate != 0) {
+            pendingHighSurrogate = 0;
+            if (utf8) {
+                put((byte) '?');
+            } else {
+                encode(CharBuffer.wrap("?"));
+            }
+        }
+    }
+
+    /**
+     * The number of bytes encoded so far.
+     *
+     * @return the number of encoded bytes.
+     */
+    public long size() {
+        return size;
+    }
+
+    public void writeTo(OutputStream os) throws IOException {
+        for (int i = 0; i < chunks.size(); i++) {
+            byte[] chunk = (byte[]) chunks.get(i);
+            os.write(chunk, 0, chunkLength(i));
+        }
+    }
+
+    /**
+     * Writes all of the encoded bytes to the channel using gathering writes.
+     *
+     * @param channel the channel to write to.
+     * @throws IOException if the write fails.
+     */
+    public void writeTo(GatheringByteChannel channel) throws IOException {
+        ByteBuffer[] buffers = toByteBuffers();
+        long remaining = size;
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+    }
+
+    /**
+     * Returns the encoded bytes as ByteBuffers wrapping the underlying chunks.  They are only valid until this writer
+     * is reset.
+     *
+     * @return the encoded bytes.
+     */
+    public ByteBuffer[] toByteBuffers() {
+        ByteBuffer[] buffers = new ByteBuffer[chunks.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = ByteBuffer.wrap((byte[]) chunks.get(i), 0, chunkLength(i));
+        }
+        return buffers;
+    }
+
+    /**
+     * Discards everything written and returns the chunks to the pool.
+     */
+    public void reset() {
+        if (bufferPool != null) {
+            for (int i = 0; i < chunks.size(); i++) {
+                bufferPool.release((byte[]) chunks.get(i));
+            }
+        }
+        chunks.clear();
+        current = null;
+        position = 0;
+        size = 0;
+        pendingHighSurrogate = 0;
+        if (encoder != null) {
+            encoder.reset();
+        }
+    }
+
+    private int chunkLength(int index) {
+        return (index == chunks.size() - 1) ? position : chunkLengths[index];
+    }
+
+    private void encodeUtf8(char c) {
+        if (pendingHighSurrogate != 0) {
+            char high = pendingHighSurrogate;
+            pendingHighSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                int codePoint = Character.toCodePoint(high, c);
+                put((byte) (0xF0 | (codePoint >> 18)));
+                put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                put((byte) (0x80 | (codePoint & 0x3F)));
+                return;
+            }
+            put((byte) '?');
+        }
+        if (c < 0x80) {
+            put((byte) c);
+        } else if (c < 0x800) {
+            put((byte) (0xC0 | (c >> 6)));
+            put((byte) (0x80 | (c & 0x3F)));
+        } else if (Character.isHighSurrogate(c)) {
+            pendingHighSurrogate = c;
+        } else if (Character.isLowSurrogate(c)) {
+            put((byte) '?');
+        } else {
+            put((byte) (0xE0 | (c >> 12)));
+            put((byte) (0x80 | ((c >> 6) & 0x3F)));
+            put((byte) (0x80 | (c & 0x3F)));
+        }
+    }
+
+    private void encode(CharBuffer in) {
+        if (pendingHighSurrogate != 0) {
+            CharBuffer joined = CharBuffer.allocate(in.remaining() + 1);
+            joined.put(pendingHighSurrogate).put(in).flip();
+            pendingHighSurrogate = 0;
+            in = joined;
+        }
+        while (true) {
+            if (current == null || position == current.length) {
+                nextChunk();
+            }
+            ByteBuffer out = ByteBuffer.wrap(current, position, current.length - position);
+            CoderResult result = encoder.encode(in, out, false);
+            size += out.position() - position;
+            position = out.position();
+            if (result.isUnderflow()) {
+                break;
+            }
+            if (position == 0) {
+                // a single character didn't fit into an empty chunk, which no charset should need.
+                throw new IllegalStateException(charset + " encoded a character larger than a chunk.");
+            }
+            nextChunk();
+        }
+        if (in.hasRemaining()) {
+            // only the first half of a surrogate pair can be left over.
+            pendingHighSurrogate = in.get();
+        }
+    }
+
+    private void put(byte b) {
+        if (current == null || position == current.length) {
+            nextChunk();
+        }
+        current[position++] = b;
+        size++;
+    }
+
+    private void nextChunk() {
+        if (current != null) {
+            int index = chunks.size() - 1;
+            if (index >= chunkLengths.length) {
+                int[] lengths = new int[chunkLengths.length * 2];
+                System.arraycopy(chunkLengths, 0, lengths, 0, chunkLengths.length);
+                chunkLengths = lengths;
+            }
+            chunkLengths[index] = position;
+        }
+        current = (bufferPool != null) ? bufferPool.acquire(CHUNK_SIZE) : new byte[CHUNK_SIZE];
+        position = 0;
+        chunks.add(current);
+    }
+}
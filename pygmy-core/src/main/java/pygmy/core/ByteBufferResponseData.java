@@ -0,0 +1,72 @@
+package pygmy.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Sends the contents of one or more ByteBuffers, usually direct or memory mapped ones.  When the response can be sent
+ * with a gathering write the buffers go to the connection's channel as they are, without being copied into the Java
+ * heap.  Otherwise they are copied to the stream through a small buffer.  The buffers' positions and limits are never
+ * changed, so the same buffers can be shared by many responses.  Subclasses can override {@link #close()} to learn
+ * when the response is done with the buffers.
+ */
+public class ByteBufferResponseData implements ResponseData {
+
+    private static final int SEND_BUFFER_SIZE = 8192;
+
+    private final ByteBuffer[] data;
+    private final BufferPool bufferPool;
+
+    public ByteBufferResponseData(ByteBuffer data) {
+        this(new ByteBuffer[]{data}, null);
+    }
+
+    public ByteBufferResponseData(ByteBuffer data, BufferPool bufferPool) {
+        this(new ByteBuffer[]{data}, bufferPool);
+    }
+
+    public ByteBufferResponseData(ByteBuffer[] data, BufferPool bufferPool) {
+        this.data = data;
+        this.bufferPool = bufferPool;
+    }
+
+    public long getLength() {
+        long length = 0;
+        for (int i = 0; i < data.length; i++) {
+            length += data[i].remaining();
+        }
+        return length;
+    }
+
+    public void send(OutputStream os) throws IOException {
+        byte[] buffer = (bufferPool != null) ? bufferPool.acquire(SEND_BUFFER_SIZE) : new byte[(int) Math.max(1, Math.min(SEND_BUFFER_SIZE, getLength()))];
+        try {
+            for (int i = 0; i < data.length; i++) {
+                ByteBuffer source = data[i].duplicate();
+                while (source.hasRemaining()) {
+                    int length = Math.min(buffer.length, source.remaining());
+                    source.get(buffer, 0, length);
+                    os.write(buffer, 0, length);
+                }
+            }
+        } finally {
+            if (bufferPool != null) {
+                bufferPool.release(buffer);
+            }
+        }
+    }
+
+    /**
+     * Returns views of the data for a gathering write.
+     *
+     * @return the data.
+     */
+    public ByteBuffer[] toByteBuffers() {
+        ByteBuffer[] views = new ByteBuffer[data.length];
+        for (int i = 0; i < data.length; i++) {
+            views[i] = data[i].duplicate();
+        }
+        return views;
+    }
+}
@@ -31,11 +31,15 @@ public class ChunkedEncodingOutputStream extends FilterOutputStream {
     }
 
     public void write(byte[] b, int off, int len) throws IOException {
-        for (int i = off; i < len; i++) {
+        while (len > 0) {
             if (count >= buf.length) {
                 flush();
             }
-            buf[count++] = b[i];
+            int copied = Math.min(len, buf.length - count);
+            System.arraycopy(b, off, buf, count, copied);
+            count += copied;
+            off += copied;
+            len -= copied;
         }
     }
 
@@ -47,11 +51,22 @@ public class ChunkedEncodingOutputStream extends FilterOutputStream {
     }
 
     public void close() throws IOException {
+        finish();
+        out.close();
+    }
+
+    /**
+     * Writes any buffered data and the terminating zero length chunk without closing the underlying stream, so the
+     * connection can be kept alive for the next request.
+     *
+     * @throws IOException if writing to the underlying stream fails.
+     */
+    public void finish() throws IOException {
         if (count > 0) {
             flush();
         }
         writeChunkEnding();
-        out.close();
+        out.flush();
     }
 
     private void writeChunkSize(int count) throws IOException {
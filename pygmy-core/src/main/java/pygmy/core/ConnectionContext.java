@@ -0,0 +1,143 @@
+package pygmy.core;
+
+import java.io.BufferedInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * <p>
+ * Holds the objects that live as long as a single client connection.  The input and output streams, their buffers,
+ * and the {@link HttpRequest} and {@link HttpResponse} objects are created once and reset between requests on a
+ * keep-alive connection, so a steady stream of requests doesn't create new objects for each one.  The buffers are
+ * taken from the server's {@link BufferPool} and are given back by {@link #release()}, which must be called when
+ * the connection is closed.
+ * </p>
+ */
+public class ConnectionContext {
+
+    public static final int READ_BUFFER_SIZE = 4096;
+    public static final int WRITE_BUFFER_SIZE = 8192;
+
+    private Server server;
+    private BufferPool bufferPool;
+    private byte[] readBuffer;
+    private byte[] writeBuffer;
+    private InternetInputStream input;
+    private InternetOutputStream output;
+    private HttpRequest request;
+    private HttpResponse response;
+    private GatheringByteChannel channel;
+    private TokenBucket connectionBucket;
+
+    /**
+     * Creates a context for a connection.
+     *
+     * @param server      the server the connection belongs to.
+     * @param in          the raw input of the connection.
+     * @param out         the raw output of the connection.
+     * @param bufferInput true if reads from the input should be buffered.  This must be false for inputs that can
+     *                    return 0 bytes from a read, like non-blocking channels.
+     */
+    public ConnectionContext(Server server, InputStream in, OutputStream out, boolean bufferInput) {
+        this.server = server;
+        this.bufferPool = server.getBufferPool();
+        if (bufferInput) {
+            readBuffer = bufferPool.acquire(READ_BUFFER_SIZE);
+            in = new PooledBufferedInputStream(in, readBuffer);
+        }
+        // the pushback is only used to peek one character past a CR.
+        input = new InternetInputStream(in, 1);
+        writeBuffer = bufferPool.acquire(WRITE_BUFFER_SIZE);
+        output = new InternetOutputStream(out, writeBuffer);
+        if (server.getThrottle() != null) {
+            connectionBucket = server.getThrottle().newConnectionBucket();
+        }
+    }
+
+    /**
+     * Sets the channel underneath the output stream, if the connection has one.  Responses will use it for
+     * gathering writes.
+     *
+     * @param channel the connection's channel or null.
+     */
+    public void setChannel(GatheringByteChannel channel) {
+        this.channel = channel;
+    }
+
+    public InternetInputStream getInputStream() {
+        return input;
+    }
+
+    public InternetOutputStream getOutputStream() {
+        return output;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Returns the request object of the last request after it was reset, or null if there hasn't been a request
+     * on this connection yet.
+     *
+     * @return the recycled request or null.
+     */
+    public HttpRequest nextRequest() {
+        if (request != null) {
+            request.recycle();
+        }
+        return request;
+    }
+
+    /**
+     * Sets the request object that will be recycled for the following requests on this connection.
+     *
+     * @param request the request object.
+     */
+    public void setRequest(HttpRequest request) {
+        this.request = request;
+    }
+
+    /**
+     * Returns a response ready to answer the given request.  The same response object is reused for all the requests
+     * on this connection.
+     *
+     * @param request the request being answered.
+     * @return the response.
+     */
+    public HttpResponse nextResponse(HttpRequest request) {
+        if (response == null) {
+            response = new HttpResponse(request, output, server.getResponseListeners(), bufferPool);
+            response.setChannel(channel);
+            response.setNotifyInterval(server.getNotifyInterval());
+            response.setThrottle(server.getThrottle(), connectionBucket);
+        } else {
+            response.recycle(request);
+        }
+        return response;
+    }
+
+    /**
+     * Releases the data of the last response and gives the buffers back to the pool.  The streams cannot be used
+     * after this is called.
+     */
+    public void release() {
+        if (response != null) {
+            response.release();
+        }
+        bufferPool.release(readBuffer);
+        bufferPool.release(writeBuffer);
+        readBuffer = null;
+        writeBuffer = null;
+        request = null;
+        response = null;
+    }
+
+    private static class PooledBufferedInputStream extends BufferedInputStream {
+        public PooledBufferedInputStream(InputStream in, byte[] buffer) {
+            super(in, 1);
+            this.buf = buffer;
+        }
+    }
+}
@@ -24,12 +24,22 @@ public class ConnectionRunnable implements Runnable {
     }
 
     public void run() {
+        ConnectionContext context = null;
+        ServerMetrics metrics = server.getMetrics();
+        metrics.connectionOpened();
         try {
+            context = new ConnectionContext(server, connection.getInputStream(), connection.getOutputStream(), true);
+            context.setChannel(connection.getChannel());
             boolean next = false;
             do {
-                HttpRequest request = createRequest();
-                if (request.readRequest(connection.getInputStream())) {
-                    HttpResponse response = new HttpResponse(request, connection.getOutputStream(), server.getResponseListeners());
+                HttpRequest request = context.nextRequest();
+                if (request == null) {
+                    request = createRequest();
+                    context.setRequest(request);
+                }
+                if (request.readRequest(context.getInputStream())) {
+                    metrics.requestReceived();
+                    HttpResponse response = context.nextResponse(request);
                     if (log.isDebugEnabled()) {
                         log.debug(connection.getInetAddress().getHostAddress() + ":" + connection.getPort() + " - " + request.getUrl());
                     }
@@ -61,6 +71,10 @@ public class ConnectionRunnable implements Runnable {
                 connection.close();
             } catch (IOException e) {
             }
+            if (context != null) {
+                context.release();
+            }
+            metrics.connectionClosed();
         }
     }
 
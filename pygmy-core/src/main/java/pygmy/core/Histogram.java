@@ -0,0 +1,125 @@
+package pygmy.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ * A lock free histogram of non-negative long values (i.e. nanoseconds).  Values are counted in log-linear buckets:
+ * every power of two range is split into {@link #SUB_BUCKETS} equal buckets, so any value is placed in a bucket
+ * whose width is at most 1/8th of the value no matter how large it is.  The buckets are a fixed array of atomic
+ * counters so {@link #record(long)} never allocates and never blocks, and it can be left on in production.
+ * </p>
+ * <p>
+ * Reading while other threads record gives a view that may be off by the few values being recorded at that
+ * moment, which is fine for monitoring.
+ * </p>
+ */
+public class Histogram {
+
+    public static final int SUB_BUCKETS = 8;
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Counts a value.  Negative values are counted as 0.
+     *
+     * @param value the value to record.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucketIndex(value));
+        sum.add(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * The number of values recorded.
+     *
+     * @return number of values recorded.
+     */
+    public long getCount() {
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the number of recorded values that are less than or equal to the value.  Values that fall into the
+     * same bucket as the value are only counted if the whole bucket is at or below it, so the result can be slightly
+     * low but never high.
+     *
+     * @param value the upper bound.
+     * @return the number of values at or below the upper bound.
+     */
+    public long getCountAtOrBelow(long value) {
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT && bucketUpperBound(i) <= value; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * Returns an upper bound of the value at the given percentile.  The result is the highest value the bucket
+     * holding the percentile can contain, so it is at most 1/8th larger than the real value.
+     *
+     * @param percentile a percentile between 0 and 100.
+     * @return the value at the percentile, or 0 if nothing has been recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = getCount();
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(total * Math.min(percentile, 100.0) / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(bucketUpperBound(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        long upper = lower + (1L << shift) - 1;
+        return upper < 0 ? Long.MAX_VALUE : upper;
+    }
+}
@@ -69,6 +69,7 @@ public class Http {
         codesMap.put(new Integer(413), "Request Entity Too Large");
         codesMap.put(new Integer(414), "Request-URI Too Large");
         codesMap.put(new Integer(415), "Unsupported Media Type");
+        codesMap.put(new Integer(429), "Too Many Requests");
         codesMap.put(new Integer(500), "Server Error");
         codesMap.put(new Integer(501), "Not Implemented");
         codesMap.put(new Integer(502), "Bad Gateway");
@@ -1,6 +1,8 @@
 package pygmy.core;
 
 import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -14,6 +16,17 @@ public class HttpHeaders {
 
     public HttpHeaders(InternetInputStream stream) throws IOException {
         this();
+        read(stream);
+    }
+
+    /**
+     * Reads headers from the stream up to and including the blank line that ends them.  The headers read are added
+     * to the headers already held, so call {@link #clear()} first when reusing an instance.
+     *
+     * @param stream the stream to read from.
+     * @throws IOException if reading the stream fails.
+     */
+    public void read(InternetInputStream stream) throws IOException {
         String currentKey = null;
         while (true) {
             String line = stream.readline();
@@ -61,12 +74,52 @@ public class HttpHeaders {
     }
 
     public void print(InternetOutputStream stream) throws IOException {
+        write(stream);
+        stream.flush();
+    }
+
+    /**
+     * Writes the headers and the blank line that ends them to the stream without flushing it, so a body written
+     * afterwards can go out in the same packet.
+     *
+     * @param stream the stream to write to.
+     * @throws IOException if writing fails.
+     */
+    public void write(InternetOutputStream stream) throws IOException {
         for (Iterator i = iterator(); i.hasNext(); ) {
             String key = (String) i.next();
             stream.println(key + ": " + get(key));
         }
 
         stream.println();
-        stream.flush();
+    }
+
+    /**
+     * Writes the headers and the blank line that ends them into the buffer.  Header names and values are written as
+     * ISO-8859-1.
+     *
+     * @param buffer the buffer to write into.
+     * @return false if the headers didn't fit into the buffer.
+     */
+    public boolean print(ByteBuffer buffer) {
+        try {
+            for (Iterator i = iterator(); i.hasNext(); ) {
+                String key = (String) i.next();
+                putAscii(buffer, key);
+                buffer.put((byte) ':').put((byte) ' ');
+                putAscii(buffer, get(key));
+                buffer.put((byte) '\r').put((byte) '\n');
+            }
+            buffer.put((byte) '\r').put((byte) '\n');
+            return true;
+        } catch (BufferOverflowException e) {
+            return false;
+        }
+    }
+
+    static void putAscii(ByteBuffer buffer, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            buffer.put((byte) text.charAt(i));
+        }
     }
 }
@@ -38,6 +38,12 @@ public class HttpRequest extends Request {
 
     private long timeStamp;
 
+    private long startNanos;
+
+    private int responseStatus;
+
+    private long responseLength;
+
     public HttpRequest(String aScheme, Socket aConnection, Properties serverConfig) {
         super( aConnection, serverConfig );
         scheme = aScheme;
@@ -59,13 +65,15 @@ public class HttpRequest extends Request {
     }
 
     public boolean readRequest( InputStream aStream ) throws IOException {
-        InternetInputStream stream = new InternetInputStream( aStream );
+        InternetInputStream stream = ( aStream instanceof InternetInputStream ) ? (InternetInputStream) aStream : new InternetInputStream( aStream );
         String startLine = null;
         try {
             startLine = readHttpCommand( stream );
             if( startLine == null ) {
                 return false;
             }
+            timeStamp = System.currentTimeMillis();
+            startNanos = System.nanoTime();
             if ( protocol.equals("HTTP/1.0") ) {
                 major = 1;
                 minor = 0;
@@ -76,7 +84,10 @@ public class HttpRequest extends Request {
                 throw new HttpProtocolException( HttpURLConnection.HTTP_VERSION, "Protocol " + protocol + " not supported." );
             }
 
-            headers = new HttpHeaders( stream );
+            if( headers == null ) {
+                headers = new HttpHeaders();
+            }
+            headers.read( stream );
             readPostData( stream );
         } catch( NoSuchElementException e ) {
             throw new HttpProtocolException( HttpURLConnection.HTTP_NOT_FOUND, "Bad request " + startLine );
@@ -95,10 +106,27 @@ public class HttpRequest extends Request {
         postData = null;
         httpVariableMap = null;
         timeStamp = System.currentTimeMillis();
+        startNanos = System.nanoTime();
+        responseStatus = 0;
+        responseLength = -1;
         connectionHeader = "Connection";
         requestId = new Integer( nextRequestId++ );
     }
 
+    /**
+     * Clears this request so it can be read again from the same connection.  Used by {@link ConnectionContext} to
+     * avoid creating a new request for every request on a keep-alive connection.
+     */
+    public void recycle() {
+        init();
+        major = 0;
+        minor = 0;
+        if( headers != null ) {
+            headers.clear();
+        }
+        clearProperties();
+    }
+
     public Integer getRequestId() {
         return requestId;
     }
@@ -249,6 +277,40 @@ public class HttpRequest extends Request {
         return timeStamp;
     }
 
+    /**
+     * The value of System.nanoTime() when the request line was read, used to measure how long the request took.
+     *
+     * @return the start of the request in nanoseconds.
+     */
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    /**
+     * The status code of the response sent for this request, or 0 if it hasn't been sent yet.  It is set before
+     * {@link ResponseListener#endTransfer} is called.
+     *
+     * @return the status code sent.
+     */
+    public int getResponseStatus() {
+        return responseStatus;
+    }
+
+    /**
+     * The number of body bytes sent for this request, or -1 if it isn't known.  It is set before
+     * {@link ResponseListener#endTransfer} is called.
+     *
+     * @return the number of body bytes sent.
+     */
+    public long getResponseLength() {
+        return responseLength;
+    }
+
+    void setResponse( int status, long length ) {
+        responseStatus = status;
+        responseLength = length;
+    }
+
     public String getProperty(String key) {
         return getProperty( key, null );
     }
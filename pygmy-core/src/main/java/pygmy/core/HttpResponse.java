@@ -2,6 +2,9 @@ package pygmy.core;
 
 import java.io.*;
 import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.Charset;
 
 /**
  * This holds the response data for the http response.
@@ -12,6 +15,8 @@ public class HttpResponse extends Response {
 
     private String mimeType = "text/html";
 
+    private Charset charset = ByteArrayWriter.UTF8;
+
     private HttpHeaders responseHeaders;
 
     private InternetOutputStream stream;
@@ -24,41 +29,218 @@ public class HttpResponse extends Response {
 
     private ResponseListener responseListener;
 
+    private BodyOutputStream bodyStream;
+
+    private BodyOutputStream streamingStream;
+
+    private ChunkedEncodingOutputStream chunkedStream;
+
+    /**
+     * Set by sendError once streaming has started, so the body is left unfinished and the client can tell it failed.
+     */
+    private boolean aborted;
+
+    private PrintWriter streamingWriter;
+
+    private GatheringByteChannel channel;
+
+    private BufferPool bufferPool;
+
+    private long sentLength = -1;
+
+    private long notifyInterval = DEFAULT_NOTIFY_INTERVAL;
+
+    private BandwidthThrottle throttle;
+
+    private TokenBucket connectionBucket;
+
+    private final TokenBucket[] buckets = new TokenBucket[BandwidthThrottle.MAX_BUCKETS];
+
+    private int bucketCount;
+
+    private static final int HEAD_BUFFER_SIZE = 4096;
+
+    public static final long DEFAULT_NOTIFY_INTERVAL = 65536;
+
     public HttpResponse(HttpRequest request, OutputStream aStream) {
         this(request, aStream, null);
     }
 
     public HttpResponse(HttpRequest request, OutputStream aStream, ResponseListener listener) {
-        this.stream = new InternetOutputStream(aStream);
+        this(request, aStream, listener, null);
+    }
+
+    public HttpResponse(HttpRequest request, OutputStream aStream, ResponseListener listener, BufferPool bufferPool) {
+        this.stream = (aStream instanceof InternetOutputStream) ? (InternetOutputStream) aStream : new InternetOutputStream(aStream);
         this.request = request;
-        this.dataStreamList = new ResponseDataList();
+        this.dataStreamList = new ResponseDataList(bufferPool);
         this.responseHeaders = new HttpHeaders();
         this.keepConnectionOpen = request.isKeepAlive();
         this.responseListener = listener;
+        this.bufferPool = bufferPool;
+    }
+
+    /**
+     * Sets the channel of the connection.  When it is set, responses whose body is already in memory are sent with
+     * the status line and headers in a single gathering write.  The channel must be the one underneath the stream
+     * this response was created with.
+     *
+     * @param channel the channel of the connection or null.
+     */
+    public void setChannel(GatheringByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Sets how many body bytes are sent between progress notifications to the {@link ResponseListener}.
+     *
+     * @param notifyInterval the number of bytes between notifications.
+     */
+    public void setNotifyInterval(long notifyInterval) {
+        this.notifyInterval = (notifyInterval > 0) ? notifyInterval : DEFAULT_NOTIFY_INTERVAL;
+    }
+
+    /**
+     * Sets the throttle that limits the rate the body is sent at.
+     *
+     * @param throttle         the server's throttle, or null for no limits.
+     * @param connectionBucket the bucket of this response's connection, or null if connections aren't limited.
+     */
+    public void setThrottle(BandwidthThrottle throttle, TokenBucket connectionBucket) {
+        this.throttle = throttle;
+        this.connectionBucket = connectionBucket;
+    }
+
+    /**
+     * Resets this response so it can be reused to answer the next request on the same connection.
+     *
+     * @param request the request this response will answer.
+     */
+    public void recycle(HttpRequest request) {
+        this.request = request;
+        this.statusCode = HttpURLConnection.HTTP_OK;
+        this.mimeType = "text/html";
+        this.charset = ByteArrayWriter.UTF8;
+        this.responseHeaders.clear();
+        this.dataStreamList.recycle();
+        this.keepConnectionOpen = request.isKeepAlive();
+        this.streamingStream = null;
+        this.chunkedStream = null;
+        this.aborted = false;
+        this.streamingWriter = null;
+        this.sentLength = -1;
+        this.bucketCount = 0;
     }
 
     public boolean isKeepAlive() {
-        return (keepConnectionOpen && request.isKeepAlive());
+        return (keepConnectionOpen && request.isKeepAlive() && (isHeadMethod() || !request.isProtocolVersionLessThan(1, 1) || dataStreamList.getTotalLength() >= 0));
     }
 
     public void addHeader(String key, String value) {
         responseHeaders.put(key, value);
     }
 
+    /**
+     * Returns a PrintWriter for writing text content.  The text is encoded with the response's character encoding,
+     * UTF-8 unless {@link #setCharacterEncoding(String)} was called first, and the charset is added to the
+     * Content-Type of text responses.
+     *
+     * @return a PrintWriter for the body of the response.
+     */
     public PrintWriter getPrintWriter() {
-        return dataStreamList.addPrintWriter();
+        if (streamingStream != null) {
+            if (streamingWriter == null) {
+                streamingWriter = new PrintWriter(new OutputStreamWriter(streamingStream, charset));
+            }
+            return streamingWriter;
+        }
+        return dataStreamList.addPrintWriter(charset);
+    }
+
+    /**
+     * Sets the character encoding used by PrintWriters returned from {@link #getPrintWriter()} after this call.
+     *
+     * @param encoding the name of the charset.
+     */
+    public void setCharacterEncoding(String encoding) {
+        this.charset = Charset.forName(encoding);
+    }
+
+    public String getCharacterEncoding() {
+        return charset.name();
     }
 
     public void setMimeType(String aMimeType) {
         mimeType = aMimeType;
     }
 
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * Returns the Content-Type the response will be sent with.  That is the mime type with the charset added when
+     * the body is text written through a PrintWriter.
+     *
+     * @return the content type, or null if there is no mime type.
+     */
+    public String getContentType() {
+        if (mimeType != null && mimeType.startsWith("text/") && mimeType.indexOf("charset") < 0 && dataStreamList.hasPrintWriter()) {
+            return mimeType + "; charset=" + charset.name();
+        }
+        return mimeType;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public String getHeader(String key) {
+        return responseHeaders.get(key);
+    }
+
+    /**
+     * Returns the headers set so far.  The headers the server adds itself, like Date and Content-Length, are only
+     * added once the response is committed.
+     *
+     * @return the response headers.
+     */
+    public HttpHeaders getHeaders() {
+        return responseHeaders;
+    }
+
+    /**
+     * Returns the length of the body added so far.
+     *
+     * @return the length in bytes, or -1 if it isn't known.
+     */
+    public long getContentLength() {
+        return dataStreamList.getTotalLength();
+    }
+
+    /**
+     * Writes the body added so far to the stream and removes it from the response, so the caller can keep a copy of
+     * it and add it back.  Only valid before the response is streaming or committed.
+     *
+     * @param out the stream to write the body to.
+     * @throws IOException if the body couldn't be read.
+     */
+    public void drainBody(OutputStream out) throws IOException {
+        dataStreamList.sendData(out, false);
+    }
+
     public void sendError(int statusCode, String errorMessage) {
         sendError(statusCode, errorMessage, null);
     }
 
     public void sendError(int statusCode, String errorMessage, Exception e) {
         keepConnectionOpen = false;
+        if (streamingStream != null) {
+            // the status has already been sent.  Closing the connection without finishing the body is the only way
+            // left to signal the error.
+            aborted = true;
+            return;
+        }
         String body = "<html>\n<head>\n"
                 + "<title>Error: " + statusCode + "</title>\n"
                 + "<body>\n<h1>" + statusCode + " <b>"
@@ -91,17 +273,131 @@ public class HttpResponse extends Response {
         this.dataStreamList.addResponse(is, beginning, ending - beginning);
     }
 
+    /**
+     * Adds data to the body of the response.  It is closed once the response is finished with it, even if it is
+     * never sent.
+     *
+     * @param data the data to add.
+     */
+    public void sendResponse(ResponseData data) {
+        this.dataStreamList.addResponse(data);
+    }
+
+    /**
+     * The pool the response takes its buffers from, so {@link ResponseData} can borrow from it as well.
+     *
+     * @return the pool, or null if buffers aren't pooled.
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Closes any data the response is still holding.  Called when the connection ends, so that data added by a
+     * handler is released even if the response was never committed.
+     */
+    public void release() {
+        dataStreamList.recycle();
+    }
+
     public void setStatusCode(int statusCode) {
         this.statusCode = statusCode;
     }
 
-    public void commitResponse() throws IOException {
+    /**
+     * <p>
+     * Switches this response into streaming mode.  The status line and headers are sent immediately, along with
+     * anything already written to the response.  From then on everything written to {@link #getOutputStream()} or
+     * {@link #getPrintWriter()} goes straight to the client.  HTTP/1.1 clients receive the body in chunked encoding
+     * and the connection stays open.  HTTP/1.0 clients receive the body as is and the connection is closed to mark
+     * its end.
+     * </p>
+     * <p>
+     * Data is buffered until the stream is flushed or the buffer fills, so call flush() whenever the client should
+     * see what has been written so far.  The {@link ResponseListener} is notified of the bytes sent as the body is
+     * written.  Headers and the status code cannot be changed after this call.
+     * </p>
+     *
+     * @return the stream the body should be written to.
+     * @throws IOException if the headers could not be sent.
+     */
+    public OutputStream startStreaming() throws IOException {
+        if (streamingStream != null) {
+            return streamingStream;
+        }
+        OutputStream body = stream;
+        boolean chunked = !request.isProtocolVersionLessThan(1, 1);
+        if (!chunked) {
+            keepConnectionOpen = false;
+        }
         try {
             startTransfer();
+            selectBuckets();
             sendHttpReply(statusCode);
-            sendHeaders(mimeType, dataStreamList.getTotalLength());
-            if (!isHeadMethod()) {
-                sendBody();
+            sendHeaders(mimeType, -1);
+            if (chunked && !isHeadMethod()) {
+                chunkedStream = new ChunkedEncodingOutputStream(stream);
+                body = chunkedStream;
+            }
+        } catch (IOException e) {
+            endTransfer(e);
+            throw e;
+        }
+        streamingStream = bodyStream(body, -1);
+        dataStreamList.sendData(streamingStream, false);
+        return streamingStream;
+    }
+
+    /**
+     * Returns true once {@link #startStreaming()} has been called.
+     *
+     * @return true if the response is streaming.
+     */
+    public boolean isStreaming() {
+        return streamingStream != null;
+    }
+
+    /**
+     * Returns the number of body bytes produced so far.  For a streaming response that is what has been written to
+     * the stream, otherwise it is the length of the buffered data or 0 if that isn't known.
+     *
+     * @return the number of body bytes.
+     */
+    public long getBodyLength() {
+        if (streamingStream != null) {
+            return streamingStream.bytesSent;
+        }
+        return Math.max(0, dataStreamList.getTotalLength());
+    }
+
+    public void commitResponse() throws IOException {
+        try {
+            if (streamingStream != null) {
+                finishStreaming();
+            } else {
+                sendBuffered();
+            }
+        } finally {
+            // HEAD responses and failed transfers never send their data, so it is released here.
+            dataStreamList.recycle();
+        }
+    }
+
+    private void sendBuffered() throws IOException {
+        try {
+            startTransfer();
+            selectBuckets();
+            long contentLength = dataStreamList.getTotalLength();
+            sentLength = isHeadMethod() ? 0 : contentLength;
+            if (channel == null || !sendGathered(contentLength)) {
+                sendHttpReply(statusCode);
+                prepareHeaders(mimeType, contentLength);
+                responseHeaders.write(stream);
+                if (!isHeadMethod()) {
+                    sendBody(contentLength);
+                } else {
+                    stream.flush();
+                }
             }
             endTransfer();
         } catch (IOException e) {
@@ -110,8 +406,100 @@ public class HttpResponse extends Response {
         }
     }
 
-    private void sendBody() throws IOException {
-        dataStreamList.sendData(stream, !request.isProtocolVersionLessThan(1, 1));
+    private void finishStreaming() throws IOException {
+        try {
+            if (streamingWriter != null) {
+                streamingWriter.flush();
+            }
+            if (chunkedStream != null && !aborted) {
+                chunkedStream.finish();
+            }
+            streamingStream.complete();
+            if (aborted) {
+                endTransfer(new IOException("Streaming response ended by an error after " + streamingStream.bytesSent + " bytes."));
+                return;
+            }
+            endTransfer();
+        } catch (IOException e) {
+            endTransfer(e);
+            throw e;
+        }
+    }
+
+    private boolean sendGathered(long contentLength) throws IOException {
+        boolean isHead = isHeadMethod();
+        if (contentLength < 0 || bucketCount > 0 || (!isHead && !dataStreamList.isGatherable())) {
+            return false;
+        }
+        ByteBuffer head = (bufferPool != null) ? bufferPool.acquireBuffer(HEAD_BUFFER_SIZE) : ByteBuffer.allocate(HEAD_BUFFER_SIZE);
+        try {
+            prepareHeaders(mimeType, contentLength);
+            if (!putHttpReply(head, statusCode) || !responseHeaders.print(head)) {
+                return false;
+            }
+            head.flip();
+            ByteBuffer[] body = isHead ? new ByteBuffer[0] : dataStreamList.toByteBuffers();
+            ByteBuffer[] buffers = new ByteBuffer[body.length + 1];
+            buffers[0] = head;
+            System.arraycopy(body, 0, buffers, 1, body.length);
+            long remaining = head.remaining() + (isHead ? 0 : contentLength);
+            // anything left in the stream's buffer has to go out before the channel is used directly.
+            stream.flush();
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+            if (!isHead) {
+                notifyListeners(contentLength, contentLength);
+            }
+            dataStreamList.recycle();
+            return true;
+        } finally {
+            if (bufferPool != null) {
+                bufferPool.release(head);
+            }
+        }
+    }
+
+    private boolean putHttpReply(ByteBuffer buffer, int code) {
+        String protocol = request.getProtocol();
+        String phrase = Http.getStatusPhrase(code);
+        if (buffer.remaining() < protocol.length() + phrase.length() + 16) {
+            return false;
+        }
+        HttpHeaders.putAscii(buffer, protocol);
+        buffer.put((byte) ' ');
+        HttpHeaders.putAscii(buffer, Integer.toString(code));
+        buffer.put((byte) ' ');
+        HttpHeaders.putAscii(buffer, phrase);
+        buffer.put((byte) '\r').put((byte) '\n');
+        return true;
+    }
+
+    private void sendBody(long contentLength) throws IOException {
+        OutputStream out = stream;
+        ChunkedEncodingOutputStream chunked = null;
+        if (contentLength < 0 && !request.isProtocolVersionLessThan(1, 1)) {
+            chunked = new ChunkedEncodingOutputStream(stream);
+            out = chunked;
+        }
+        BodyOutputStream body = bodyStream(out, contentLength);
+        dataStreamList.sendData(body, false);
+        if (chunked != null) {
+            chunked.finish();
+        }
+        body.complete();
+    }
+
+    private BodyOutputStream bodyStream(OutputStream out, long contentLength) {
+        if (bodyStream == null) {
+            bodyStream = new BodyOutputStream();
+        }
+        bodyStream.reset(out, contentLength, isHeadMethod());
+        return bodyStream;
+    }
+
+    private void selectBuckets() {
+        bucketCount = (throttle != null) ? throttle.select(request, connectionBucket, buckets) : 0;
     }
 
     private void sendHttpReply(int code) throws IOException {
@@ -125,9 +513,14 @@ public class HttpResponse extends Response {
     }
 
     private void sendHeaders(String mimeType, long contentLength) throws IOException {
+        prepareHeaders(mimeType, contentLength);
+        responseHeaders.print(stream);
+    }
+
+    private void prepareHeaders(String mimeType, long contentLength) {
         responseHeaders.put("Date", Http.getCurrentTime());
         responseHeaders.put("Server", "Pygmy");
-        String str = request.isKeepAlive() ? "Keep-Alive" : "close";
+        String str = isKeepAlive() ? "Keep-Alive" : "close";
         responseHeaders.put(request.getConnectionHeader(), str);
         if (contentLength >= 0) {
             responseHeaders.put("Content-Length", Long.toString(contentLength));
@@ -136,17 +529,22 @@ public class HttpResponse extends Response {
         }
 
         if (mimeType != null) {
-            responseHeaders.put("Content-Type", mimeType);
+            responseHeaders.put("Content-Type", getContentType());
         }
-        responseHeaders.print(stream);
     }
 
     private boolean isHeadMethod() {
         return "HEAD".equalsIgnoreCase(request.getMethod());
     }
 
+    /**
+     * Returns the stream for the body of a streaming response, or the raw connection stream if the response isn't
+     * streaming.
+     *
+     * @return the output stream.
+     */
     public OutputStream getOutputStream() {
-        return stream;
+        return (streamingStream != null) ? (OutputStream) streamingStream : stream;
     }
 
     protected void startTransfer() {
@@ -155,7 +553,7 @@ public class HttpResponse extends Response {
         }
     }
 
-    protected void notifyListeners(int bytesSent, int length) throws IOException {
+    protected void notifyListeners(long bytesSent, long length) throws IOException {
         if (responseListener != null) {
             responseListener.notify(request, bytesSent, length);
         }
@@ -167,7 +565,100 @@ public class HttpResponse extends Response {
 
     protected void endTransfer(Exception e) {
         if (responseListener != null) {
+            request.setResponse(statusCode, (streamingStream != null) ? streamingStream.bytesSent : sentLength);
             responseListener.endTransfer(request, e);
         }
     }
+
+    /**
+     * Carries the body of every response.  It counts the bytes sent, reports them to the ResponseListener every
+     * notifyInterval bytes and once more when the body is complete, and holds the rate down to the buckets of the
+     * {@link BandwidthThrottle}.  It is reused for each response on the connection.  Closing it only flushes, the
+     * connection belongs to the endpoint.
+     */
+    private class BodyOutputStream extends FilterOutputStream {
+
+        private long bytesSent;
+        private long lastNotified;
+        private long totalLength;
+        private boolean notified;
+        private boolean discard;
+
+        public BodyOutputStream() {
+            super(null);
+        }
+
+        void reset(OutputStream out, long totalLength, boolean discard) {
+            this.out = out;
+            this.totalLength = totalLength;
+            this.discard = discard;
+            bytesSent = 0;
+            lastNotified = 0;
+            notified = false;
+        }
+
+        public void write(int b) throws IOException {
+            throttle(1);
+            if (!discard) {
+                out.write(b);
+            }
+            bytesSent++;
+            notifyIfDue();
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int count = (bucketCount > 0) ? Math.min(len, throttle.getBurst()) : len;
+                throttle(count);
+                if (!discard) {
+                    out.write(b, off, count);
+                }
+                bytesSent += count;
+                off += count;
+                len -= count;
+                notifyIfDue();
+            }
+        }
+
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        public void close() throws IOException {
+            flush();
+        }
+
+        /**
+         * Flushes and sends the final progress notification.
+         */
+        void complete() throws IOException {
+            flush();
+            if (!notified || bytesSent != lastNotified) {
+                notifyProgress();
+            }
+        }
+
+        private void throttle(int count) throws IOException {
+            if (bucketCount > 0 && !discard) {
+                long wait = BandwidthThrottle.reserve(buckets, bucketCount, count);
+                if (wait > 0) {
+                    // let the client have what is already buffered before waiting.
+                    out.flush();
+                    BandwidthThrottle.pause(wait);
+                }
+            }
+        }
+
+        private void notifyIfDue() throws IOException {
+            if (bytesSent - lastNotified >= notifyInterval) {
+                notifyProgress();
+            }
+        }
+
+        private void notifyProgress() throws IOException {
+            lastNotified = bytesSent;
+            notified = true;
+            notifyListeners(bytesSent, totalLength);
+        }
+    }
 }
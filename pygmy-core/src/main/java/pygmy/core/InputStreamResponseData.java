@@ -8,6 +8,7 @@ public class InputStreamResponseData implements ResponseData {
     InputStream theData;
     long offset = 0;
     long length = -1;
+    BufferPool bufferPool;
 
     private static final int SEND_BUFFER_SIZE = 4096;
 
@@ -17,9 +18,14 @@ public class InputStreamResponseData implements ResponseData {
     }
 
     public InputStreamResponseData(InputStream theData, long offset, long length) {
+        this(theData, offset, length, null);
+    }
+
+    public InputStreamResponseData(InputStream theData, long offset, long length, BufferPool bufferPool) {
         this.theData = theData;
         this.offset = offset;
         this.length = length;
+        this.bufferPool = bufferPool;
     }
 
     public long getLength() {
@@ -32,24 +38,27 @@ public class InputStreamResponseData implements ResponseData {
 
     public void send(OutputStream os) throws IOException {
         theData.skip(offset);
-        byte[] buffer = new byte[Math.min(SEND_BUFFER_SIZE, (int) (length > 0L ? length : Integer.MAX_VALUE))];
-        int totalSent = 0;
+        byte[] buffer = (bufferPool != null) ? bufferPool.acquire(SEND_BUFFER_SIZE) : new byte[Math.min(SEND_BUFFER_SIZE, (int) (length > 0L ? length : Integer.MAX_VALUE))];
         try {
-//            startTransfer();
             while (true) {
                 int bufLen = theData.read(buffer);
                 if (bufLen < 0) {
                     break;
                 }
-//                notifyListeners( totalSent, length );
                 os.write(buffer, 0, bufLen);
-                totalSent += bufLen;
             }
-        } catch (IOException e) {
-            throw e;
         } finally {
-//            endTransfer();
+            if (bufferPool != null) {
+                bufferPool.release(buffer);
+            }
         }
+    }
 
+    public void close() {
+        try {
+            theData.close();
+        } catch (IOException e) {
+            // nothing more can be done with it.
+        }
     }
 }
@@ -5,7 +5,9 @@ import java.io.InputStream;
 import java.io.PushbackInputStream;
 
 public class InternetInputStream extends PushbackInputStream {
-    
+
+    private StringBuffer lineBuffer;
+
     public InternetInputStream(InputStream in, int size) {
         super(in, size);
     }
@@ -15,19 +17,26 @@ public class InternetInputStream extends PushbackInputStream {
     }
 
     public String readline() throws IOException {
-        StringBuffer buf = readBuffer();
-        if (buf == null) return null;
-        return buf.toString();
+        if (lineBuffer == null) {
+            lineBuffer = new StringBuffer();
+        }
+        lineBuffer.setLength(0);
+        if (!readInto(lineBuffer)) return null;
+        return lineBuffer.toString();
     }
 
     public StringBuffer readBuffer() throws IOException {
-        StringBuffer buffer = null;
+        StringBuffer buffer = new StringBuffer();
+        if (!readInto(buffer)) return null;
+        return buffer;
+    }
+
+    private boolean readInto(StringBuffer buffer) throws IOException {
+        boolean readAnything = false;
 
         int ch = -1;
         while ((ch = read()) >= 0) {
-            if (buffer == null) {
-                buffer = new StringBuffer();
-            }
+            readAnything = true;
             if (ch == '\r') {
                 ch = read();
                 if (ch > 0 && ch != '\n') {
@@ -39,7 +48,7 @@ public class InternetInputStream extends PushbackInputStream {
             }
             buffer.append((char) ch);
         }
-        return buffer;
+        return readAnything;
     }
 
 }
@@ -6,6 +6,8 @@ import java.io.OutputStream;
 
 public class InternetOutputStream extends BufferedOutputStream {
 
+    private static final byte[] CRLF_BYTES = {'\r', '\n'};
+
     public InternetOutputStream(OutputStream out) {
         super(out);
     }
@@ -14,12 +16,24 @@ public class InternetOutputStream extends BufferedOutputStream {
         super(out, size);
     }
 
+    /**
+     * Creates a stream that buffers into the supplied array.  This is used to buffer into an array taken from the
+     * {@link BufferPool} so the caller is responsible for returning it once the stream is no longer used.
+     *
+     * @param out    the underlying stream.
+     * @param buffer the array to use as the buffer.
+     */
+    public InternetOutputStream(OutputStream out, byte[] buffer) {
+        super(out, 1);
+        this.buf = buffer;
+    }
+
     public void print(String buffer) throws IOException {
         print(buffer, 0, buffer.length());
     }
 
     public void println() throws IOException {
-        write(Http.CRLF.getBytes());
+        write(CRLF_BYTES);
     }
 
     public void print(String text, int offset, int len) throws IOException {
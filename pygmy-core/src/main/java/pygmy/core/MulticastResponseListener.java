@@ -0,0 +1,92 @@
+package pygmy.core;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * <p>
+ * Passes every event on to a list of {@link ResponseListener}s in the order they were added.  The list is copied
+ * when it changes so sending events never locks.  An IOException thrown from {@link #notify} by any listener stops
+ * the transmission as it would with a single listener.  A RuntimeException thrown by one listener from the start or
+ * end events is logged and the other listeners are still called.
+ * </p>
+ */
+@Slf4j
+public class MulticastResponseListener implements ResponseListener, Closeable {
+
+    private volatile ResponseListener[] listeners = new ResponseListener[0];
+
+    public synchronized void add(ResponseListener listener) {
+        ResponseListener[] copy = new ResponseListener[listeners.length + 1];
+        System.arraycopy(listeners, 0, copy, 0, listeners.length);
+        copy[listeners.length] = listener;
+        listeners = copy;
+    }
+
+    public synchronized void remove(ResponseListener listener) {
+        for (int i = 0; i < listeners.length; i++) {
+            if (listeners[i] == listener) {
+                ResponseListener[] copy = new ResponseListener[listeners.length - 1];
+                System.arraycopy(listeners, 0, copy, 0, i);
+                System.arraycopy(listeners, i + 1, copy, i, copy.length - i);
+                listeners = copy;
+                return;
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        listeners = new ResponseListener[0];
+    }
+
+    public boolean isEmpty() {
+        return listeners.length == 0;
+    }
+
+    public void startTransfer(HttpRequest request) {
+        ResponseListener[] current = listeners;
+        for (int i = 0; i < current.length; i++) {
+            try {
+                current[i].startTransfer(request);
+            } catch (RuntimeException e) {
+                log.warn("ResponseListener failed in startTransfer.", e);
+            }
+        }
+    }
+
+    public void notify(HttpRequest request, long bytesSent, long totalLength) throws IOException {
+        ResponseListener[] current = listeners;
+        for (int i = 0; i < current.length; i++) {
+            current[i].notify(request, bytesSent, totalLength);
+        }
+    }
+
+    public void endTransfer(HttpRequest request, Exception e) {
+        ResponseListener[] current = listeners;
+        for (int i = 0; i < current.length; i++) {
+            try {
+                current[i].endTransfer(request, e);
+            } catch (RuntimeException re) {
+                log.warn("ResponseListener failed in endTransfer.", re);
+            }
+        }
+    }
+
+    /**
+     * Closes every listener that implements Closeable.
+     */
+    public void close() {
+        ResponseListener[] current = listeners;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] instanceof Closeable) {
+                try {
+                    ((Closeable) current[i]).close();
+                } catch (IOException e) {
+                    log.warn("Could not close the response listener.", e);
+                }
+            }
+        }
+    }
+}
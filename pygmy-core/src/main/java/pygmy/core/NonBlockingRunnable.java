@@ -25,13 +25,21 @@ public class NonBlockingRunnable implements Runnable {
     }
 
     public void run() {
+        ConnectionContext context = new ConnectionContext(server, is, os, false);
+        ServerMetrics metrics = server.getMetrics();
+        metrics.connectionOpened();
         try {
             boolean next = false;
             do {
-                HttpRequest request = new HttpRequest("http", socket, server.getConfig());
-                next = request.readRequest(is);
+                HttpRequest request = context.nextRequest();
+                if (request == null) {
+                    request = new HttpRequest("http", socket, server.getConfig());
+                    context.setRequest(request);
+                }
+                next = request.readRequest(context.getInputStream());
                 if (next) {
-                    HttpResponse response = new HttpResponse(request, os, server.getResponseListeners());
+                    metrics.requestReceived();
+                    HttpResponse response = context.nextResponse(request);
                     if (!server.post(request, response)) {
                         response.sendError(HttpURLConnection.HTTP_NOT_FOUND, " was not found on this server.");
                     }
@@ -59,6 +67,8 @@ public class NonBlockingRunnable implements Runnable {
                 os.close();
             } catch (IOException e) {
             }
+            context.release();
+            metrics.connectionClosed();
         }
     }
 }
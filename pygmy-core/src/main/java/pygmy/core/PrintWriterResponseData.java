@@ -3,28 +3,75 @@ package pygmy.core;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.Charset;
 
 public class PrintWriterResponseData implements ResponseData {
     PrintWriter writer;
-    StringWriter backEnd;
+    ByteArrayWriter backEnd;
 
     public PrintWriterResponseData() {
-        backEnd = new StringWriter();
+        this(ByteArrayWriter.UTF8, null);
+    }
+
+    public PrintWriterResponseData(Charset charset, BufferPool bufferPool) {
+        backEnd = new ByteArrayWriter(charset, bufferPool);
         writer = new PrintWriter(backEnd);
     }
 
     public long getLength() {
-        writer.flush();
-        return backEnd.getBuffer().length();
+        finish();
+        return backEnd.size();
     }
 
     public PrintWriter getPrintWriter() {
         return writer;
     }
 
+    public Charset getCharset() {
+        return backEnd.getCharset();
+    }
+
     public void send(OutputStream os) throws IOException {
+        finish();
+        backEnd.writeTo(os);
+    }
+
+    public void send(GatheringByteChannel channel) throws IOException {
+        finish();
+        backEnd.writeTo(channel);
+    }
+
+    /**
+     * Returns the encoded text as ByteBuffers for a gathering write.  They are only valid until this is reset.
+     *
+     * @return the encoded text.
+     */
+    public ByteBuffer[] toByteBuffers() {
+        finish();
+        return backEnd.toByteBuffers();
+    }
+
+    private void finish() {
         writer.flush();
-        os.write(backEnd.toString().getBytes());
+        try {
+            backEnd.finish();
+        } catch (IOException e) {
+            // ByteArrayWriter never throws.
+        }
+    }
+
+    /**
+     * Empties the buffer so this can be reused, giving its chunks back to the pool.  The PrintWriter handed out so
+     * far is closed and replaced, so a handler still holding it can't write into the next response's buffer.
+     *
+     * @return true if this instance can be reused.
+     */
+    boolean reset() {
+        writer.close();
+        backEnd.reset();
+        writer = new PrintWriter(backEnd);
+        return true;
     }
 }
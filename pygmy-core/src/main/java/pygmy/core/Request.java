@@ -1,25 +1,59 @@
 package pygmy.core;
 
+import java.net.InetAddress;
 import java.net.Socket;
 import java.util.Properties;
 
 public abstract class Request {
 
-    private Properties requestProperties;
+    private Properties serverConfig;
+    private RequestAttributes attributes;
     private boolean isInternal = false;
     protected Socket connection;
 
     public Request(Socket connection, Properties serverConfig) {
         this.connection = connection;
-        this.requestProperties = new ChainableProperties(serverConfig);
+        this.serverConfig = serverConfig;
     }
 
+    /**
+     * Returns the request attribute stored under the key.  If the request doesn't have one it falls back to the
+     * server's configuration.
+     *
+     * @param key          the name of the attribute or configuration property.
+     * @param defaultValue the value returned if neither the request nor the server has the key.
+     * @return the value of the key or defaultValue.
+     */
     public String getProperty(String key, String defaultValue) {
-        return requestProperties.getProperty(key, defaultValue);
+        if (attributes != null) {
+            String value = attributes.get(key);
+            if (value != null) {
+                return value;
+            }
+        }
+        return serverConfig.getProperty(key, defaultValue);
     }
 
+    /**
+     * Stores an attribute on this request.  The server's configuration is never modified.
+     *
+     * @param key   the name of the attribute.
+     * @param value the value of the attribute.
+     */
     public void putProperty(String key, String value) {
-        requestProperties.put(key, value);
+        if (attributes == null) {
+            attributes = new RequestAttributes();
+        }
+        attributes.put(key, value);
+    }
+
+    /**
+     * Removes all the attributes stored on this request so it can be reused for the next request on a connection.
+     */
+    protected void clearProperties() {
+        if (attributes != null) {
+            attributes.clear();
+        }
     }
 
     public boolean isInternal() {
@@ -42,6 +76,15 @@ public abstract class Request {
         return connection.getInetAddress().getHostAddress();
     }
 
+    /**
+     * Returns the address of the client without converting it to a String.
+     *
+     * @return the client's address, or null for internal requests that have no connection.
+     */
+    public InetAddress getRemoteInetAddress() {
+        return (connection != null) ? connection.getInetAddress() : null;
+    }
+
     public int getRemotePort() {
         return connection.getPort();
     }
@@ -0,0 +1,140 @@
+package pygmy.core;
+
+/**
+ * <p>
+ * A small, unsynchronized String to String map used to hold per-request attributes (i.e. <i>file-path</i>).  A
+ * request is only ever handled by one thread at a time so there is no need for the locking done by
+ * {@link java.util.Hashtable}.  Keys are stored using open addressing with linear probing in a power of two sized
+ * table so a handful of attributes costs two small arrays and no per-entry objects.
+ * </p>
+ */
+public class RequestAttributes {
+
+    private static final int DEFAULT_CAPACITY = 8;
+
+    private String[] keys;
+    private String[] values;
+    private int size;
+
+    public RequestAttributes() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public RequestAttributes(int expectedSize) {
+        int capacity = DEFAULT_CAPACITY;
+        while (capacity * 3 < expectedSize * 4) {
+            capacity <<= 1;
+        }
+        keys = new String[capacity];
+        values = new String[capacity];
+    }
+
+    /**
+     * Returns the value stored under the key, or null if there isn't one.
+     *
+     * @param key the attribute name.
+     * @return the value of the attribute or null.
+     */
+    public String get(String key) {
+        int mask = keys.length - 1;
+        for (int i = indexFor(key, mask); keys[i] != null; i = (i + 1) & mask) {
+            if (keys[i].equals(key)) {
+                return values[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stores the value under the key.  Storing a null value removes the attribute.
+     *
+     * @param key   the attribute name.
+     * @param value the value of the attribute.
+     */
+    public void put(String key, String value) {
+        if (value == null) {
+            remove(key);
+            return;
+        }
+        int mask = keys.length - 1;
+        int i = indexFor(key, mask);
+        for (; keys[i] != null; i = (i + 1) & mask) {
+            if (keys[i].equals(key)) {
+                values[i] = value;
+                return;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size * 4 > keys.length * 3) {
+            resize(keys.length << 1);
+        }
+    }
+
+    /**
+     * Removes the attribute stored under the key.
+     *
+     * @param key the attribute name.
+     */
+    public void remove(String key) {
+        int mask = keys.length - 1;
+        int i = indexFor(key, mask);
+        while (keys[i] != null && !keys[i].equals(key)) {
+            i = (i + 1) & mask;
+        }
+        if (keys[i] == null) {
+            return;
+        }
+        keys[i] = null;
+        values[i] = null;
+        size--;
+        // re-insert the rest of the probe run so later lookups don't stop at the hole.
+        for (i = (i + 1) & mask; keys[i] != null; i = (i + 1) & mask) {
+            String k = keys[i];
+            String v = values[i];
+            keys[i] = null;
+            values[i] = null;
+            size--;
+            put(k, v);
+        }
+    }
+
+    public boolean containsKey(String key) {
+        return get(key) != null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes all the attributes, but keeps the table so it can be reused.
+     */
+    public void clear() {
+        if (size > 0) {
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = null;
+                values[i] = null;
+            }
+            size = 0;
+        }
+    }
+
+    private void resize(int capacity) {
+        String[] oldKeys = keys;
+        String[] oldValues = values;
+        keys = new String[capacity];
+        values = new String[capacity];
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    private static int indexFor(String key, int mask) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
@@ -3,10 +3,23 @@ package pygmy.core;
 import java.io.IOException;
 import java.io.OutputStream;
 
+/**
+ * A piece of the body of a {@link HttpResponse}.  {@link #close()} is called exactly once when the response is
+ * finished with the data, whether it was sent, discarded because the response was a HEAD, 304 or error, or abandoned
+ * because the connection failed.  Anything the data holds open, like a file, must be released there rather than
+ * at the end of {@link #send(OutputStream)}, since send may never be called.
+ */
 public interface ResponseData {
 
     long getLength();
 
     void send(OutputStream os) throws IOException;
 
+    /**
+     * Releases whatever this data holds.  It must not throw, and the data is never used again afterwards.  Data that
+     * holds nothing open doesn't need to override it.
+     */
+    default void close() {
+    }
+
 }
@@ -4,13 +4,26 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.List;
 
 public class ResponseDataList {
 
-    List dataStreamList = new LinkedList();
+    List dataStreamList = new ArrayList();
+
+    private List spareWriters = new ArrayList();
+
+    private BufferPool bufferPool;
+
+    public ResponseDataList() {
+        this(null);
+    }
+
+    public ResponseDataList(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
 
     public void addResponse(ResponseData data) {
         dataStreamList.add(data);
@@ -21,42 +34,131 @@ public class ResponseDataList {
     }
 
     public void addResponse(InputStream stream, long offset, long length) {
-        addResponse(new InputStreamResponseData(stream, offset, length));
+        addResponse(new InputStreamResponseData(stream, offset, length, bufferPool));
     }
 
     public PrintWriter addPrintWriter() {
-        PrintWriterResponseData data = new PrintWriterResponseData();
+        return addPrintWriter(ByteArrayWriter.UTF8);
+    }
+
+    public PrintWriter addPrintWriter(Charset charset) {
+        PrintWriterResponseData data = null;
+        if (!spareWriters.isEmpty() && ((PrintWriterResponseData) spareWriters.get(spareWriters.size() - 1)).getCharset().equals(charset)) {
+            data = (PrintWriterResponseData) spareWriters.remove(spareWriters.size() - 1);
+        } else {
+            data = new PrintWriterResponseData(charset, bufferPool);
+        }
         addResponse(data);
         return data.getPrintWriter();
     }
 
+    /**
+     * Returns true if any of the response's content was written through a PrintWriter.
+     *
+     * @return true if there is text content.
+     */
+    public boolean hasPrintWriter() {
+        for (int i = 0; i < dataStreamList.size(); i++) {
+            if (dataStreamList.get(i) instanceof PrintWriterResponseData) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public long getTotalLength() {
         long total = 0;
-        for (Iterator it = dataStreamList.iterator(); it.hasNext(); ) {
-            ResponseData responseData = (ResponseData) it.next();
+        for (int i = 0; i < dataStreamList.size(); i++) {
+            ResponseData responseData = (ResponseData) dataStreamList.get(i);
             long len = responseData.getLength();
             total = (total >= 0 && len > 0) ? total + len : -1;
         }
         return total;
     }
 
+    /**
+     * Returns true if all the data is already held in memory, so it can be sent by {@link #toByteBuffers()}.  That is
+     * the text of {@link PrintWriterResponseData} and the buffers of {@link ByteBufferResponseData}.
+     *
+     * @return true if the data can be gathered.
+     */
+    public boolean isGatherable() {
+        for (int i = 0; i < dataStreamList.size(); i++) {
+            Object data = dataStreamList.get(i);
+            if (!(data instanceof PrintWriterResponseData) && !(data instanceof ByteBufferResponseData)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns all of the data as ByteBuffers.  Only valid if {@link #isGatherable()} is true, and only until the
+     * list is recycled.
+     *
+     * @return the data of the response.
+     */
+    public ByteBuffer[] toByteBuffers() {
+        List buffers = new ArrayList();
+        for (int i = 0; i < dataStreamList.size(); i++) {
+            Object data = dataStreamList.get(i);
+            ByteBuffer[] views = (data instanceof ByteBufferResponseData)
+                    ? ((ByteBufferResponseData) data).toByteBuffers()
+                    : ((PrintWriterResponseData) data).toByteBuffers();
+            for (int j = 0; j < views.length; j++) {
+                buffers.add(views[j]);
+            }
+        }
+        return (ByteBuffer[]) buffers.toArray(new ByteBuffer[buffers.size()]);
+    }
+
     public void sendData(OutputStream os, boolean isChunkedOk) throws IOException {
+        ChunkedEncodingOutputStream chunked = null;
         try {
             if (getTotalLength() < 0 && isChunkedOk) {
-                os = new ChunkedEncodingOutputStream(os);
+                chunked = new ChunkedEncodingOutputStream(os);
+                os = chunked;
             }
-            for (Iterator it = dataStreamList.iterator(); it.hasNext(); ) {
-                ResponseData responseData = (ResponseData) it.next();
+            for (int i = 0; i < dataStreamList.size(); i++) {
+                ResponseData responseData = (ResponseData) dataStreamList.get(i);
                 responseData.send(os);
             }
+            if (chunked != null) {
+                chunked.finish();
+            }
         } finally {
-            dataStreamList.clear();
+            recycle();
             os.flush();
-            os.close();
         }
     }
 
+    /**
+     * Throws away the data, closing each piece of it.
+     */
     public void reset() {
+        for (int i = 0; i < dataStreamList.size(); i++) {
+            ResponseData data = (ResponseData) dataStreamList.get(i);
+            if (data instanceof PrintWriterResponseData) {
+                ((PrintWriterResponseData) data).reset();
+            }
+            data.close();
+        }
+        dataStreamList.clear();
+    }
+
+    /**
+     * Clears the list keeping any {@link PrintWriterResponseData} so its buffer can be reused by the next response
+     * on the same connection.  Unlike {@link #reset()} this must only be called once the response has been sent,
+     * since a handler may still hold the PrintWriter of a reset response.  Every piece of data is closed.
+     */
+    public void recycle() {
+        for (int i = 0; i < dataStreamList.size(); i++) {
+            ResponseData data = (ResponseData) dataStreamList.get(i);
+            data.close();
+            if (data instanceof PrintWriterResponseData && ((PrintWriterResponseData) data).reset()) {
+                spareWriters.add(data);
+            }
+        }
         dataStreamList.clear();
     }
 
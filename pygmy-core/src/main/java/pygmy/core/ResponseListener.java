@@ -5,9 +5,10 @@ import java.io.IOException;
 /**
  * Interface for monitoring progress of sending {@link HttpResponse}.  Class that implement this interface can listen
  * for all HttpResponses being sent to clients.  They also can veto or block certain responses during their transmissions
- * by throwing a java.lang.IOException in the {@link #notify(HttpRequest, int, int) notify} method.  The
- * {@link Server#setResponseListener(ResponseListener) setResponseListener} method must be called in order to set
- * the ResponseListener for a Server.
+ * by throwing a java.lang.IOException in the {@link #notify(HttpRequest, long, long) notify} method.  Listeners are
+ * added to a Server with {@link Server#addResponseListener(ResponseListener) addResponseListener}, or by naming them in
+ * the <i>response-listener</i> configuration property as a space or comma separated list.  A listener that also
+ * implements {@link java.io.Closeable} is closed when the server shuts down.
  */
 public interface ResponseListener {
 
@@ -19,15 +20,16 @@ public interface ResponseListener {
     public void startTransfer(HttpRequest request);
 
     /**
-     * This method is called at regular intervals to notify the progress of a HttpResponse transmission.  The number of
-     * time this method is called depends on how much data is being set to the client.  It will be called at least once.
+     * This method is called at regular intervals to notify the progress of a HttpResponse transmission.  It is called
+     * every time another <i>notify.interval</i> bytes of the body have been sent, and once more when the body is
+     * complete, so it will be called at least once.
      *
      * @param request     the request that is being responded to.
      * @param bytesSent   the amount of data sent so far in bytes.  Always be zero or greater.
      * @param totalLength the total length of the data being sent in bytes.  Can be -1 for an unknown total.
      * @throws IOException throws an IOException if a ResponseListener wishes to interrupt the transmission.
      */
-    public void notify(HttpRequest request, int bytesSent, int totalLength) throws IOException;
+    public void notify(HttpRequest request, long bytesSent, long totalLength) throws IOException;
 
     /**
      * This method is called once the transmission of the HttpResponse has concluded.
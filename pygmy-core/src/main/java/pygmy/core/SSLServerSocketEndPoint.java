@@ -63,6 +63,10 @@ public class SSLServerSocketEndPoint extends ServerSocketEndPoint {
         return "https";
     }
 
+    protected boolean supportsChannels() {
+        return false;
+    }
+
     protected ServerSocket createSocket(int port) throws IOException {
         ServerSocket serverSocket = super.createSocket(port);
         String cipherSuites = CIPHERS_OPTION.getProperty(server, getName());
@@ -88,6 +88,13 @@ import java.util.logging.LogManager;
  * <tr class="row"><td>&lt;handler name&gt;.class</td><td>None</td><td>Yes</td></tr>
  * <tr class="altrow"><td>&lt;endpoint name&gt;.class</td><td>None</td><td>iff endpoints param is defined</td></tr>
  * <tr class="row"><td>threadpool.size</td><td>5</td><td>No</td></tr>
+ * <tr class="altrow"><td>bufferpool.size</td><td>64</td><td>No</td></tr>
+ * <tr class="row"><td>bufferpool.direct</td><td>false</td><td>No</td></tr>
+ * <tr class="altrow"><td>bufferpool.debug</td><td>false</td><td>No</td></tr>
+ * <tr class="row"><td>response-listener</td><td>None</td><td>No</td></tr>
+ * <tr class="altrow"><td>&lt;response-listener name&gt;.class</td><td>None</td><td>iff response-listener param is defined</td></tr>
+ * <tr class="row"><td>notify.interval</td><td>65536</td><td>No</td></tr>
+ * <tr class="altrow"><td>throttle.*</td><td>None</td><td>No, see {@link BandwidthThrottle}</td></tr>
  * </table>
  */
 @Slf4j
@@ -96,8 +103,13 @@ public class Server implements Runnable {
     Properties config = new ChainableProperties();
     HashMap endpoints = new HashMap();
     Handler handler = null;
-    ResponseListener responseListener = null;
+    MulticastResponseListener responseListeners = new MulticastResponseListener();
+    BandwidthThrottle throttle;
+    long notifyInterval = HttpResponse.DEFAULT_NOTIFY_INTERVAL;
     ThreadPool threadPool;
+    BufferPool bufferPool;
+    ServerMetrics metrics = new ServerMetrics();
+    ServerMetrics.HandlerMetrics handlerMetrics;
     public static final String PYGMY_SERVER_VERSION = "v0.4.3";
 
     private static final String CLAZZ = ".class";
@@ -250,6 +262,8 @@ public class Server implements Runnable {
         log.debug("Starting Pygmy Server ({})", PYGMY_SERVER_VERSION);
         Runtime.getRuntime().addShutdownHook(new Thread(this, "PygmyShutdown"));
         initializeThreads();
+        initializeBuffers();
+        initializeResponseListener();
         initializeHandler();
         if (handler == null) {
             return;
@@ -278,17 +292,54 @@ public class Server implements Runnable {
 
     private void initializeThreads() {
         try {
-            threadPool = new ThreadPool(Integer.parseInt(config.getProperty("threadpool.size", "5")));
+            threadPool = new ThreadPool(Integer.parseInt(config.getProperty("threadpool.size", "5")), metrics.getQueueWait());
         } catch (NumberFormatException e) {
             log.warn("threadpool.size was not a number using default of 5");
-            threadPool = new ThreadPool(5);
+            threadPool = new ThreadPool(5, metrics.getQueueWait());
         }
     }
 
+    private void initializeBuffers() {
+        int size = 64;
+        try {
+            size = Integer.parseInt(config.getProperty("bufferpool.size", "64"));
+        } catch (NumberFormatException e) {
+            log.warn("bufferpool.size was not a number using default of 64");
+        }
+        boolean direct = Boolean.valueOf(config.getProperty("bufferpool.direct", "false")).booleanValue();
+        boolean debug = Boolean.valueOf(config.getProperty("bufferpool.debug", "false")).booleanValue();
+        bufferPool = new BufferPool(size, direct, debug);
+    }
+
+    private void initializeResponseListener() {
+        try {
+            notifyInterval = Long.parseLong(config.getProperty("notify.interval", Long.toString(HttpResponse.DEFAULT_NOTIFY_INTERVAL)));
+        } catch (NumberFormatException e) {
+            log.warn("notify.interval was not a number using default of " + HttpResponse.DEFAULT_NOTIFY_INTERVAL);
+        }
+        String val = getProperty("response-listener");
+        if (val != null) {
+            StringTokenizer tokenizer = new StringTokenizer(val, " ,");
+            while (tokenizer.hasMoreTokens()) {
+                String listenerName = tokenizer.nextToken();
+                try {
+                    ResponseListener listener = (ResponseListener) constructPygmyObject(listenerName);
+                    if (listener != null) {
+                        addResponseListener(listener);
+                    }
+                } catch (ClassCastException e) {
+                    log.error(listenerName + " class does not implement the ResponseListener interface.", e);
+                }
+            }
+        }
+        throttle = BandwidthThrottle.create(config);
+    }
+
     protected void initializeHandler() {
         if (handler == null) {
             handler = (Handler) constructPygmyObject(getProperty("handler"));
         }
+        handlerMetrics = metrics.getHandlerMetrics(getProperty("handler"));
         handler.initialize(getProperty("handler"), this);
     }
 
@@ -384,6 +435,10 @@ public class Server implements Runnable {
                     currentEndPoint.shutdown(this);
                 }
             }
+            responseListeners.close();
+            if (bufferPool != null && bufferPool.isDebug()) {
+                bufferPool.reportLeaks();
+            }
         } finally {
             log.info("Pygmy Server ({}) shutdown complete.", PYGMY_SERVER_VERSION);
         }
@@ -398,7 +453,10 @@ public class Server implements Runnable {
      * @throws IOException
      */
     public boolean post(Request request, Response response) throws IOException {
-        return handler.handle(request, response);
+        if (handlerMetrics == null) {
+            return handler.handle(request, response);
+        }
+        return handlerMetrics.handle(handler, request, response);
     }
 
     /**
@@ -412,22 +470,79 @@ public class Server implements Runnable {
     }
 
     /**
-     * Returns the instance of the ResponseListener for this Server.
+     * Returns the server wide {@link BufferPool}.  EndPoints and Handlers should take their larger I/O buffers from
+     * here rather than allocating them per request.
+     *
+     * @return the BufferPool for this Server.
+     */
+    public synchronized BufferPool getBufferPool() {
+        if (bufferPool == null) {
+            initializeBuffers();
+        }
+        return bufferPool;
+    }
+
+    /**
+     * Returns the runtime measurements of this Server.  EndPoints update the connection counters and
+     * {@link pygmy.handlers.DefaultChainHandler} records the time spent in each handler.
      *
-     * @return the ResponseListener for this Server, or null if there is none.
+     * @return the ServerMetrics for this Server.
+     */
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns a ResponseListener that passes events to all of the ResponseListeners of this Server.
+     *
+     * @return the ResponseListeners for this Server, or null if there are none.
      */
     public ResponseListener getResponseListeners() {
-        return responseListener;
+        return responseListeners.isEmpty() ? null : responseListeners;
     }
 
     /**
-     * This sets the ResponseListener for entire server.  All replys being sent to any client will
-     * be notified to this instance.
+     * This sets the ResponseListener for entire server, replacing any listeners added before.  All replys being sent
+     * to any client will be notified to this instance.
      *
-     * @param listener the instance of a ResponseListener to use for this Server.
+     * @param listener the instance of a ResponseListener to use for this Server, or null for none.
      */
     public void setResponseListener(ResponseListener listener) {
-        this.responseListener = listener;
+        responseListeners.clear();
+        if (listener != null) {
+            responseListeners.add(listener);
+        }
+    }
+
+    /**
+     * Adds a ResponseListener for the entire server.  Listeners are notified in the order they were added.
+     *
+     * @param listener the ResponseListener to add.
+     */
+    public void addResponseListener(ResponseListener listener) {
+        responseListeners.add(listener);
+    }
+
+    public void removeResponseListener(ResponseListener listener) {
+        responseListeners.remove(listener);
+    }
+
+    /**
+     * The number of body bytes sent between progress notifications to the ResponseListeners.
+     *
+     * @return the notify interval in bytes.
+     */
+    public long getNotifyInterval() {
+        return notifyInterval;
+    }
+
+    /**
+     * Returns the throttle limiting the rate responses are sent at.
+     *
+     * @return the BandwidthThrottle, or null if no limits are configured.
+     */
+    public BandwidthThrottle getThrottle() {
+        return throttle;
     }
 
     public static void main(String[] args) throws IOException {
@@ -0,0 +1,213 @@
+package pygmy.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>
+ * Holds the runtime measurements of a {@link Server}: connection and request counters kept by the EndPoints, the time
+ * tasks wait in the {@link ThreadPool} queue, and a {@link HandlerMetrics} for every handler.  Everything is updated
+ * with lock free counters so it can always be left on.  Get the instance from {@link Server#getMetrics()}.
+ * </p>
+ */
+public class ServerMetrics {
+
+    private final long startTime = System.currentTimeMillis();
+    private final LongAdder acceptedConnections = new LongAdder();
+    private final AtomicInteger activeConnections = new AtomicInteger();
+    private final LongAdder requests = new LongAdder();
+    private final Histogram queueWait = new Histogram();
+    private final Map handlers = new ConcurrentHashMap();
+
+    public void connectionAccepted() {
+        acceptedConnections.increment();
+    }
+
+    public void connectionOpened() {
+        activeConnections.incrementAndGet();
+    }
+
+    public void connectionClosed() {
+        activeConnections.decrementAndGet();
+    }
+
+    public void requestReceived() {
+        requests.increment();
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getAcceptedConnections() {
+        return acceptedConnections.sum();
+    }
+
+    public int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    /**
+     * The nanoseconds tasks spent in the {@link ThreadPool} queue before a thread picked them up.
+     *
+     * @return the queue wait histogram.
+     */
+    public Histogram getQueueWait() {
+        return queueWait;
+    }
+
+    /**
+     * Returns the metrics of the named handler, creating them the first time.  Look them up once when the handler
+     * is initialized rather than on every request.
+     *
+     * @param handlerName the name of the handler.
+     * @return the metrics of the handler.
+     */
+    public HandlerMetrics getHandlerMetrics(String handlerName) {
+        HandlerMetrics metrics = (HandlerMetrics) handlers.get(handlerName);
+        if (metrics == null) {
+            HandlerMetrics created = new HandlerMetrics(handlerName);
+            metrics = (HandlerMetrics) ((ConcurrentHashMap) handlers).putIfAbsent(handlerName, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Returns the metrics of every handler sorted by handler name.
+     *
+     * @return a list of {@link HandlerMetrics}.
+     */
+    public List getAllHandlerMetrics() {
+        List names = new ArrayList(handlers.keySet());
+        Collections.sort(names);
+        List all = new ArrayList(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            all.add(handlers.get(names.get(i)));
+        }
+        return all;
+    }
+
+    /**
+     * The measurements of a single handler.  Each call to {@link Handler#handle} is recorded with the time it took,
+     * whether it handled the request and how many bytes of body it produced.  Handlers that share a limited resource
+     * between requests, like a pool of interpreters, also record how long requests waited for it.
+     */
+    public static class HandlerMetrics {
+        private final String name;
+        private final Histogram latency = new Histogram();
+        private final Histogram wait = new Histogram();
+        private final LongAdder handled = new LongAdder();
+        private final LongAdder passed = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder bytes = new LongAdder();
+
+        public HandlerMetrics(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Calls the handler and records how long it took, whether it handled the request, and the body bytes in the
+         * response afterwards.
+         *
+         * @param handler  the handler to call.
+         * @param request  the request.
+         * @param response the response.
+         * @return the result of {@link Handler#handle}.
+         * @throws IOException if the handler throws it.
+         */
+        public boolean handle(Handler handler, Request request, Response response) throws IOException {
+            long start = System.nanoTime();
+            boolean wasHandled = false;
+            boolean failed = true;
+            try {
+                wasHandled = handler.handle(request, response);
+                failed = false;
+                return wasHandled;
+            } finally {
+                long nanos = System.nanoTime() - start;
+                if (failed) {
+                    recordError(nanos);
+                } else {
+                    long bodyLength = (wasHandled && response instanceof HttpResponse) ? ((HttpResponse) response).getBodyLength() : 0;
+                    record(nanos, wasHandled, bodyLength);
+                }
+            }
+        }
+
+        /**
+         * Records one call of the handler.
+         *
+         * @param nanos      the time the call took.
+         * @param wasHandled true if the handler handled the request.
+         * @param bytesOut   the body bytes the handler produced.
+         */
+        public void record(long nanos, boolean wasHandled, long bytesOut) {
+            latency.record(nanos);
+            if (wasHandled) {
+                handled.increment();
+                if (bytesOut > 0) {
+                    bytes.add(bytesOut);
+                }
+            } else {
+                passed.increment();
+            }
+        }
+
+        /**
+         * Records a call of the handler that ended by throwing an exception.
+         *
+         * @param nanos the time the call took.
+         */
+        public void recordError(long nanos) {
+            latency.record(nanos);
+            errors.increment();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Histogram getLatency() {
+            return latency;
+        }
+
+        /**
+         * The nanoseconds requests waited for a resource the handler shares between them.  Only handlers that have
+         * such a resource record anything here.
+         *
+         * @return the wait histogram.
+         */
+        public Histogram getWait() {
+            return wait;
+        }
+
+        public long getHandled() {
+            return handled.sum();
+        }
+
+        public long getPassed() {
+            return passed.sum();
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        public long getBytes() {
+            return bytes.sum();
+        }
+    }
+}
@@ -5,8 +5,11 @@ import lombok.extern.slf4j.Slf4j;
 import javax.net.ServerSocketFactory;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.Properties;
 
 /**
@@ -18,6 +21,10 @@ import java.util.Properties;
  * <tr class="row"><td>port</td><td>The port the socket should listen on.</td><td>80</td><td>No</td></tr>
  * <tr class="altrow"><td>host</td><td>The ip or dns of the host adapter this socket should bind to.</td><td>None</td><td>No</td></tr>
  * <tr class="row"><td>resolveHostName</td><td>If the server should do a reverse DNS on the connections so the logs will show the DNS name of the client.</td><td>false</td><td>No</td></tr>
+ * <tr class="altrow"><td>useChannels</td><td>Accept connections through a ServerSocketChannel so responses can be sent with gathering writes.  Ignored by SSL endpoints.</td><td>true</td><td>No</td></tr>
+ * <tr class="row"><td>tcpNoDelay</td><td>Disable Nagle's algorithm (TCP_NODELAY) on client connections.</td><td>true</td><td>No</td></tr>
+ * <tr class="altrow"><td>sendBufferSize</td><td>The SO_SNDBUF size of client connections in bytes.</td><td>OS default</td><td>No</td></tr>
+ * <tr class="row"><td>receiveBufferSize</td><td>The SO_RCVBUF size of client connections in bytes.</td><td>OS default</td><td>No</td></tr>
  * </table>
  */
 @Slf4j
@@ -25,12 +32,20 @@ public class ServerSocketEndPoint implements EndPoint, Runnable {
 
     private static final ConfigOption PORT_OPTION = new ConfigOption("port", "80", "HTTP server port.");
     private static final ConfigOption RESOLVE_HOSTNAME_OPTION = new ConfigOption("resolveHostName", "false", "Resolve host names");
+    private static final ConfigOption USE_CHANNELS_OPTION = new ConfigOption("useChannels", "true", "Accept connections through a ServerSocketChannel.");
+    private static final ConfigOption TCP_NODELAY_OPTION = new ConfigOption("tcpNoDelay", "true", "Set TCP_NODELAY on client connections.");
+    private static final ConfigOption SEND_BUFFER_OPTION = new ConfigOption("sendBufferSize", false, "SO_SNDBUF size of client connections.");
+    private static final ConfigOption RECEIVE_BUFFER_OPTION = new ConfigOption("receiveBufferSize", false, "SO_RCVBUF size of client connections.");
 
     protected ServerSocketFactory factory;
     protected ServerSocket socket;
     protected Server server;
     protected String endpointName;
     protected boolean resolveHostName;
+    protected boolean useChannels;
+    protected boolean tcpNoDelay;
+    protected int sendBufferSize = -1;
+    protected int receiveBufferSize = -1;
 
     public ServerSocketEndPoint() {
         factory = ServerSocketFactory.getDefault();
@@ -40,6 +55,18 @@ public class ServerSocketEndPoint implements EndPoint, Runnable {
         this.endpointName = name;
         this.server = server;
         resolveHostName = RESOLVE_HOSTNAME_OPTION.getBoolean(server, endpointName).booleanValue();
+        useChannels = USE_CHANNELS_OPTION.getBoolean(server, endpointName).booleanValue();
+        tcpNoDelay = TCP_NODELAY_OPTION.getBoolean(server, endpointName).booleanValue();
+        try {
+            if (SEND_BUFFER_OPTION.getProperty(server, endpointName) != null) {
+                sendBufferSize = SEND_BUFFER_OPTION.getInteger(server, endpointName).intValue();
+            }
+            if (RECEIVE_BUFFER_OPTION.getProperty(server, endpointName) != null) {
+                receiveBufferSize = RECEIVE_BUFFER_OPTION.getInteger(server, endpointName).intValue();
+            }
+        } catch (NumberFormatException e) {
+            log.warn("Socket buffer size for {} was not a number.  Using the OS default.", endpointName);
+        }
     }
 
     public String getName() {
@@ -47,10 +74,39 @@ public class ServerSocketEndPoint implements EndPoint, Runnable {
     }
 
     protected ServerSocket createSocket(int port) throws IOException {
-        ServerSocket socket = factory.createServerSocket(port);
+        ServerSocket socket = (useChannels && supportsChannels()) ? ServerSocketChannel.open().socket() : factory.createServerSocket();
+        if (receiveBufferSize > 0) {
+            // must be set before bind for windows larger than 64K.
+            socket.setReceiveBufferSize(receiveBufferSize);
+        }
+        socket.bind(new InetSocketAddress(port));
         return socket;
     }
 
+    /**
+     * Returns true if the sockets this endpoint creates can be backed by channels.  Subclasses that create their
+     * sockets from a special factory (i.e. SSL) return false.
+     *
+     * @return true if channels can be used.
+     */
+    protected boolean supportsChannels() {
+        return true;
+    }
+
+    protected void configureClient(Socket client) {
+        try {
+            client.setTcpNoDelay(tcpNoDelay);
+            if (sendBufferSize > 0) {
+                client.setSendBufferSize(sendBufferSize);
+            }
+            if (receiveBufferSize > 0) {
+                client.setReceiveBufferSize(receiveBufferSize);
+            }
+        } catch (SocketException e) {
+            log.debug("Could not set socket options: {}", e.getMessage());
+        }
+    }
+
 
     public void start() {
         try {
@@ -70,8 +126,9 @@ public class ServerSocketEndPoint implements EndPoint, Runnable {
         try {
             while (true) {
                 Socket client = socket.accept();
-                Properties config = new ChainableProperties(server.getConfig());
-                Runnable runnable = createRunnable(client, config);
+                server.getMetrics().connectionAccepted();
+                configureClient(client);
+                Runnable runnable = createRunnable(client, server.getConfig());
                 if (resolveHostName) {
                     // after resolving, the host name appears Socket.toString.
                     InetAddress clientAddress = client.getInetAddress();
@@ -124,6 +124,7 @@ public class SingleThreadedHttpEndPoint implements EndPoint, Runnable {
     private void acceptNewClient(Selector selector, SelectionKey key) throws IOException {
         ServerSocketChannel serverChannel = (ServerSocketChannel) key.channel();
         SocketChannel channel = serverChannel.accept();
+        server.getMetrics().connectionAccepted();
         channel.configureBlocking(false);
         Client client = new Client(channel);
         client.out.source().register(selector, SelectionKey.OP_READ, client.getTransferToSocket());
@@ -3,16 +3,35 @@ package pygmy.core;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
 
 @Slf4j
 public class ThreadPool {
 
     private List<Thread> threads = new ArrayList<>();
-    private LinkedList queue = new LinkedList();
+    /**
+     * The queued tasks and the times they were queued at, in two rings that grow when full, so queueing a task
+     * allocates nothing once the rings are big enough.  Both are guarded by the lock on queue.
+     */
+    private final Object queue = new Object();
+    private Runnable[] tasks = new Runnable[16];
+    private long[] queuedAt = new long[16];
+    private int head;
+    private int size;
+    private Histogram queueWait;
 
     public ThreadPool(int numberOfThreads) {
+        this(numberOfThreads, null);
+    }
+
+    /**
+     * Creates the pool.
+     *
+     * @param numberOfThreads the number of threads in the pool.
+     * @param queueWait       records the nanoseconds each task waited in the queue, may be null.
+     */
+    public ThreadPool(int numberOfThreads, Histogram queueWait) {
+        this.queueWait = queueWait;
         for (int i = 0; i < numberOfThreads; i++) {
             log.debug("Creating thread " + i);
             PooledThread thread = new PooledThread("Pooled Thread " + i);
@@ -23,12 +42,32 @@ public class ThreadPool {
 
     public void execute(Runnable runnable) {
         log.trace("Queueing runnable in thread pool.");
+        long now = (queueWait != null) ? System.nanoTime() : 0;
         synchronized (queue) {
-            queue.add(runnable);
+            if (size == tasks.length) {
+                grow();
+            }
+            int tail = (head + size) & (tasks.length - 1);
+            tasks[tail] = runnable;
+            queuedAt[tail] = now;
+            size++;
             queue.notify();
         }
     }
 
+    private void grow() {
+        Runnable[] grownTasks = new Runnable[tasks.length * 2];
+        long[] grownQueuedAt = new long[tasks.length * 2];
+        for (int i = 0; i < size; i++) {
+            int index = (head + i) & (tasks.length - 1);
+            grownTasks[i] = tasks[index];
+            grownQueuedAt[i] = queuedAt[index];
+        }
+        tasks = grownTasks;
+        queuedAt = grownQueuedAt;
+        head = 0;
+    }
+
     public void shutdown() {
         for (int i = 0; i < threads.size(); i++) {
             Thread thread = (Thread) threads.get(i);
@@ -70,20 +109,29 @@ public class ThreadPool {
 
         private void waitForTask() throws InterruptedException {
             synchronized (queue) {
-                if (queue.isEmpty()) {
+                if (size == 0) {
                     queue.wait();
                 }
             }
         }
 
         private Runnable retrieveTask() {
-            Runnable runnable = null;
+            Runnable task;
+            long taskQueuedAt;
             synchronized (queue) {
-                if (!queue.isEmpty()) {
-                    runnable = (Runnable) queue.removeFirst();
+                if (size == 0) {
+                    return null;
                 }
+                task = tasks[head];
+                taskQueuedAt = queuedAt[head];
+                tasks[head] = null;
+                head = (head + 1) & (tasks.length - 1);
+                size--;
+            }
+            if (queueWait != null) {
+                queueWait.record(System.nanoTime() - taskQueuedAt);
             }
-            return runnable;
+            return task;
         }
     }
 }
@@ -0,0 +1,84 @@
+package pygmy.core;
+
+/**
+ * <p>
+ * A token bucket.  Tokens are added at a fixed rate per second up to the capacity of the bucket, and taken out as
+ * they are used.  There is no timer: the tokens earned since the last call are added whenever the bucket is used, so
+ * an idle bucket costs nothing.
+ * </p>
+ * <p>
+ * {@link #tryAcquire(long)} is for callers that refuse work when there aren't enough tokens.  {@link #reserve(long)}
+ * is for callers that want to wait: it always takes the tokens, letting the bucket go into debt, and returns how long
+ * the caller should wait for the debt to be paid off.  The caller waits outside of the bucket's lock.
+ * </p>
+ */
+public class TokenBucket {
+
+    private static final double NANOS_PER_SECOND = 1000000000.0;
+
+    private final double tokensPerNano;
+    private final long capacity;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Creates a full bucket.
+     *
+     * @param ratePerSecond the number of tokens added every second.
+     * @param capacity      the most tokens the bucket holds, which is the largest burst allowed.
+     */
+    public TokenBucket(long ratePerSecond, long capacity) {
+        this.tokensPerNano = ratePerSecond / NANOS_PER_SECOND;
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Takes the tokens if there are enough of them.
+     *
+     * @param count the number of tokens wanted.
+     * @return true if the tokens were taken.
+     */
+    public synchronized boolean tryAcquire(long count) {
+        refill();
+        if (tokens >= count) {
+            tokens -= count;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Takes the tokens even if there aren't enough of them.
+     *
+     * @param count the number of tokens taken.
+     * @return the nanoseconds the caller should wait before using the tokens, 0 if they were available.
+     */
+    public synchronized long reserve(long count) {
+        refill();
+        tokens -= count;
+        return (tokens >= 0) ? 0 : (long) Math.ceil(-tokens / tokensPerNano);
+    }
+
+    /**
+     * Returns how long until the given number of tokens will be available.
+     *
+     * @param count the number of tokens.
+     * @return the nanoseconds until that many tokens are in the bucket, 0 if they already are.
+     */
+    public synchronized long nanosUntilAvailable(long count) {
+        refill();
+        return (tokens >= count) ? 0 : (long) Math.ceil((count - tokens) / tokensPerNano);
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+    }
+}
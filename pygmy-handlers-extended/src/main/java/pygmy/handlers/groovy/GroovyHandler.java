@@ -1,52 +1,96 @@
 package pygmy.handlers.groovy;
 
 import groovy.lang.Binding;
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.GroovyCodeSource;
 import groovy.lang.GroovyShell;
+import groovy.lang.GroovySystem;
+import groovy.lang.Script;
 import lombok.extern.slf4j.Slf4j;
+import org.codehaus.groovy.runtime.InvokerHelper;
 import pygmy.core.*;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
+import java.net.URLDecoder;
+import java.nio.file.*;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
 
+/**
+ * <p>
+ * Runs Groovy scripts in <i>script-dir</i> for urls that end in .groovy.  The script gets the request and response
+ * as the variables <i>request</i> and <i>response</i>.  Each script is compiled once into a Script class through a
+ * GroovyClassLoader shared by the handler, and every request runs a new instance of the class with its own Binding,
+ * so requests never see each other's variables.  The script's modification time is checked at most every
+ * <i>reload-interval</i> milliseconds and the script is compiled again when it changes.  The class of the old version
+ * is dropped from the class loader, so editing scripts doesn't fill up the memory with classes.  With
+ * <i>precompile</i> set every script in the directory is compiled when the server starts, so the first request
+ * doesn't have to wait for it.
+ * </p>
+ *
+ * <table class="inner">
+ * <tr class="header"><td>Parameter Name</td><td>Explanation</td><td>Default Value</td><td>Required</td></tr>
+ * <tr class="row"><td>script-dir</td><td>The directory where scripts are located.</td><td>None</td><td>Yes</td></tr>
+ * <tr class="altrow"><td>reload-interval</td><td>Milliseconds between checks of a script for changes.</td><td>1000</td><td>No</td></tr>
+ * <tr class="row"><td>precompile</td><td>Compile all the scripts when the server starts.</td><td>true</td><td>No</td></tr>
+ * </table>
+ */
 @Slf4j
 public class GroovyHandler extends AbstractHandler {
 
     public static final ConfigOption SCRIPT_DIRECTORY_OPTION = new ConfigOption("script-dir", true, "The directory where scripts are located.");
+    public static final ConfigOption RELOAD_INTERVAL_OPTION = new ConfigOption("reload-interval", "1000", "Milliseconds between checks of a script for changes.");
+    public static final ConfigOption PRECOMPILE_OPTION = new ConfigOption("precompile", "true", "Compile all the scripts when the server starts.");
 
     String groovyDir;
+    private Path root;
+    private long reloadInterval;
+    private ScriptClassLoader loader;
+    private final Map scripts = new ConcurrentHashMap();
 
     public boolean initialize(String handlerName, Server server) {
         super.initialize(handlerName, server);
         groovyDir = SCRIPT_DIRECTORY_OPTION.getProperty(server, handlerName);
+        root = Paths.get(groovyDir).toAbsolutePath().normalize();
+        try {
+            reloadInterval = Long.parseLong(RELOAD_INTERVAL_OPTION.getProperty(server, handlerName));
+        } catch (NumberFormatException e) {
+            log.warn(handlerName + " reload-interval was not a number using default of 1000");
+            reloadInterval = 1000;
+        }
+        loader = new ScriptClassLoader(getClass().getClassLoader());
+        if (PRECOMPILE_OPTION.getBoolean(server, handlerName).booleanValue()) {
+            precompile();
+        }
         return true;
     }
 
+    public boolean shutdown(Server server) {
+        for (Iterator i = scripts.values().iterator(); i.hasNext(); ) {
+            ((CompiledScript) i.next()).discard(loader);
+        }
+        scripts.clear();
+        return super.shutdown(server);
+    }
+
     protected boolean handleBody(HttpRequest request, HttpResponse response) throws IOException {
         if (request.getUrl().endsWith(".groovy")) {
             if (log.isInfoEnabled()) {
                 log.info("Executing script: " + request.getUrl());
             }
-            Binding binding = createScriptContext(request, response);
-
             try {
-                GroovyShell shell = new GroovyShell(binding);
-                File groovyScript = Http.translatePath(groovyDir, request.getUrl());
-                if (groovyScript.exists()) {
-                    shell.evaluate(groovyScript.getAbsolutePath());
+                Path groovyScript = translatePath(request.getUrl());
+                if (groovyScript != null && Files.isRegularFile(groovyScript)) {
+                    Script script = InvokerHelper.createScript(getScriptClass(groovyScript), createScriptContext(request, response));
+                    script.run();
                 } else {
                     response.sendError(HttpURLConnection.HTTP_NOT_FOUND, request.getUrl() + " not found.");
                 }
-            }
-//            catch (ClassNotFoundException e) {
-//                log.error( e.getMessage(), e );
-//                response.sendError( HttpURLConnection.HTTP_INTERNAL_ERROR, "Script error", e);
-//            }
-//            catch (SyntaxException e) {
-//                log.error( e.getMessage(), e );
-//                response.sendError( HttpURLConnection.HTTP_INTERNAL_ERROR, "Script error", e);
-//            }
-            catch (Exception e) {
+            } catch (Exception e) {
                 log.error(e.getMessage(), e);
                 response.sendError(HttpURLConnection.HTTP_INTERNAL_ERROR, "Script error", e);
             }
@@ -62,4 +106,128 @@ public class GroovyHandler extends AbstractHandler {
         binding.setVariable("response", response);
         return binding;
     }
+
+    private Path translatePath(String url) throws UnsupportedEncodingException {
+        String name = URLDecoder.decode(url, "UTF-8");
+        while (name.startsWith("/")) {
+            name = name.substring(1);
+        }
+        try {
+            Path path = root.resolve(name).normalize();
+            return path.startsWith(root) ? path : null;
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the compiled class of the script, compiling it if it hasn't been or it has changed since.
+     */
+    private Class getScriptClass(Path path) throws IOException {
+        CompiledScript compiled = (CompiledScript) scripts.get(path);
+        if (compiled == null) {
+            CompiledScript created = new CompiledScript(path);
+            compiled = (CompiledScript) ((ConcurrentHashMap) scripts).putIfAbsent(path, created);
+            if (compiled == null) {
+                compiled = created;
+            }
+        }
+        return compiled.getScriptClass(loader, reloadInterval);
+    }
+
+    private void precompile() {
+        long start = System.currentTimeMillis();
+        int count = 0;
+        try (Stream files = Files.walk(root)) {
+            for (Iterator i = files.iterator(); i.hasNext(); ) {
+                Path path = (Path) i.next();
+                if (path.toString().endsWith(".groovy") && Files.isRegularFile(path)) {
+                    try {
+                        getScriptClass(path);
+                        count++;
+                    } catch (Exception e) {
+                        log.warn(handlerName + " could not compile " + path + ": " + e.getMessage());
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.warn(handlerName + " could not list the scripts in " + root + ": " + e.getMessage());
+        }
+        log.info(handlerName + " compiled " + count + " scripts in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * A script and the class it was last compiled into.  Compiling is synchronized so a changed script is only
+     * compiled once however many requests are waiting for it.
+     */
+    private static class CompiledScript {
+        private final Path path;
+        private volatile Class scriptClass;
+        private volatile long nextCheck;
+        private long lastModified;
+
+        CompiledScript(Path path) {
+            this.path = path;
+        }
+
+        Class getScriptClass(ScriptClassLoader loader, long reloadInterval) throws IOException {
+            Class current = scriptClass;
+            if (current != null && System.currentTimeMillis() < nextCheck) {
+                return current;
+            }
+            synchronized (this) {
+                long modified = Files.getLastModifiedTime(path).toMillis();
+                if (scriptClass == null || modified != lastModified) {
+                    Class compiled = loader.compile(path);
+                    discard(loader);
+                    scriptClass = compiled;
+                    lastModified = modified;
+                }
+                nextCheck = System.currentTimeMillis() + reloadInterval;
+                return scriptClass;
+            }
+        }
+
+        void discard(ScriptClassLoader loader) {
+            Class old = scriptClass;
+            if (old != null) {
+                loader.forget(old);
+                scriptClass = null;
+            }
+        }
+    }
+
+    /**
+     * Compiles scripts without keeping their source, and lets go of the classes of scripts that were replaced.  Each
+     * script gets a class name of its own, since scripts in different directories may have the same file name.
+     */
+    private static class ScriptClassLoader extends GroovyClassLoader {
+        private int nextId;
+
+        ScriptClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class compile(Path path) throws IOException {
+            String text = new String(Files.readAllBytes(path), "UTF-8");
+            String fileName = path.getFileName().toString();
+            StringBuffer name = new StringBuffer();
+            for (int i = 0; i < fileName.length() - ".groovy".length(); i++) {
+                char c = fileName.charAt(i);
+                name.append(Character.isJavaIdentifierPart(c) ? c : '_');
+            }
+            synchronized (this) {
+                name.append("_").append(nextId++);
+            }
+            if (!Character.isJavaIdentifierStart(name.charAt(0))) {
+                name.insert(0, '_');
+            }
+            return parseClass(new GroovyCodeSource(text, name.toString(), GroovyShell.DEFAULT_CODE_BASE), false);
+        }
+
+        void forget(Class scriptClass) {
+            removeClassCacheEntry(scriptClass.getName());
+            GroovySystem.getMetaClassRegistry().removeMetaClass(scriptClass);
+        }
+    }
 }
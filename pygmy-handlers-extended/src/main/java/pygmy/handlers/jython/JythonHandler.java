@@ -1,46 +1,113 @@
 package pygmy.handlers.jython;
 
 import lombok.extern.slf4j.Slf4j;
+import org.python.core.CompileMode;
+import org.python.core.CompilerFlags;
+import org.python.core.Py;
+import org.python.core.PyCode;
 import org.python.core.PyException;
+import org.python.core.PyString;
+import org.python.core.PyStringMap;
 import org.python.core.PySystemState;
 import org.python.util.PythonInterpreter;
 import pygmy.core.*;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 import java.io.Writer;
 import java.net.HttpURLConnection;
+import java.net.URLDecoder;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 
+/**
+ * <p>
+ * Runs Jython scripts in <i>script-dir</i> for urls that end in .py.  The script gets the request and response as the
+ * variables <i>request</i> and <i>response</i>.  A PythonInterpreter can only run one script at a time, so the handler
+ * keeps a pool of up to <i>pool-size</i> interpreters, each with its own system state, and every request borrows one
+ * for as long as its script runs.  A request that can't get an interpreter within <i>pool-timeout</i> milliseconds is
+ * answered with 503.  Each run starts with an empty set of variables, so requests never see each other's variables,
+ * while modules imported by a script stay loaded in the interpreter.  The time requests wait for an interpreter is
+ * recorded in the handler's {@link ServerMetrics.HandlerMetrics} and published by the MetricsHandler.
+ * </p>
+ * <p>
+ * Each script is compiled once and the code is shared by all the interpreters.  The script's modification time is
+ * checked at most every <i>reload-interval</i> milliseconds and the script is compiled again when it changes.
+ * </p>
+ *
+ * <table class="inner">
+ * <tr class="header"><td>Parameter Name</td><td>Explanation</td><td>Default Value</td><td>Required</td></tr>
+ * <tr class="row"><td>script-dir</td><td>The directory where scripts are located.</td><td>None</td><td>Yes</td></tr>
+ * <tr class="altrow"><td>python.home</td><td>Home of the jython interpreter.</td><td>None</td><td>Yes</td></tr>
+ * <tr class="row"><td>python.path</td><td>Path used to resolve jython libaries.</td><td>None</td><td>Yes</td></tr>
+ * <tr class="altrow"><td>pool-size</td><td>The most interpreters running scripts at the same time.</td><td>5</td><td>No</td></tr>
+ * <tr class="row"><td>pool-timeout</td><td>Milliseconds a request waits for an interpreter.</td><td>5000</td><td>No</td></tr>
+ * <tr class="altrow"><td>reload-interval</td><td>Milliseconds between checks of a script for changes.</td><td>1000</td><td>No</td></tr>
+ * </table>
+ */
 @Slf4j
 public class JythonHandler extends AbstractHandler {
 
     private static final ConfigOption SCRIPT_DIRECTORY_OPTION = new ConfigOption("script-dir", true, "Location of the scripts you want to run.");
+    private static final ConfigOption POOL_SIZE_OPTION = new ConfigOption("pool-size", "5", "The most interpreters running scripts at the same time.");
+    private static final ConfigOption POOL_TIMEOUT_OPTION = new ConfigOption("pool-timeout", "5000", "Milliseconds a request waits for an interpreter.");
+    private static final ConfigOption RELOAD_INTERVAL_OPTION = new ConfigOption("reload-interval", "1000", "Milliseconds between checks of a script for changes.");
 
 
     String pythonDir;
-    PythonInterpreter interpreter;
+    private Path root;
+    private int poolSize;
+    private long poolTimeout;
+    private long reloadInterval;
+    private BlockingQueue idle;
+    private final AtomicInteger created = new AtomicInteger();
+    private final Map scripts = new ConcurrentHashMap();
+    private Histogram poolWait;
     private static final ConfigOption PYTHON_HOME = new ConfigOption("python.home", true, "Home of the jython interpreter.");
     private static final ConfigOption PYTHON_PATH = new ConfigOption("python.path", true, "Path used to resolve jython libaries.");
 
     public boolean initialize(String handlerName, Server server) {
         super.initialize(handlerName, server);
         pythonDir = SCRIPT_DIRECTORY_OPTION.getProperty(server, handlerName);
+        root = Paths.get(pythonDir).toAbsolutePath().normalize();
+        try {
+            poolSize = Math.max(1, Integer.parseInt(POOL_SIZE_OPTION.getProperty(server, handlerName)));
+            poolTimeout = Long.parseLong(POOL_TIMEOUT_OPTION.getProperty(server, handlerName));
+            reloadInterval = Long.parseLong(RELOAD_INTERVAL_OPTION.getProperty(server, handlerName));
+        } catch (NumberFormatException e) {
+            log.error(handlerName + " pool-size, pool-timeout and reload-interval must be numbers.");
+            return false;
+        }
+        idle = new ArrayBlockingQueue(poolSize);
+        poolWait = server.getMetrics().getHandlerMetrics(handlerName).getWait();
 
         Properties props = new Properties();
 
         putPythonProperty(PYTHON_HOME, props);
         putPythonProperty(PYTHON_PATH, props);
         PythonInterpreter.initialize(System.getProperties(), props, new String[0]);
-
-        interpreter = new PythonInterpreter(null, new PySystemState());
-        interpreter.setErr(new LogWriter(Level.SEVERE));
-        interpreter.setOut(new LogWriter(Level.INFO));
-//        PySystemState sys = Py.getSystemState();
-//        sys.path.append(new PyString(rootPath));
         return true;
     }
 
+    public boolean shutdown(Server server) {
+        for (PythonInterpreter interpreter = (PythonInterpreter) idle.poll(); interpreter != null; interpreter = (PythonInterpreter) idle.poll()) {
+            interpreter.cleanup();
+        }
+        scripts.clear();
+        return super.shutdown(server);
+    }
+
     private void putPythonProperty(ConfigOption option, Properties props) {
         if (System.getProperty(option.getName()) == null) {
             String pythonHome = option.getProperty(server, handlerName);
@@ -51,22 +118,145 @@ public class JythonHandler extends AbstractHandler {
 
     protected boolean handleBody(HttpRequest request, HttpResponse response) throws IOException {
         if (request.getUrl().endsWith(".py")) {
+            if (log.isInfoEnabled()) {
+                log.info("Executing script: " + request.getUrl());
+            }
+            Path script = translatePath(request.getUrl());
+            if (script == null || !Files.isRegularFile(script)) {
+                response.sendError(HttpURLConnection.HTTP_NOT_FOUND, request.getUrl() + " not found.");
+                return true;
+            }
+            PythonInterpreter interpreter = borrow();
+            if (interpreter == null) {
+                response.sendError(HttpURLConnection.HTTP_UNAVAILABLE, "No interpreter available.");
+                return true;
+            }
             try {
-                if (log.isInfoEnabled()) {
-                    log.info("Executing script: " + request.getUrl());
-                }
+                PyCode code = getCode(script);
+                PyStringMap locals = new PyStringMap();
+                locals.__setitem__("__name__", new PyString("__main__"));
+                locals.__setitem__("__file__", new PyString(script.toString()));
+                interpreter.setLocals(locals);
                 interpreter.set("request", request);
                 interpreter.set("response", response);
-                interpreter.execfile(Http.translatePath(pythonDir, request.getUrl()).getAbsolutePath());
+                interpreter.exec(code);
             } catch (PyException e) {
                 log.error(e.getMessage(), e);
                 response.sendError(HttpURLConnection.HTTP_INTERNAL_ERROR, "Script error", e);
+            } finally {
+                giveBack(interpreter);
             }
             return true;
         }
         return false;
     }
 
+    private Path translatePath(String url) throws UnsupportedEncodingException {
+        String name = URLDecoder.decode(url, "UTF-8");
+        while (name.startsWith("/")) {
+            name = name.substring(1);
+        }
+        try {
+            Path path = root.resolve(name).normalize();
+            return path.startsWith(root) ? path : null;
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Takes an idle interpreter, creates one if the pool isn't full yet, or waits for one to be given back.
+     *
+     * @return the interpreter, or null if none was given back within the pool-timeout.
+     */
+    private PythonInterpreter borrow() throws IOException {
+        long start = System.nanoTime();
+        try {
+            PythonInterpreter interpreter = (PythonInterpreter) idle.poll();
+            if (interpreter != null) {
+                return interpreter;
+            }
+            for (int count = created.get(); count < poolSize; count = created.get()) {
+                if (created.compareAndSet(count, count + 1)) {
+                    return createInterpreter();
+                }
+            }
+            return (PythonInterpreter) idle.poll(poolTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for an interpreter.");
+        } finally {
+            poolWait.record(System.nanoTime() - start);
+        }
+    }
+
+    private PythonInterpreter createInterpreter() {
+        try {
+            PythonInterpreter interpreter = new PythonInterpreter(null, new PySystemState());
+            interpreter.setErr(new LogWriter(Level.SEVERE));
+            interpreter.setOut(new LogWriter(Level.INFO));
+            log.debug("{} created interpreter {} of {}", handlerName, created.get(), poolSize);
+            return interpreter;
+        } catch (RuntimeException e) {
+            created.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private void giveBack(PythonInterpreter interpreter) {
+        // drop the request's variables so they can be collected while the interpreter is idle.
+        interpreter.setLocals(new PyStringMap());
+        idle.offer(interpreter);
+    }
+
+    /**
+     * Returns the compiled code of the script, compiling it if it hasn't been or it has changed since.
+     */
+    private PyCode getCode(Path path) throws IOException {
+        CompiledScript compiled = (CompiledScript) scripts.get(path);
+        if (compiled == null) {
+            CompiledScript created = new CompiledScript(path);
+            compiled = (CompiledScript) ((ConcurrentHashMap) scripts).putIfAbsent(path, created);
+            if (compiled == null) {
+                compiled = created;
+            }
+        }
+        return compiled.getCode(reloadInterval);
+    }
+
+    /**
+     * A script and the code it was last compiled into.  Compiling is synchronized so a changed script is only
+     * compiled once however many requests are waiting for it.
+     */
+    private static class CompiledScript {
+        private final Path path;
+        private volatile PyCode code;
+        private volatile long nextCheck;
+        private long lastModified;
+
+        CompiledScript(Path path) {
+            this.path = path;
+        }
+
+        PyCode getCode(long reloadInterval) throws IOException {
+            PyCode current = code;
+            if (current != null && System.currentTimeMillis() < nextCheck) {
+                return current;
+            }
+            synchronized (this) {
+                long modified = Files.getLastModifiedTime(path).toMillis();
+                if (code == null || modified != lastModified) {
+                    try (InputStream in = Files.newInputStream(path)) {
+                        code = Py.compile_flags(in, path.toString(), CompileMode.exec, new CompilerFlags());
+                    }
+                    lastModified = modified;
+                }
+                nextCheck = System.currentTimeMillis() + reloadInterval;
+                return code;
+            }
+        }
+    }
+
     public class LogWriter extends Writer {
         Level level;
         StringBuffer buf = new StringBuffer();
@@ -80,6 +270,10 @@ public class JythonHandler extends AbstractHandler {
         }
 
         public synchronized void flush() throws IOException {
+            // the interpreter flushes after every script, most of the time with nothing written.
+            if (buf.length() == 0) {
+                return;
+            }
             switch (level.getName()) {
                 case "SEVERE":
                     log.error(buf.toString());
@@ -98,7 +292,7 @@ public class JythonHandler extends AbstractHandler {
                 default:
                     log.debug(buf.toString());
             }
-            buf.delete(0, buf.length() - 1);
+            buf.setLength(0);
         }
 
         public void close() throws IOException {
@@ -2,14 +2,21 @@ package pygmy.handlers;
 
 import lombok.extern.slf4j.Slf4j;
 import pygmy.core.*;
-import sun.misc.BASE64Decoder;
-import sun.misc.BASE64Encoder;
 
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
 import java.io.*;
 import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * <p>
@@ -26,9 +33,21 @@ import java.util.Properties;
  * <tr class="row"><td>users</td><td>This the path to a file containing all the users and their passwords allowed to access this url.
  * To create a file you can run this class and hand it the file, username, and password to create.  <b>WARNING</b> do
  * not put this file in a place where it could be downloaded through this server.</td><td>None</td><td>Yes</td></tr>
+ * <tr class="altrow"><td>reload-interval</td><td>Seconds between checks of the users file for changes.</td><td>10</td><td>No</td></tr>
+ * <tr class="row"><td>cache-ttl</td><td>Milliseconds a verified Authorization header is accepted without checking the password again.  0 turns the cache off.</td><td>60000</td><td>No</td></tr>
+ * <tr class="altrow"><td>cache-size</td><td>The most verified Authorization headers remembered.</td><td>1000</td><td>No</td></tr>
  * </table>
  *
  * <p>
+ * Passwords are stored as PBKDF2 hashes with a random salt, which are deliberately slow to compute so a stolen users
+ * file is hard to crack.  To keep that cost off every request, an Authorization header that was verified is
+ * remembered for <i>cache-ttl</i> milliseconds by a SHA-256 hash of its value, and later requests with the same header
+ * are let through without decoding it or hashing the password.  Files written by older versions, which hold MD5
+ * hashes, are still accepted; run this class again for those users to upgrade them.  The users file's modification
+ * time is checked at most every <i>reload-interval</i> seconds and the users are read again when it changes, which
+ * also forgets every remembered header.
+ * </p>
+ * <p>
  * Here is the syntax for running this class to create a password file:
  * </p>
  * <div class="code">
@@ -41,23 +60,64 @@ import java.util.Properties;
 @Slf4j
 public class BasicWebAuthHandler extends AbstractHandler implements Handler {
 
-    private Properties users;
+    private static final String PBKDF2_PREFIX = "pbkdf2-sha256$";
+    private static final int PBKDF2_ITERATIONS = 100000;
+    private static final int SALT_LENGTH = 16;
+    private static final int HASH_LENGTH = 32;
+
+    private volatile Properties users;
+    private File usersFile;
+    private long reloadInterval;
+    private volatile long nextCheck;
+    private long lastModified;
+    private final AtomicBoolean reloading = new AtomicBoolean();
+    private long cacheTtl;
+    private VerifiedCache verified;
 
     public static final ConfigOption REALM_OPTION = new ConfigOption("realm", "", "The default realm to authenticate against.");
     public static final ConfigOption USERS_OPTION = new ConfigOption("users", true, "The file used to authenticate users.");
+    public static final ConfigOption RELOAD_INTERVAL_OPTION = new ConfigOption("reload-interval", "10", "Seconds between checks of the users file.");
+    public static final ConfigOption CACHE_TTL_OPTION = new ConfigOption("cache-ttl", "60000", "Milliseconds a verified Authorization header is remembered.");
+    public static final ConfigOption CACHE_SIZE_OPTION = new ConfigOption("cache-size", "1000", "The most verified Authorization headers remembered.");
 
     public boolean initialize(String handlerName, Server server) {
         super.initialize(handlerName, server);
-        this.users = new Properties();
+        usersFile = new File(USERS_OPTION.getProperty(server, handlerName));
+        int cacheSize = 1000;
+        try {
+            reloadInterval = RELOAD_INTERVAL_OPTION.getInteger(server, handlerName).intValue() * 1000L;
+            cacheTtl = Long.parseLong(CACHE_TTL_OPTION.getProperty(server, handlerName));
+            cacheSize = CACHE_SIZE_OPTION.getInteger(server, handlerName).intValue();
+        } catch (NumberFormatException e) {
+            log.warn(handlerName + " reload-interval, cache-ttl and cache-size must be numbers.  Using the defaults.");
+            reloadInterval = 10000;
+            cacheTtl = 60000;
+        }
+        verified = new VerifiedCache(cacheSize);
+        nextCheck = System.currentTimeMillis() + reloadInterval;
         return loadProperties();
     }
 
     private boolean loadProperties() {
         InputStream is = null;
         try {
-            is = new BufferedInputStream(new FileInputStream(USERS_OPTION.getProperty(server, handlerName)));
-            users.load(is);
+            long modified = usersFile.lastModified();
+            Properties loaded = new Properties();
+            is = new BufferedInputStream(new FileInputStream(usersFile));
+            loaded.load(is);
             is.close();
+            int legacy = 0;
+            for (Enumeration e = loaded.propertyNames(); e.hasMoreElements(); ) {
+                if (!loaded.getProperty((String) e.nextElement()).startsWith(PBKDF2_PREFIX)) {
+                    legacy++;
+                }
+            }
+            if (legacy > 0) {
+                log.warn(handlerName + " " + legacy + " users in " + usersFile + " have MD5 passwords, set their passwords again to upgrade them.");
+            }
+            lastModified = modified;
+            users = loaded;
+            verified.clear();
             return true;
         } catch (IOException e) {
             log.error("loadProperties failed due to IOException. {}", e.getMessage());
@@ -65,34 +125,105 @@ public class BasicWebAuthHandler extends AbstractHandler implements Handler {
         }
     }
 
+    private void reloadIfChanged() {
+        if (!reloading.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            nextCheck = System.currentTimeMillis() + reloadInterval;
+            if (usersFile.lastModified() != lastModified && loadProperties()) {
+                log.info(handlerName + " reloaded users from " + usersFile);
+            }
+        } finally {
+            reloading.set(false);
+        }
+    }
+
     protected boolean handleBody(HttpRequest request, HttpResponse response) throws IOException {
         String auth = request.getRequestHeader("Authorization");
         if (auth == null) {
             return askForAuthorization(request, response);
         }
-        int index = auth.indexOf(" ");
-        if (index < -1) {
-            return askForAuthorization(request, response);
+        if (System.currentTimeMillis() >= nextCheck) {
+            reloadIfChanged();
         }
-        auth = auth.substring(index + 1);
-        BASE64Decoder decoder = new BASE64Decoder();
-        auth = new String(decoder.decodeBuffer(auth));
-        String[] credentials = auth.split(":");
+        Properties current = users;
         try {
-            if (!users.containsKey(credentials[0]) || !isPasswordVerified(credentials)) {
+            ByteBuffer key = null;
+            if (cacheTtl > 0) {
+                key = ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(auth.getBytes("UTF-8")));
+                if (verified.contains(key, current)) {
+                    return false;
+                }
+            }
+            String[] credentials = decodeCredentials(auth);
+            if (credentials == null) {
+                return askForAuthorization(request, response);
+            }
+            String stored = current.getProperty(credentials[0]);
+            if (stored == null || !isPasswordVerified(credentials[1], stored)) {
                 log.error("Access denied for user " + credentials[0]);
                 return askForAuthorization(request, response);
             }
-        } catch (NoSuchAlgorithmException e) {
-            log.error("Authorization failed due to NoSuchAlgorithmException.", e);
+            if (key != null) {
+                verified.put(key, current, System.currentTimeMillis() + cacheTtl);
+            }
+        } catch (GeneralSecurityException e) {
+            log.error("Authorization failed due to " + e.getClass().getName() + ".", e);
             response.sendError(HttpURLConnection.HTTP_INTERNAL_ERROR, Http.getStatusPhrase(HttpURLConnection.HTTP_INTERNAL_ERROR));
             return true;
         }
         return false;
     }
 
-    private boolean isPasswordVerified(String[] credentials) throws NoSuchAlgorithmException {
-        return hashPassword(credentials[1]).equals(users.getProperty(credentials[0]));
+    /**
+     * @return the user name and password of a Basic Authorization header, or null if it isn't one.
+     */
+    private static String[] decodeCredentials(String auth) throws UnsupportedEncodingException {
+        int index = auth.indexOf(' ');
+        if (index < 0 || !"Basic".equalsIgnoreCase(auth.substring(0, index))) {
+            return null;
+        }
+        String decoded;
+        try {
+            decoded = new String(Base64.getDecoder().decode(auth.substring(index + 1).trim()), "UTF-8");
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        // the password may contain colons, the user name can't.
+        int colon = decoded.indexOf(':');
+        if (colon < 0) {
+            return null;
+        }
+        return new String[]{decoded.substring(0, colon), decoded.substring(colon + 1)};
+    }
+
+    private static boolean isPasswordVerified(String password, String stored) throws GeneralSecurityException, UnsupportedEncodingException {
+        if (!stored.startsWith(PBKDF2_PREFIX)) {
+            byte[] md5password = MessageDigest.getInstance("MD5").digest(password.getBytes());
+            return MessageDigest.isEqual(Base64.getEncoder().encodeToString(md5password).getBytes("UTF-8"), stored.getBytes("UTF-8"));
+        }
+        String[] fields = stored.substring(PBKDF2_PREFIX.length()).split("\\$");
+        if (fields.length != 3) {
+            return false;
+        }
+        try {
+            int iterations = Integer.parseInt(fields[0]);
+            byte[] salt = Base64.getDecoder().decode(fields[1]);
+            byte[] hash = Base64.getDecoder().decode(fields[2]);
+            return MessageDigest.isEqual(pbkdf2(password, salt, iterations, hash.length), hash);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations, int length) throws GeneralSecurityException {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, length * 8);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
     }
 
     private boolean askForAuthorization(HttpRequest request, HttpResponse response) {
@@ -103,14 +234,15 @@ public class BasicWebAuthHandler extends AbstractHandler implements Handler {
         return true;
     }
 
-    private static String hashPassword(String password) throws NoSuchAlgorithmException {
-        MessageDigest md5 = MessageDigest.getInstance("MD5");
-        byte[] md5password = md5.digest(password.getBytes());
-        BASE64Encoder encoder = new BASE64Encoder();
-        return encoder.encode(md5password);
+    private static String hashPassword(String password) throws GeneralSecurityException {
+        byte[] salt = new byte[SALT_LENGTH];
+        new SecureRandom().nextBytes(salt);
+        byte[] hash = pbkdf2(password, salt, PBKDF2_ITERATIONS, HASH_LENGTH);
+        Base64.Encoder encoder = Base64.getEncoder();
+        return PBKDF2_PREFIX + PBKDF2_ITERATIONS + "$" + encoder.encodeToString(salt) + "$" + encoder.encodeToString(hash);
     }
 
-    public static void main(String[] args) throws IOException, NoSuchAlgorithmException {
+    public static void main(String[] args) throws IOException, GeneralSecurityException {
         if (args.length < 3) {
             System.out.println("Usage: BasicWebAuthHandler <file> <user> <password>");
             return;
@@ -138,4 +270,54 @@ public class BasicWebAuthHandler extends AbstractHandler implements Handler {
     public boolean shutdown(Server server) {
         return false;
     }
+
+    /**
+     * The SHA-256 hashes of Authorization headers that were verified, in least recently used order.  An entry is only
+     * good until it expires and for the users it was verified against, so headers verified just before the users
+     * file was reloaded are not trusted afterwards.
+     */
+    private static class VerifiedCache {
+        private final int maxEntries;
+        private final LinkedHashMap entries = new LinkedHashMap(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry eldest) {
+                return size() > maxEntries;
+            }
+        };
+
+        VerifiedCache(int maxEntries) {
+            this.maxEntries = maxEntries;
+        }
+
+        synchronized boolean contains(ByteBuffer key, Properties users) {
+            Verified entry = (Verified) entries.get(key);
+            if (entry == null) {
+                return false;
+            }
+            if (entry.users != users || System.currentTimeMillis() >= entry.expires) {
+                entries.remove(key);
+                return false;
+            }
+            return true;
+        }
+
+        synchronized void put(ByteBuffer key, Properties users, long expires) {
+            if (maxEntries > 0) {
+                entries.put(key, new Verified(users, expires));
+            }
+        }
+
+        synchronized void clear() {
+            entries.clear();
+        }
+    }
+
+    private static class Verified {
+        final Properties users;
+        final long expires;
+
+        Verified(Properties users, long expires) {
+            this.users = users;
+            this.expires = expires;
+        }
+    }
 }
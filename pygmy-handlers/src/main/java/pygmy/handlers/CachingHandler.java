@@ -0,0 +1,575 @@
+package pygmy.handlers;
+
+import lombok.extern.slf4j.Slf4j;
+import pygmy.core.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.StringTokenizer;
+
+/**
+ * <p>
+ * A chain of handlers whose responses are cached.  It is configured like the {@link DefaultChainHandler}, and should
+ * wrap handlers that build the same response over and over, like scripts or directory listings.  The status, the
+ * headers and the body of GET responses are kept, and later GET and HEAD requests for the same url and query are
+ * answered from the cache without calling the chain.  Even a ttl of a fraction of a second takes most of the load
+ * off a busy page.  Only urls starting with <i>url-prefix</i> are cached, other requests go straight to the chain.
+ * </p>
+ * <p>
+ * Responses are cached for <i>ttl</i> milliseconds unless they say otherwise with the s-maxage or max-age directives
+ * of their Cache-Control header.  Responses with Cache-Control no-store, no-cache or private, with a Set-Cookie
+ * header, or with a status other than 200, 203, 301, 404 or 410 aren't cached, nor are streamed responses or ones
+ * whose length isn't known.  Requests with an Authorization header or with Cache-Control no-store bypass the cache,
+ * and requests with Cache-Control no-cache or max-age=0, or Pragma no-cache, build a fresh response which replaces
+ * the cached one.  A response is only cached under the request headers named in <i>vary</i>, so one whose Vary header
+ * names any other header, or *, isn't cached.
+ * </p>
+ * <p>
+ * For <i>stale-while-revalidate</i> milliseconds after it expires, or as long as the response's own
+ * stale-while-revalidate directive says, an entry is still served while a single background request on the server's
+ * thread pool builds a fresh one.  Bodies are kept outside the Java heap in direct buffers of pages of
+ * <i>page-size</i> bytes, up to <i>max-size</i> bytes in total, and are written to the connection straight from
+ * there.  When the cache is full the least recently used entries are evicted.  An entry being sent to a client when
+ * it is evicted keeps its pages until it has been sent.
+ * </p>
+ *
+ * <table class="inner">
+ * <tr class="header"><td>Parameter Name</td><td>Explanation</td><td>Default Value</td><td>Required</td></tr>
+ * <tr class="row"><td>chain</td><td>A space or comma seperated list of the names of the handlers within the chain.</td><td>None</td><td>Yes</td></tr>
+ * <tr class="altrow"><td>ttl</td><td>Milliseconds a response is cached unless it says otherwise.</td><td>1000</td><td>No</td></tr>
+ * <tr class="row"><td>stale-while-revalidate</td><td>Milliseconds an expired response is still served while it is refreshed.</td><td>0</td><td>No</td></tr>
+ * <tr class="altrow"><td>max-size</td><td>The most bytes of bodies that are cached.</td><td>67108864</td><td>No</td></tr>
+ * <tr class="row"><td>max-entry-size</td><td>The largest body in bytes that is cached.</td><td>1048576</td><td>No</td></tr>
+ * <tr class="altrow"><td>page-size</td><td>The size of the pages bodies are stored in.</td><td>4096</td><td>No</td></tr>
+ * <tr class="row"><td>vary</td><td>A space or comma seperated list of request headers that select different responses.</td><td>None</td><td>No</td></tr>
+ * </table>
+ */
+@Slf4j
+public class CachingHandler extends DefaultChainHandler {
+
+    public static final ConfigOption TTL_OPTION = new ConfigOption("ttl", "1000", "Milliseconds a response is cached unless it says otherwise.");
+    public static final ConfigOption STALE_OPTION = new ConfigOption("stale-while-revalidate", "0", "Milliseconds an expired response is still served while it is refreshed.");
+    public static final ConfigOption MAX_SIZE_OPTION = new ConfigOption("max-size", "67108864", "The most bytes of bodies that are cached.");
+    public static final ConfigOption MAX_ENTRY_SIZE_OPTION = new ConfigOption("max-entry-size", "1048576", "The largest body in bytes that is cached.");
+    public static final ConfigOption PAGE_SIZE_OPTION = new ConfigOption("page-size", "4096", "The size of the pages bodies are stored in.");
+    public static final ConfigOption VARY_OPTION = new ConfigOption("vary", false, "A list of request headers that select different responses.");
+
+    private static final int SLAB_SIZE = 1048576;
+
+    private long ttl;
+    private long staleWhileRevalidate;
+    private long maxEntrySize;
+    private String[] vary;
+    private Cache cache;
+
+    public boolean initialize(String handlerName, Server server) {
+        if (!super.initialize(handlerName, server)) {
+            return false;
+        }
+        long maxSize = 67108864;
+        int pageSize = 4096;
+        try {
+            ttl = Long.parseLong(TTL_OPTION.getProperty(server, handlerName));
+            staleWhileRevalidate = Long.parseLong(STALE_OPTION.getProperty(server, handlerName));
+            maxSize = Long.parseLong(MAX_SIZE_OPTION.getProperty(server, handlerName));
+            maxEntrySize = Long.parseLong(MAX_ENTRY_SIZE_OPTION.getProperty(server, handlerName));
+            pageSize = PAGE_SIZE_OPTION.getInteger(server, handlerName).intValue();
+        } catch (NumberFormatException e) {
+            log.error(handlerName + " ttl, stale-while-revalidate, max-size, max-entry-size and page-size must be numbers.");
+            return false;
+        }
+        List names = new ArrayList();
+        String varyList = VARY_OPTION.getProperty(server, handlerName);
+        if (varyList != null) {
+            StringTokenizer tokenizer = new StringTokenizer(varyList, " ,");
+            while (tokenizer.hasMoreTokens()) {
+                names.add(tokenizer.nextToken());
+            }
+        }
+        vary = (String[]) names.toArray(new String[names.size()]);
+        cache = new Cache(new Slabs(Math.max(64, pageSize), maxSize));
+        return true;
+    }
+
+    public boolean handle(Request aRequest, Response aResponse) throws IOException {
+        if (!(aRequest instanceof HttpRequest)) {
+            return super.handle(aRequest, aResponse);
+        }
+        HttpRequest request = (HttpRequest) aRequest;
+        HttpResponse response = (HttpResponse) aResponse;
+        boolean isGet = "GET".equals(request.getMethod());
+        if (!(isGet || "HEAD".equals(request.getMethod())) || !isRequestdForHandler(request)
+                || request.getRequestHeader("Authorization") != null) {
+            return super.handle(request, response);
+        }
+        String requestControl = request.getRequestHeader("Cache-Control");
+        if (hasDirective(requestControl, "no-store")) {
+            return super.handle(request, response);
+        }
+
+        String key = key(request);
+        long now = System.currentTimeMillis();
+        boolean revalidate = hasDirective(requestControl, "no-cache") || directive(requestControl, "max-age") == 0
+                || "no-cache".equals(request.getRequestHeader("Pragma"));
+        if (!revalidate) {
+            Entry entry = cache.acquire(key, now);
+            if (entry != null) {
+                if (entry.freshUntil <= now && cache.startRefresh(entry)) {
+                    refresh(key, request, entry);
+                }
+                send(entry, response, now);
+                return true;
+            }
+        }
+
+        boolean handled = super.handle(request, response);
+        if (handled && isGet) {
+            Entry entry = store(key, response, now);
+            if (entry != null) {
+                send(entry, response, now);
+            }
+        }
+        return handled;
+    }
+
+    public boolean shutdown(Server server) {
+        if (cache != null) {
+            cache.clear();
+        }
+        return super.shutdown(server);
+    }
+
+    private String key(HttpRequest request) {
+        StringBuffer key = new StringBuffer(request.getUrl());
+        if (request.getQuery() != null) {
+            key.append('?').append(request.getQuery());
+        }
+        for (int i = 0; i < vary.length; i++) {
+            key.append('\n').append(vary[i]).append(':').append(request.getRequestHeader(vary[i], ""));
+        }
+        return key.toString();
+    }
+
+    private void send(Entry entry, HttpResponse response, long now) {
+        response.setStatusCode(entry.status);
+        response.setMimeType(entry.contentType);
+        for (int i = 0; i < entry.headers.length; i += 2) {
+            response.addHeader(entry.headers[i], entry.headers[i + 1]);
+        }
+        response.addHeader("Age", Long.toString(Math.max(0, now - entry.created) / 1000));
+        response.sendResponse(new CachedBody(cache, entry, response.getBufferPool()));
+    }
+
+    /**
+     * Takes the response's body into the cache.
+     *
+     * @return the new entry with a reference taken for the response, or null if the response can't be cached.  The
+     * response is left untouched when it isn't cached, and has no body left when it is.
+     */
+    private Entry store(String key, HttpResponse response, long now) throws IOException {
+        long length = response.getContentLength();
+        if (response.isStreaming() || length < 0 || length > maxEntrySize || !isCacheableStatus(response.getStatusCode())
+                || response.getHeader("Set-Cookie") != null || !isCacheableVary(response.getHeader("Vary"))) {
+            return null;
+        }
+        String control = response.getHeader("Cache-Control");
+        if (hasDirective(control, "no-store") || hasDirective(control, "no-cache") || hasDirective(control, "private")) {
+            return null;
+        }
+        long maxAge = directive(control, "s-maxage");
+        if (maxAge < 0) {
+            maxAge = directive(control, "max-age");
+        }
+        long entryTtl = (maxAge >= 0) ? maxAge * 1000 : ttl;
+        long stale = directive(control, "stale-while-revalidate");
+        long entryStale = (stale >= 0) ? stale * 1000 : staleWhileRevalidate;
+        if (entryTtl <= 0 && entryStale <= 0) {
+            return null;
+        }
+
+        Entry entry = cache.allocate((int) length);
+        if (entry == null) {
+            return null;
+        }
+        // the charset is only added to the content type while the PrintWriter's text is still in the response.
+        entry.contentType = response.getContentType();
+        PagesOutputStream out = new PagesOutputStream(entry.body);
+        try {
+            response.drainBody(out);
+            if (!out.isFull()) {
+                throw new IOException("The body is shorter than its Content-Length.");
+            }
+        } catch (IOException e) {
+            cache.release(entry);
+            throw e;
+        }
+        entry.key = key;
+        entry.status = response.getStatusCode();
+        entry.headers = copyHeaders(response.getHeaders());
+        entry.created = now;
+        entry.freshUntil = now + entryTtl;
+        entry.staleUntil = entry.freshUntil + Math.max(0, entryStale);
+        cache.put(entry);
+        return entry;
+    }
+
+    /**
+     * Copies the headers a handler set as name, value pairs, leaving out the ones that only belong to one response.
+     */
+    static String[] copyHeaders(HttpHeaders headers) {
+        List copy = new ArrayList();
+        for (Iterator i = headers.iterator(); i.hasNext(); ) {
+            String name = (String) i.next();
+            if (!"Connection".equalsIgnoreCase(name) && !"Age".equalsIgnoreCase(name)) {
+                copy.add(name);
+                copy.add(headers.get(name));
+            }
+        }
+        return (String[]) copy.toArray(new String[copy.size()]);
+    }
+
+    private void refresh(final String key, HttpRequest original, final Entry stale) {
+        StringBuffer url = new StringBuffer(original.getUrl());
+        if (original.getQuery() != null) {
+            url.append('?').append(original.getQuery());
+        }
+        final HttpRequest request = new HttpRequest(url.toString(), server.getConfig(), true);
+        for (int i = 0; i < vary.length; i++) {
+            String value = original.getRequestHeader(vary[i]);
+            if (value != null) {
+                request.getHeaders().put(vary[i], value);
+            }
+        }
+        server.post(new Runnable() {
+            public void run() {
+                HttpResponse response = new HttpResponse(request, new ByteArrayOutputStream());
+                try {
+                    if (CachingHandler.super.handle(request, response)) {
+                        Entry entry = store(key, response, System.currentTimeMillis());
+                        if (entry != null) {
+                            cache.release(entry);
+                        }
+                    }
+                } catch (Exception e) {
+                    log.warn(handlerName + " could not refresh " + key + ": " + e.getMessage());
+                } finally {
+                    response.release();
+                    cache.endRefresh(stale);
+                }
+            }
+        });
+    }
+
+    private static boolean isCacheableStatus(int status) {
+        return status == HttpURLConnection.HTTP_OK || status == HttpURLConnection.HTTP_NOT_AUTHORITATIVE
+                || status == HttpURLConnection.HTTP_MOVED_PERM || status == HttpURLConnection.HTTP_NOT_FOUND
+                || status == HttpURLConnection.HTTP_GONE;
+    }
+
+    private boolean isCacheableVary(String responseVary) {
+        if (responseVary == null) {
+            return true;
+        }
+        StringTokenizer tokenizer = new StringTokenizer(responseVary, " ,");
+        while (tokenizer.hasMoreTokens()) {
+            String name = tokenizer.nextToken();
+            boolean found = false;
+            for (int i = 0; i < vary.length && !found; i++) {
+                found = vary[i].equalsIgnoreCase(name);
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the Cache-Control header has the directive, with or without a value.
+     */
+    static boolean hasDirective(String cacheControl, String name) {
+        if (cacheControl == null) {
+            return false;
+        }
+        StringTokenizer tokenizer = new StringTokenizer(cacheControl, ",");
+        while (tokenizer.hasMoreTokens()) {
+            String directive = tokenizer.nextToken().trim();
+            int equals = directive.indexOf('=');
+            if ((equals < 0 ? directive : directive.substring(0, equals).trim()).equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds the value of a directive like max-age=60.
+     *
+     * @return the value, or -1 if the directive isn't there or isn't a number.
+     */
+    private static long directive(String cacheControl, String name) {
+        if (cacheControl == null) {
+            return -1;
+        }
+        StringTokenizer tokenizer = new StringTokenizer(cacheControl, ",");
+        while (tokenizer.hasMoreTokens()) {
+            String directive = tokenizer.nextToken().trim();
+            int equals = directive.indexOf('=');
+            if (equals > 0 && directive.substring(0, equals).trim().equalsIgnoreCase(name)) {
+                try {
+                    return Long.parseLong(directive.substring(equals + 1).trim());
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * A cached response.  The body is written once before the entry is put in the cache and never changes after.
+     * references, evicted and refreshing are guarded by the cache.
+     */
+    private static class Entry {
+        String key;
+        int status;
+        String contentType;
+        String[] headers;
+        long created;
+        long freshUntil;
+        long staleUntil;
+        final int[] pages;
+        final ByteBuffer[] body;
+        int references;
+        boolean evicted;
+        boolean refreshing;
+
+        Entry(int[] pages, ByteBuffer[] body) {
+            this.pages = pages;
+            this.body = body;
+        }
+    }
+
+    /**
+     * The entries in least recently used order, and the pages their bodies are kept in.
+     */
+    private static class Cache {
+        private final Slabs slabs;
+        private final LinkedHashMap entries = new LinkedHashMap(16, 0.75f, true);
+
+        Cache(Slabs slabs) {
+            this.slabs = slabs;
+        }
+
+        /**
+         * Finds the entry for the key and takes a reference to it, if it is fresh or may still be served stale.
+         */
+        synchronized Entry acquire(String key, long now) {
+            Entry entry = (Entry) entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.staleUntil <= now) {
+                evict(entry);
+                entries.remove(key);
+                return null;
+            }
+            entry.references++;
+            return entry;
+        }
+
+        synchronized boolean startRefresh(Entry entry) {
+            if (entry.refreshing || entry.evicted) {
+                return false;
+            }
+            entry.refreshing = true;
+            return true;
+        }
+
+        synchronized void endRefresh(Entry entry) {
+            entry.refreshing = false;
+        }
+
+        /**
+         * Takes the pages for a body of the given length, evicting the least recently used entries if they are needed.
+         *
+         * @return a new entry that isn't in the cache yet with a reference taken, or null if there isn't enough room.
+         */
+        synchronized Entry allocate(int length) {
+            int needed = slabs.pagesFor(length);
+            for (Iterator i = entries.values().iterator(); slabs.available() < needed && i.hasNext(); ) {
+                Entry eldest = (Entry) i.next();
+                i.remove();
+                evict(eldest);
+            }
+            if (slabs.available() < needed) {
+                return null;
+            }
+            int[] pages = slabs.allocate(needed);
+            Entry entry = new Entry(pages, slabs.views(pages, length));
+            entry.references = 1;
+            return entry;
+        }
+
+        synchronized void put(Entry entry) {
+            Entry old = (Entry) entries.put(entry.key, entry);
+            if (old != null && old != entry) {
+                evict(old);
+            }
+        }
+
+        synchronized void release(Entry entry) {
+            entry.references--;
+            if (entry.references == 0 && (entry.evicted || entry.key == null)) {
+                slabs.free(entry.pages);
+            }
+        }
+
+        synchronized void clear() {
+            for (Iterator i = entries.values().iterator(); i.hasNext(); ) {
+                evict((Entry) i.next());
+            }
+            entries.clear();
+        }
+
+        private void evict(Entry entry) {
+            if (!entry.evicted) {
+                entry.evicted = true;
+                if (entry.references == 0) {
+                    slabs.free(entry.pages);
+                }
+            }
+        }
+    }
+
+    /**
+     * Direct buffers of slabSize bytes cut into pages.  Slabs are only allocated when their pages are first needed.
+     * Not thread safe, the cache does the locking.
+     */
+    private static class Slabs {
+        private final int pageSize;
+        private final int pagesPerSlab;
+        private final ByteBuffer[] slabs;
+        private final int[] free;
+        private int freeCount;
+        private int slabCount;
+
+        Slabs(int pageSize, long maxSize) {
+            this.pageSize = pageSize;
+            this.pagesPerSlab = Math.max(1, SLAB_SIZE / pageSize);
+            long slabBytes = (long) pagesPerSlab * pageSize;
+            this.slabs = new ByteBuffer[(int) Math.max(1, Math.min(Integer.MAX_VALUE / pagesPerSlab, maxSize / slabBytes))];
+            this.free = new int[slabs.length * pagesPerSlab];
+        }
+
+        int pagesFor(int length) {
+            return (length + pageSize - 1) / pageSize;
+        }
+
+        int available() {
+            return freeCount + (slabs.length - slabCount) * pagesPerSlab;
+        }
+
+        int[] allocate(int count) {
+            while (freeCount < count) {
+                slabs[slabCount] = ByteBuffer.allocateDirect(pagesPerSlab * pageSize);
+                for (int i = pagesPerSlab - 1; i >= 0; i--) {
+                    free[freeCount++] = slabCount * pagesPerSlab + i;
+                }
+                slabCount++;
+            }
+            int[] pages = new int[count];
+            for (int i = 0; i < count; i++) {
+                pages[i] = free[--freeCount];
+            }
+            return pages;
+        }
+
+        void free(int[] pages) {
+            for (int i = 0; i < pages.length; i++) {
+                free[freeCount++] = pages[i];
+            }
+        }
+
+        /**
+         * Returns a buffer for each page, the last one only as long as the body needs.
+         */
+        ByteBuffer[] views(int[] pages, int length) {
+            ByteBuffer[] views = new ByteBuffer[pages.length];
+            for (int i = 0; i < pages.length; i++) {
+                ByteBuffer page = slabs[pages[i] / pagesPerSlab].duplicate();
+                int start = (pages[i] % pagesPerSlab) * pageSize;
+                page.position(start);
+                page.limit(start + Math.min(pageSize, length - i * pageSize));
+                views[i] = page.slice();
+            }
+            return views;
+        }
+    }
+
+    /**
+     * Writes a body into the pages of a new entry.
+     */
+    private static class PagesOutputStream extends OutputStream {
+        private final ByteBuffer[] pages;
+        private int current;
+
+        PagesOutputStream(ByteBuffer[] body) {
+            pages = new ByteBuffer[body.length];
+            for (int i = 0; i < body.length; i++) {
+                pages[i] = body[i].duplicate();
+            }
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                while (current < pages.length && !pages[current].hasRemaining()) {
+                    current++;
+                }
+                if (current == pages.length) {
+                    throw new IOException("The body is longer than its Content-Length.");
+                }
+                int count = Math.min(len, pages[current].remaining());
+                pages[current].put(b, off, count);
+                off += count;
+                len -= count;
+            }
+        }
+
+        boolean isFull() {
+            return pages.length == 0 || !pages[pages.length - 1].hasRemaining();
+        }
+    }
+
+    /**
+     * Sends a cached body and gives the entry's reference back once the response is done with it.
+     */
+    private static class CachedBody extends ByteBufferResponseData {
+        private final Cache cache;
+        private Entry entry;
+
+        CachedBody(Cache cache, Entry entry, BufferPool bufferPool) {
+            super(entry.body, bufferPool);
+            this.cache = cache;
+            this.entry = entry;
+        }
+
+        public void close() {
+            if (entry != null) {
+                cache.release(entry);
+                entry = null;
+            }
+        }
+    }
+}
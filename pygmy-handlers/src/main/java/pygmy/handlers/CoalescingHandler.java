@@ -0,0 +1,199 @@
+package pygmy.handlers;
+
+import lombok.extern.slf4j.Slf4j;
+import pygmy.core.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * A chain of handlers that builds each response only once for requests that arrive at the same time.  It is
+ * configured like the {@link DefaultChainHandler}.  The first GET request for a url and query runs the chain, and
+ * identical requests that arrive while it is running wait for it and are sent a copy of its response instead of
+ * running the chain themselves.  Requests are identical when they have the same url, query and values of the request
+ * headers named in <i>headers</i>.  This stops a crowd of clients from building the same expensive page all
+ * at once, for example when it drops out of a {@link CachingHandler}.
+ * </p>
+ * <p>
+ * A waiting request that hasn't been answered after <i>timeout</i> milliseconds runs the chain itself.  So does every
+ * waiting request when the first one failed, wasn't handled, was streamed, had a body longer than <i>max-size</i>
+ * bytes or of unknown length, or was meant for one client only, with a Set-Cookie header or Cache-Control private or
+ * no-store.  Requests with an Authorization header are never shared, and neither are requests with a Cookie header
+ * unless Cookie is one of the <i>headers</i>, so one user is never sent a page built for another's session.  HEAD
+ * requests aren't shared either, since they don't build a body worth sharing.
+ * </p>
+ *
+ * <table class="inner">
+ * <tr class="header"><td>Parameter Name</td><td>Explanation</td><td>Default Value</td><td>Required</td></tr>
+ * <tr class="row"><td>chain</td><td>A space or comma seperated list of the names of the handlers within the chain.</td><td>None</td><td>Yes</td></tr>
+ * <tr class="altrow"><td>timeout</td><td>Milliseconds a request waits for the identical request before running the chain itself.</td><td>5000</td><td>No</td></tr>
+ * <tr class="row"><td>headers</td><td>A space or comma seperated list of request headers that make requests different.</td><td>None</td><td>No</td></tr>
+ * <tr class="altrow"><td>max-size</td><td>The largest body in bytes that is shared.</td><td>1048576</td><td>No</td></tr>
+ * </table>
+ */
+@Slf4j
+public class CoalescingHandler extends DefaultChainHandler {
+
+    public static final ConfigOption TIMEOUT_OPTION = new ConfigOption("timeout", "5000", "Milliseconds a request waits before running the chain itself.");
+    public static final ConfigOption HEADERS_OPTION = new ConfigOption("headers", false, "A list of request headers that make requests different.");
+    public static final ConfigOption MAX_SIZE_OPTION = new ConfigOption("max-size", "1048576", "The largest body in bytes that is shared.");
+
+    private long timeout;
+    private long maxSize;
+    private String[] headers;
+    private boolean cookieInKey;
+    private final ConcurrentHashMap flights = new ConcurrentHashMap();
+
+    public boolean initialize(String handlerName, Server server) {
+        if (!super.initialize(handlerName, server)) {
+            return false;
+        }
+        try {
+            timeout = Long.parseLong(TIMEOUT_OPTION.getProperty(server, handlerName));
+            maxSize = Long.parseLong(MAX_SIZE_OPTION.getProperty(server, handlerName));
+        } catch (NumberFormatException e) {
+            log.error(handlerName + " timeout and max-size must be numbers.");
+            return false;
+        }
+        List names = new ArrayList();
+        String headerList = HEADERS_OPTION.getProperty(server, handlerName);
+        if (headerList != null) {
+            StringTokenizer tokenizer = new StringTokenizer(headerList, " ,");
+            while (tokenizer.hasMoreTokens()) {
+                String name = tokenizer.nextToken();
+                names.add(name);
+                cookieInKey = cookieInKey || "Cookie".equalsIgnoreCase(name);
+            }
+        }
+        headers = (String[]) names.toArray(new String[names.size()]);
+        return true;
+    }
+
+    public boolean handle(Request aRequest, Response aResponse) throws IOException {
+        if (!(aRequest instanceof HttpRequest)) {
+            return super.handle(aRequest, aResponse);
+        }
+        HttpRequest request = (HttpRequest) aRequest;
+        HttpResponse response = (HttpResponse) aResponse;
+        if (!"GET".equals(request.getMethod()) || !isRequestdForHandler(request) || request.getRequestHeader("Authorization") != null
+                || (!cookieInKey && request.getRequestHeader("Cookie") != null)) {
+            return super.handle(request, response);
+        }
+
+        String key = key(request);
+        Flight flight = new Flight();
+        Flight leader = (Flight) flights.putIfAbsent(key, flight);
+        if (leader != null) {
+            Shared shared = leader.await(timeout);
+            if (shared != null) {
+                shared.send(response);
+                return true;
+            }
+            return super.handle(request, response);
+        }
+
+        Shared shared = null;
+        try {
+            boolean handled = super.handle(request, response);
+            if (handled) {
+                shared = share(response);
+            }
+            return handled;
+        } finally {
+            flights.remove(key, flight);
+            flight.complete(shared);
+        }
+    }
+
+    private String key(HttpRequest request) {
+        StringBuffer key = new StringBuffer(request.getUrl());
+        if (request.getQuery() != null) {
+            key.append('?').append(request.getQuery());
+        }
+        for (int i = 0; i < headers.length; i++) {
+            key.append('\n').append(headers[i]).append(':').append(request.getRequestHeader(headers[i], ""));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Copies the response so it can be sent to the waiting requests.  The body is taken out of the response and put
+     * back as a copy.
+     *
+     * @return the copy, or null if the response can't be shared.
+     */
+    private Shared share(HttpResponse response) throws IOException {
+        long length = response.getContentLength();
+        if (response.isStreaming() || length < 0 || length > maxSize || response.getHeader("Set-Cookie") != null) {
+            return null;
+        }
+        // meant for one client only, the same responses the CachingHandler won't store.
+        String control = response.getHeader("Cache-Control");
+        if (CachingHandler.hasDirective(control, "private") || CachingHandler.hasDirective(control, "no-store")) {
+            return null;
+        }
+        Shared shared = new Shared();
+        shared.status = response.getStatusCode();
+        shared.contentType = response.getContentType();
+        shared.headers = CachingHandler.copyHeaders(response.getHeaders());
+        ByteArrayOutputStream body = new ByteArrayOutputStream((int) length);
+        response.drainBody(body);
+        shared.body = ByteBuffer.wrap(body.toByteArray()).asReadOnlyBuffer();
+        response.sendResponse(new ByteBufferResponseData(shared.body, response.getBufferPool()));
+        return shared;
+    }
+
+    /**
+     * A request being answered that others are waiting for.
+     */
+    private static class Flight {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Shared shared;
+
+        void complete(Shared shared) {
+            this.shared = shared;
+            done.countDown();
+        }
+
+        /**
+         * @return the response to send, or null if it wasn't shared or didn't arrive in time.
+         */
+        Shared await(long timeout) {
+            try {
+                if (done.await(timeout, TimeUnit.MILLISECONDS)) {
+                    return shared;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A copy of a response.  The body is a read only buffer shared by every request it is sent to.
+     */
+    private static class Shared {
+        int status;
+        String contentType;
+        String[] headers;
+        ByteBuffer body;
+
+        void send(HttpResponse response) {
+            response.setStatusCode(status);
+            response.setMimeType(contentType);
+            for (int i = 0; i < headers.length; i += 2) {
+                response.addHeader(headers[i], headers[i + 1]);
+            }
+            response.sendResponse(new ByteBufferResponseData(body, response.getBufferPool()));
+        }
+    }
+}
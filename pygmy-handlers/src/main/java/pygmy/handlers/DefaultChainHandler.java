@@ -14,7 +14,9 @@ import java.util.StringTokenizer;
  * handlers in the chain, and it defines the order in which those handlers will be called.  Each handler name is
  * seperated by either a ' ' (space) or a ',' (comma).  This handler will then try to create a handler for each of
  * the handler names by looking at configuration property {handler-name}.class.  This handler also has a .url-prefix
- * parameter it uses to know when this handler should pass the request to the chain.
+ * parameter it uses to know when this handler should pass the request to the chain.  Every call to a handler in the
+ * chain is timed and recorded in the handler's {@link ServerMetrics.HandlerMetrics}, which {@link MetricsHandler}
+ * publishes.
  *
  * <table class="inner">
  * <tr class="header"><td>Parameter Name</td><td>Explanation</td><td>Default Value</td><td>Required</td></tr>
@@ -31,6 +33,7 @@ public class DefaultChainHandler extends AbstractHandler implements Handler {
     public static final ConfigOption CHAIN_OPTION = new ConfigOption("chain", true, "A comma seperated list of handler names to chain together.");
 
     private List chain;
+    private ServerMetrics.HandlerMetrics[] metrics;
 
     public boolean initialize(String handlerName, Server server) {
         super.initialize(handlerName, server);
@@ -40,6 +43,7 @@ public class DefaultChainHandler extends AbstractHandler implements Handler {
     }
 
     private void initializeChain(Server server) {
+        List chainMetrics = new ArrayList();
         StringTokenizer tokenizer = new StringTokenizer(CHAIN_OPTION.getProperty(server, handlerName), " ,");
         while (tokenizer.hasMoreTokens()) {
             String chainChildName = tokenizer.nextToken();
@@ -47,6 +51,7 @@ public class DefaultChainHandler extends AbstractHandler implements Handler {
                 Handler handler = (Handler) server.constructPygmyObject(chainChildName);
                 if (handler.initialize(chainChildName, server)) {
                     chain.add(handler);
+                    chainMetrics.add(server.getMetrics().getHandlerMetrics(chainChildName));
                 } else {
                     log.error(chainChildName + " was not initialized");
                 }
@@ -54,13 +59,13 @@ public class DefaultChainHandler extends AbstractHandler implements Handler {
                 log.error(chainChildName + " class does not implement the Handler interface.", e);
             }
         }
+        metrics = (ServerMetrics.HandlerMetrics[]) chainMetrics.toArray(new ServerMetrics.HandlerMetrics[chainMetrics.size()]);
     }
 
     public boolean handle(Request request, Response response) throws IOException {
         boolean hasBeenHandled = false;
-        for (Iterator i = chain.iterator(); i.hasNext() && !hasBeenHandled; ) {
-            Handler handler = (Handler) i.next();
-            hasBeenHandled = handler.handle(request, response);
+        for (int i = 0; i < metrics.length && !hasBeenHandled; i++) {
+            hasBeenHandled = metrics[i].handle((Handler) chain.get(i), request, response);
         }
         return hasBeenHandled;
     }
@@ -5,20 +5,43 @@ import pygmy.core.*;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
-import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.text.NumberFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
-import java.util.TreeMap;
+import java.util.concurrent.Semaphore;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 /**
  * <p>
  * This sends back a directory listing in html text.  The look and feel is
  * customizable through a cascading style sheet to use.  The directory listing
- * is ordered by {@link DirectoryHandler.ComparableComparator}.  The referenced
+ * shows folders first, each group ordered by {@link DirectoryHandler.ComparableComparator}
+ * on the name unless the client asks for another order.  The referenced
  * classes in the CSS are:
  * </p>
  *
@@ -26,6 +49,7 @@ import java.util.TreeMap;
  * <ul>
  * <li>.navigationbar</li>
  * <li>.box</li>
+ * <li>.pager</li>
  * <li>tr.tableheader</li>
  * <li>tr.fileentry</li>
  * <li>tr.altfileentry</li>
@@ -35,15 +59,52 @@ import java.util.TreeMap;
  * <li>nameColumn</li>
  * <li>typeColumn</li>
  * <li>sizeColumn</li>
+ * <li>dateColumn</li>
  * </ul>
  * </p>
  *
  * <p>
+ * Large directories are sent a page at a time.  Clients choose the page with these query parameters:
+ * </p>
+ * <ul>
+ * <li><i>page</i> the page to send starting at 1.</li>
+ * <li><i>size</i> the entries per page, at most <i>max-page-size</i>.  Defaults to <i>page-size</i>.</li>
+ * <li><i>sort</i> name, size, modified or type.</li>
+ * <li><i>order</i> asc or desc.</li>
+ * <li><i>format</i> json sends the page as a JSON object instead of html.</li>
+ * </ul>
+ * <p>
+ * A directory is read once and its entries are kept, sorted, until the directory's modification time changes or
+ * <i>cache-ttl</i> milliseconds have passed.  Files written in place don't change the directory's modification time,
+ * so cache-ttl bounds how long an old size or date can be shown.  Only the page that was asked for is rendered, and it
+ * is written straight to the response.
+ * </p>
+ * <p>
+ * <i>download=zip</i> sends the directory and everything below it as a zip file.  The zip is written to the client
+ * while the files are read, in chunked encoding for HTTP/1.1 clients, so no temporary file or copy of the archive is
+ * ever made.  Files whose extension is in <i>zip-stored-types</i> are already compressed and are stored as they are;
+ * since a stored entry's checksum has to come before its data, those files are read twice.  Everything else is
+ * deflated.  Only files the listing would show are included, and links that lead outside the directory are left out.
+ * To bound the work a download can cause, directories holding more than <i>zip-max-files</i> files and
+ * subdirectories, counting the ones left out, or <i>zip-max-bytes</i> bytes are refused with 403 as soon as the limit
+ * is passed, and at most <i>zip-max-concurrent</i> downloads run at once, the
+ * rest are answered with 503.
+ * </p>
+ *
+ * <p>
  * <table class="inner">
  * <tr class="header"><td>Parameter Name</td><td>Explanation</td><td>Default Value</td><td>Required</td></tr>
  * <tr class="row"><td>url-prefix</td><td>The prefix to filter request urls.</td><td>None</td><td>Yes</td></tr>
  * <tr class="altrow"><td>root</td><td>A local system path to the root of the folder to share.</td><td>None</td><td>Yes</td></tr>
  * <tr class="row"><td>css</td><td>The name stylesheet to use for customizing the style of the display.  If unspecified a default style will be inlined in the HTML.</td><td>None</td><td>No</td></tr>
+ * <tr class="altrow"><td>page-size</td><td>The entries on a page when the client doesn't ask for a size.</td><td>500</td><td>No</td></tr>
+ * <tr class="row"><td>max-page-size</td><td>The most entries a client can get on one page.</td><td>5000</td><td>No</td></tr>
+ * <tr class="altrow"><td>cache-ttl</td><td>Milliseconds a directory's entries are kept while its modification time stays the same.  0 reads the directory for every request.</td><td>10000</td><td>No</td></tr>
+ * <tr class="row"><td>cache-size</td><td>The most directories kept.</td><td>100</td><td>No</td></tr>
+ * <tr class="altrow"><td>zip-max-files</td><td>The most files and directories walked for a zip download.  0 turns zip downloads off.</td><td>10000</td><td>No</td></tr>
+ * <tr class="row"><td>zip-max-bytes</td><td>The most bytes of files in a zip download.</td><td>1073741824</td><td>No</td></tr>
+ * <tr class="altrow"><td>zip-max-concurrent</td><td>The most zip downloads sent at the same time.</td><td>2</td><td>No</td></tr>
+ * <tr class="row"><td>zip-stored-types</td><td>A space or comma seperated list of file extensions that are stored in zips without compressing them.</td><td>zip gz tgz bz2 xz 7z rar jar war jpg jpeg png gif webp mp3 mp4 m4a ogg avi mov mkv woff woff2</td><td>No</td></tr>
  * </table>
  * </p>
  */
@@ -53,10 +114,56 @@ public class DirectoryHandler extends AbstractHandler implements Handler {
 
     public static final ConfigOption ROOT_OPTION = new ConfigOption("root", true, "Directory path to share.");
     public static final ConfigOption CSS_OPTION = new ConfigOption("css", false, "A URL of the stylesheet for theme of the directory listing.");
+    public static final ConfigOption PAGE_SIZE_OPTION = new ConfigOption("page-size", "500", "The entries on a page when the client doesn't ask for a size.");
+    public static final ConfigOption MAX_PAGE_SIZE_OPTION = new ConfigOption("max-page-size", "5000", "The most entries a client can get on one page.");
+    public static final ConfigOption CACHE_TTL_OPTION = new ConfigOption("cache-ttl", "10000", "Milliseconds a directory's entries are kept.");
+    public static final ConfigOption CACHE_SIZE_OPTION = new ConfigOption("cache-size", "100", "The most directories kept.");
+    public static final ConfigOption ZIP_MAX_FILES_OPTION = new ConfigOption("zip-max-files", "10000", "The most files and directories walked for a zip download.");
+    public static final ConfigOption ZIP_MAX_BYTES_OPTION = new ConfigOption("zip-max-bytes", "1073741824", "The most bytes of files in a zip download.");
+    public static final ConfigOption ZIP_MAX_CONCURRENT_OPTION = new ConfigOption("zip-max-concurrent", "2", "The most zip downloads sent at the same time.");
+    public static final ConfigOption ZIP_STORED_TYPES_OPTION = new ConfigOption("zip-stored-types", "zip gz tgz bz2 xz 7z rar jar war jpg jpeg png gif webp mp3 mp4 m4a ogg avi mov mkv woff woff2", "File extensions stored in zips without compressing them.");
+
+    private static final String[] SORT_KEYS = {"name", "size", "modified", "type"};
+    private static final int ZIP_BUFFER_SIZE = 8192;
+
+    private int pageSize;
+    private int maxPageSize;
+    private long cacheTtl;
+    private Listings listings;
+    private int zipMaxFiles;
+    private long zipMaxBytes;
+    private Semaphore zipPermits;
+    private final Set storedTypes = new HashSet();
 
     public boolean initialize(String handlerName, Server server) {
         super.initialize(handlerName, server);
         root = new File(ROOT_OPTION.getProperty(server, handlerName));
+        int cacheSize = 100;
+        int zipMaxConcurrent = 2;
+        try {
+            pageSize = PAGE_SIZE_OPTION.getInteger(server, handlerName).intValue();
+            maxPageSize = MAX_PAGE_SIZE_OPTION.getInteger(server, handlerName).intValue();
+            cacheTtl = Long.parseLong(CACHE_TTL_OPTION.getProperty(server, handlerName));
+            cacheSize = CACHE_SIZE_OPTION.getInteger(server, handlerName).intValue();
+            zipMaxFiles = ZIP_MAX_FILES_OPTION.getInteger(server, handlerName).intValue();
+            zipMaxBytes = Long.parseLong(ZIP_MAX_BYTES_OPTION.getProperty(server, handlerName));
+            zipMaxConcurrent = ZIP_MAX_CONCURRENT_OPTION.getInteger(server, handlerName).intValue();
+        } catch (NumberFormatException e) {
+            log.warn(handlerName + " page-size, max-page-size, cache-ttl, cache-size and the zip options must be numbers.  Using the defaults.");
+            pageSize = 500;
+            maxPageSize = 5000;
+            cacheTtl = 10000;
+            zipMaxFiles = 10000;
+            zipMaxBytes = 1073741824;
+        }
+        zipPermits = new Semaphore(Math.max(1, zipMaxConcurrent));
+        StringTokenizer types = new StringTokenizer(ZIP_STORED_TYPES_OPTION.getProperty(server, handlerName), " ,");
+        while (types.hasMoreTokens()) {
+            storedTypes.add(types.nextToken().toLowerCase());
+        }
+        maxPageSize = Math.max(1, maxPageSize);
+        pageSize = Math.max(1, Math.min(pageSize, maxPageSize));
+        listings = new Listings(cacheSize);
         return true;
     }
 
@@ -74,33 +181,212 @@ public class DirectoryHandler extends AbstractHandler implements Handler {
                 log.warn("Access denied to " + directory.getAbsolutePath());
                 return false;
             }
-            log.warn("Processing directory listing for " + directory.getAbsolutePath());
-            StringBuffer templateHeader = new StringBuffer();
+            if ("zip".equals(request.getParameter("download")) && zipMaxFiles > 0) {
+                sendZip(request, response, directory.toPath());
+                return true;
+            }
+            log.debug("Processing directory listing for " + directory.getAbsolutePath());
+            Listing listing = getListing(directory.toPath());
+
+            String sort = request.getParameter("sort");
+            if (sort == null || Arrays.asList(SORT_KEYS).indexOf(sort) < 0) {
+                sort = "name";
+            }
+            boolean descending = "desc".equals(request.getParameter("order"));
+            int size = Math.max(1, Math.min(parseInt(request.getParameter("size"), pageSize), maxPageSize));
+            Item[] items = listing.sortedBy(sort, descending);
+            int pages = Math.max(1, (items.length + size - 1) / size);
+            Page page = new Page(sort, descending, size, Math.max(1, Math.min(parseInt(request.getParameter("page"), 1), pages)), pages);
+            int from = (page.number - 1) * size;
+            int to = Math.min(items.length, from + size);
 
             String decodedUrl = java.net.URLDecoder.decode(request.getUrl(), "UTF-8");
-            addFolderNavigation(templateHeader, decodedUrl);
-            addTableHeaders(templateHeader);
-            addFilesAndFolders(request, directory.listFiles(), templateHeader);
-            addTableFooter(templateHeader);
+            String directoryLink = getHttpHyperlink(directory);
+            if ("json".equals(request.getParameter("format"))) {
+                response.setMimeType("application/json");
+                writeJson(response.getPrintWriter(), decodedUrl, directoryLink, items, from, to, page);
+                return true;
+            }
 
             response.setMimeType("text/html");
             PrintWriter out = response.getPrintWriter();
             out.write(addHtmlHeader(request));
             out.write("<body>\n");
-            out.write(templateHeader.toString());
+            addFolderNavigation(out, decodedUrl);
+            addTableHeaders(out, page);
+            addFilesAndFolders(out, directoryLink, items, from, to);
+            addTableFooter(out, page);
             out.write("</body>\n");
             out.write("</html>");
             return true;
         } catch (Exception e) {
+            if (response.isStreaming()) {
+                // part of the body is already sent, closing the connection is the only way to tell the client.
+                log.warn("Download of " + request.getUrl() + " failed: " + e.getMessage());
+                throw (e instanceof IOException) ? (IOException) e : new IOException(e.getMessage());
+            }
             log.error("Request failed due to Exception.", e);
             response.sendError(HttpURLConnection.HTTP_INTERNAL_ERROR, "Exception during processing directory");
             return true;
         }
     }
 
-    private void addTableFooter(StringBuffer templateHeader) {
-        templateHeader.append("</table>\n");
-        templateHeader.append("</div>\n");
+    private void sendZip(HttpRequest request, HttpResponse response, Path directory) throws IOException {
+        if (!zipPermits.tryAcquire()) {
+            response.sendError(HttpURLConnection.HTTP_UNAVAILABLE, "Too many downloads, try again later.");
+            return;
+        }
+        try {
+            String name = directory.getFileName() != null ? directory.getFileName().toString() : "root";
+            ZipContents contents = new ZipContents(directory);
+            Files.walkFileTree(directory, contents);
+            if (contents.tooLarge) {
+                response.sendError(HttpURLConnection.HTTP_FORBIDDEN, name + " is too large to download as a zip.");
+                return;
+            }
+            response.setMimeType("application/zip");
+            response.addHeader("Content-Disposition", "attachment; filename=\"" + name.replace('"', '_') + ".zip\"");
+            OutputStream out = response.startStreaming();
+            if ("HEAD".equals(request.getMethod())) {
+                return;
+            }
+            BufferPool pool = response.getBufferPool();
+            byte[] buffer = (pool != null) ? pool.acquire(ZIP_BUFFER_SIZE) : new byte[ZIP_BUFFER_SIZE];
+            try {
+                ZipOutputStream zip = new ZipOutputStream(out);
+                for (int i = 0; i < contents.paths.size(); i++) {
+                    addZipEntry(zip, name + "/", directory, (Path) contents.paths.get(i), (BasicFileAttributes) contents.attributes.get(i), buffer);
+                }
+                // finish instead of close, the response ends the stream.
+                zip.finish();
+                out.flush();
+            } finally {
+                if (pool != null) {
+                    pool.release(buffer);
+                }
+            }
+        } finally {
+            zipPermits.release();
+        }
+    }
+
+    private void addZipEntry(ZipOutputStream zip, String prefix, Path directory, Path path, BasicFileAttributes attributes, byte[] buffer) throws IOException {
+        StringBuffer name = new StringBuffer(prefix);
+        Path relative = directory.relativize(path);
+        for (int i = 0; i < relative.getNameCount(); i++) {
+            if (i > 0) {
+                name.append('/');
+            }
+            name.append(relative.getName(i).toString());
+        }
+        if (attributes.isDirectory()) {
+            ZipEntry entry = new ZipEntry(name.append('/').toString());
+            entry.setTime(attributes.lastModifiedTime().toMillis());
+            zip.putNextEntry(entry);
+            zip.closeEntry();
+            return;
+        }
+        ZipEntry entry = new ZipEntry(name.toString());
+        entry.setTime(attributes.lastModifiedTime().toMillis());
+        if (isStoredType(path)) {
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(attributes.size());
+            entry.setCompressedSize(attributes.size());
+            entry.setCrc(checksum(path, buffer));
+        }
+        zip.putNextEntry(entry);
+        try (InputStream in = Files.newInputStream(path)) {
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                zip.write(buffer, 0, read);
+            }
+        }
+        zip.closeEntry();
+    }
+
+    private boolean isStoredType(Path path) {
+        String name = path.getFileName().toString();
+        int index = name.lastIndexOf('.');
+        return index >= 0 && storedTypes.contains(name.substring(index + 1).toLowerCase());
+    }
+
+    private static long checksum(Path path, byte[] buffer) throws IOException {
+        CRC32 crc = new CRC32();
+        try (InputStream in = Files.newInputStream(path)) {
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Returns the entries of the directory, reading it again if it changed since it was last read.
+     */
+    private Listing getListing(Path directory) throws IOException {
+        long modified = Files.getLastModifiedTime(directory).toMillis();
+        Listing listing = listings.get(directory);
+        if (listing != null && listing.lastModified == modified && System.currentTimeMillis() < listing.expires) {
+            return listing;
+        }
+        // reading is done outside the lock, two threads may read the same directory but only one is kept.
+        listing = readListing(directory, modified);
+        if (cacheTtl > 0) {
+            listings.put(directory, listing);
+        }
+        return listing;
+    }
+
+    private Listing readListing(Path directory, long modified) throws IOException {
+        List items = new ArrayList();
+        try (DirectoryStream stream = Files.newDirectoryStream(directory)) {
+            for (Iterator i = stream.iterator(); i.hasNext(); ) {
+                Path path = (Path) i.next();
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                } catch (IOException e) {
+                    // removed while reading the directory or a broken link.
+                    continue;
+                }
+                String name = path.getFileName().toString();
+                if (attributes.isDirectory()) {
+                    items.add(new Item(name, true, 0, attributes.lastModifiedTime().toMillis(), null));
+                } else {
+                    String mimeType = getMimeType(name);
+                    if (mimeType != null) {
+                        items.add(new Item(name, false, attributes.size(), attributes.lastModifiedTime().toMillis(), mimeType));
+                    }
+                }
+            }
+        }
+        return new Listing(modified, System.currentTimeMillis() + cacheTtl, (Item[]) items.toArray(new Item[items.size()]));
+    }
+
+    private void addTableFooter(PrintWriter out, Page page) {
+        out.write("</table>\n");
+        if (page.count > 1) {
+            out.write("<div class=\"pager\">\n");
+            if (page.number > 1) {
+                out.write("<a href=\"" + page.query(page.number - 1) + "\">&laquo; previous</a> ");
+            }
+            out.write("page " + page.number + " of " + page.count);
+            if (page.number < page.count) {
+                out.write(" <a href=\"" + page.query(page.number + 1) + "\">next &raquo;</a>");
+            }
+            out.write("\n</div>\n");
+        }
+        out.write("</div>\n");
     }
 
     private String addHtmlHeader(HttpRequest request) throws IOException {
@@ -126,6 +412,7 @@ public class DirectoryHandler extends AbstractHandler implements Handler {
         templateHeader.append("th {color:#333333; font-family: Verdana, Arial, Helvetica; font-size:10pt; text-align:center; }\n");
         templateHeader.append(".navigationbar {background-color:#7094b8;color:#f6f6ee;border-bottom:1px #666 solid;border-right:1px #666 solid;font:bold 11px tahoma,verdana,sans-serif;padding:3px 2px 3px 4px;margin-top:10px;}\n");
         templateHeader.append(".box { background-color:#d1dde9; border:1px #369 solid; border-top:0; padding:4px 4px 4px 4px; background-color:#77AADD}\n");
+        templateHeader.append(".pager { text-align: center; padding: 4px; }\n");
         templateHeader.append(".directory {	padding-top: 2px;padding-right: 0px;padding-bottom: 0px;padding-left: 16px;background-image: url(/web/folder16.gif);background-repeat: no-repeat;background-position: left center;}\n");
         templateHeader.append(".topHeader { padding-top: 2px;padding-right: 0px;padding-bottom: 0px;padding-left: 16px;background-image: url(/web/folder16.gif);background-repeat: no-repeat;background-position: left center;}\n");
         templateHeader.append("tr.tableheader { background-color: #ffffe4; }\n");
@@ -134,6 +421,7 @@ public class DirectoryHandler extends AbstractHandler implements Handler {
         templateHeader.append("td.nameColumn { text-align: left; }\n");
         templateHeader.append("td.typeColumn { text-align: center; }\n");
         templateHeader.append("td.sizeColumn { text-align: right; }\n");
+        templateHeader.append("td.dateColumn { text-align: center; }\n");
 
         templateHeader.append("a {color: #0000A0;font-family: Verdana, Arial, Helvetica;text-decoration:none;}\n");
         templateHeader.append("a:active {color: #FFFFFF; text-decoration : none;}\n");
@@ -147,105 +435,143 @@ public class DirectoryHandler extends AbstractHandler implements Handler {
         templateHeader.append("</style>");
     }
 
-    private void addFolderNavigation(StringBuffer templateHeader, String decodedUrl) {
-        templateHeader.append("<div class=\"navigationbar\">\n");
-        templateHeader.append("<span class=\"topHeader\">\n");
+    private void addFolderNavigation(PrintWriter out, String decodedUrl) throws UnsupportedEncodingException {
+        out.write("<div class=\"navigationbar\">\n");
+        out.write("<span class=\"topHeader\">\n");
         StringTokenizer token = new StringTokenizer(decodedUrl, "/");
         StringBuffer buf = new StringBuffer(decodedUrl.length());
-        templateHeader.append("&nbsp;<a href=\"/\" class=\"whitelink\">[home]</a>\n");
+        out.write("&nbsp;<a href=\"/\" class=\"whitelink\">[home]</a>\n");
         while (token.hasMoreElements()) {
             String path = token.nextToken();
             buf.append("/");
-            buf.append(path);
-            templateHeader.append("/");
-            templateHeader.append("<a href=\"");
-            templateHeader.append(buf.toString());
-            templateHeader.append("\" class=\"whitelink\">");
-            templateHeader.append(path);
-            templateHeader.append("</a>");
-        }
-        templateHeader.append("</span>\n</div>\n");
+            buf.append(encodeUrl(path));
+            out.write("/");
+            out.write("<a href=\"");
+            out.write(buf.toString());
+            out.write("\" class=\"whitelink\">");
+            out.write(Http.encodeHtml(path));
+            out.write("</a>");
+        }
+        out.write("</span>\n</div>\n");
     }
 
-    private void addTableHeaders(StringBuffer templateHeader) {
-        templateHeader.append("<div class=\"box\">\n");
-        templateHeader.append("<table width=\"100%\" cellspacing=\"0\" cellpadding=\"2\">\n");
-        templateHeader.append("<tr class=\"tableheader\">\n");
-        templateHeader.append("<th>Name</td>");
-        templateHeader.append("<th>Type</td>");
-        templateHeader.append("<th>Size</td>");
-        templateHeader.append("\n</tr>\n");
+    private void addTableHeaders(PrintWriter out, Page page) {
+        out.write("<div class=\"box\">\n");
+        out.write("<table width=\"100%\" cellspacing=\"0\" cellpadding=\"2\">\n");
+        out.write("<tr class=\"tableheader\">\n");
+        addColumnHeader(out, page, "Name", "name");
+        addColumnHeader(out, page, "Type", "type");
+        addColumnHeader(out, page, "Size", "size");
+        addColumnHeader(out, page, "Modified", "modified");
+        out.write("\n</tr>\n");
     }
 
-    private void addFilesAndFolders(HttpRequest request, File[] files, StringBuffer templateHeader) throws IOException {
-        URI rootUri = this.root.toURI();
-        ComparableComparator comp = new ComparableComparator();
-        TreeMap dirMap = new TreeMap(comp);
-        TreeMap fileMap = new TreeMap(comp);
-        StringBuffer fileBuffer = new StringBuffer();
-        for (int i = 0; i < files.length; i++) {
-            fileBuffer.delete(0, fileBuffer.length());
-            if (files[i].isDirectory()) {
-                String name = files[i].getName();
-                fileBuffer.append("<td class=\"nameColumn\">&nbsp;<span class=\"directory\">");
-                fileBuffer.append("<small><a href=\"");
-                fileBuffer.append(getHttpHyperlink(request, rootUri, files[i]));
-                fileBuffer.append("\">&nbsp;");
-                fileBuffer.append(name);
-                fileBuffer.append("</a></small></span></td>\n");
-                fileBuffer.append("<td class=\"typeColumn\">&nbsp;<small>Folder</small></td>\n");
-                fileBuffer.append("<td class=\"sizeColumn\">&nbsp;</td>\n");
-                fileBuffer.append("</tr>\n");
-                dirMap.put(name, fileBuffer.toString());
+    /**
+     * Writes a column header that sorts by the column, or reverses the order if the page is already sorted by it.
+     */
+    private void addColumnHeader(PrintWriter out, Page page, String title, String sort) {
+        boolean descending = sort.equals(page.sort) && !page.descending;
+        out.write("<th><a href=\"?sort=" + sort + "&amp;order=" + (descending ? "desc" : "asc") + "&amp;size=" + page.size + "\">");
+        out.write(title);
+        if (sort.equals(page.sort)) {
+            out.write(page.descending ? " &darr;" : " &uarr;");
+        }
+        out.write("</a></th>");
+    }
+
+    private void addFilesAndFolders(PrintWriter out, String directoryLink, Item[] items, int from, int to) throws IOException {
+        String[] styles = {"fileentry", "altfileentry"};
+        NumberFormat sizeFormat = NumberFormat.getIntegerInstance();
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+        for (int i = from; i < to; i++) {
+            Item item = items[i];
+            String name = Http.encodeHtml(item.name);
+            out.write("<tr class=\"");
+            out.write(styles[(i - from) % 2]);
+            out.write("\">\n");
+            if (item.directory) {
+                out.write("<td class=\"nameColumn\">&nbsp;<span class=\"directory\">");
+                out.write("<small><a href=\"");
+                out.write(directoryLink + encodeUrl(item.name) + "/");
+                out.write("\">&nbsp;");
+                out.write(name);
+                out.write("</a></small></span></td>\n");
+                out.write("<td class=\"typeColumn\">&nbsp;<small>Folder</small></td>\n");
+                out.write("<td class=\"sizeColumn\">&nbsp;</td>\n");
             } else {
-                String absolutePath = files[i].getAbsolutePath();
-                String mimeType = getMimeType(absolutePath);
-                if (mimeType != null) {
-                    String name = files[i].getName();
-                    fileBuffer.append("<td class=\"nameColumn\"><small>&nbsp;<a href=\"");
-                    fileBuffer.append(getHttpHyperlink(request, rootUri, files[i]));
-                    fileBuffer.append("\">");
-                    fileBuffer.append(name);
-                    fileBuffer.append("</a></small></td>\n");
-                    fileBuffer.append("<td class=\"typeColumn\"><small>&nbsp;");
-                    fileBuffer.append(mimeType);
-                    fileBuffer.append("</small></td>\n");
-                    fileBuffer.append("<td class=\"sizeColumn\">&nbsp;<small>");
-                    fileBuffer.append(NumberFormat.getIntegerInstance().format(files[i].length()));
-                    fileBuffer.append("</small>&nbsp;</td>\n");
-                    fileMap.put(name, fileBuffer.toString());
-                }
+                out.write("<td class=\"nameColumn\"><small>&nbsp;<a href=\"");
+                out.write(directoryLink + encodeUrl(item.name));
+                out.write("\">");
+                out.write(name);
+                out.write("</a></small></td>\n");
+                out.write("<td class=\"typeColumn\"><small>&nbsp;");
+                out.write(item.mimeType);
+                out.write("</small></td>\n");
+                out.write("<td class=\"sizeColumn\">&nbsp;<small>");
+                out.write(sizeFormat.format(item.size));
+                out.write("</small>&nbsp;</td>\n");
             }
+            out.write("<td class=\"dateColumn\"><small>");
+            out.write(dateFormat.format(new Date(item.modified)));
+            out.write("</small></td>\n");
+            out.write("</tr>\n");
         }
-        int count = 0;
-        count = writeOutMap(templateHeader, dirMap, count);
-        count = writeOutMap(templateHeader, fileMap, count);
     }
 
-    private int writeOutMap(StringBuffer templateHeader, TreeMap dirMap, int count) {
-        String[] styles = {"fileentry", "altfileentry"};
-        for (Iterator i = dirMap.keySet().iterator(); i.hasNext(); ) {
-            templateHeader.append("<tr class=\"");
-            templateHeader.append(styles[count % 2]);
-            templateHeader.append("\">\n");
-            templateHeader.append((String) dirMap.get(i.next()));
-            templateHeader.append("</tr>\n");
-            count++;
+    private void writeJson(PrintWriter out, String decodedUrl, String directoryLink, Item[] items, int from, int to, Page page) throws IOException {
+        out.write("{\"path\":\"" + escapeJson(decodedUrl) + "\",\"total\":" + items.length + ",\"page\":" + page.number
+                + ",\"pages\":" + page.count + ",\"size\":" + page.size + ",\"entries\":[");
+        for (int i = from; i < to; i++) {
+            Item item = items[i];
+            if (i > from) {
+                out.write(",");
+            }
+            out.write("{\"name\":\"" + escapeJson(item.name) + "\",\"href\":\""
+                    + escapeJson(directoryLink + encodeUrl(item.name) + (item.directory ? "/" : ""))
+                    + "\",\"directory\":" + item.directory + ",\"modified\":" + item.modified);
+            if (!item.directory) {
+                out.write(",\"size\":" + item.size + ",\"type\":\"" + escapeJson(item.mimeType) + "\"");
+            }
+            out.write("}");
+        }
+        out.write("]}");
+    }
+
+    private static String escapeJson(String value) {
+        StringBuffer buffer = new StringBuffer(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                buffer.append('\\').append(c);
+            } else if (c < 0x20) {
+                buffer.append("\\u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 0xF, 16));
+            } else {
+                buffer.append(c);
+            }
         }
+        return buffer.toString();
+    }
 
-        return count;
+    private static String encodeUrl(String name) throws UnsupportedEncodingException {
+        return URLEncoder.encode(name, "UTF-8").replace("+", "%20");
     }
 
-    private String getHttpHyperlink(HttpRequest request, URI directory, File file) throws IOException {
-        String prefixRelative = directory.relativize(file.toURI()).getPath();
-        String urlPrefix = getUrlPrefix();
-        if (urlPrefix.endsWith("/")) {
-            return urlPrefix + prefixRelative;
-        } else if (prefixRelative.startsWith("/")) {
-            return urlPrefix + prefixRelative;
-        } else {
-            return request.createUrl(urlPrefix + "/" + prefixRelative);
+    /**
+     * Returns the url of the directory, ending in a slash.
+     */
+    private String getHttpHyperlink(File directory) throws IOException {
+        StringBuffer link = new StringBuffer(getUrlPrefix());
+        if (link.length() == 0 || link.charAt(link.length() - 1) != '/') {
+            link.append('/');
         }
+        Path relative = root.getAbsoluteFile().toPath().normalize().relativize(directory.getAbsoluteFile().toPath().normalize());
+        for (int i = 0; i < relative.getNameCount(); i++) {
+            String name = relative.getName(i).toString();
+            if (name.length() > 0) {
+                link.append(encodeUrl(name)).append('/');
+            }
+        }
+        return link.toString();
     }
 
     /**
@@ -259,4 +585,206 @@ public class DirectoryHandler extends AbstractHandler implements Handler {
             return c1.compareTo(c2);
         }
     }
+
+    /**
+     * Orders entries by one of the {@link #SORT_KEYS}, folders before files, and by name when the keys are equal.
+     */
+    private static class ItemComparator implements Comparator {
+        private static final ComparableComparator NAMES = new ComparableComparator();
+        private final String sort;
+        private final boolean descending;
+
+        ItemComparator(String sort, boolean descending) {
+            this.sort = sort;
+            this.descending = descending;
+        }
+
+        public int compare(Object o1, Object o2) {
+            Item i1 = (Item) o1;
+            Item i2 = (Item) o2;
+            if (i1.directory != i2.directory) {
+                return i1.directory ? -1 : 1;
+            }
+            int result = 0;
+            if ("size".equals(sort)) {
+                result = Long.compare(i1.size, i2.size);
+            } else if ("modified".equals(sort)) {
+                result = Long.compare(i1.modified, i2.modified);
+            } else if ("type".equals(sort) && !i1.directory) {
+                result = NAMES.compare(i1.mimeType, i2.mimeType);
+            }
+            if (result == 0) {
+                result = NAMES.compare(i1.name, i2.name);
+            }
+            return descending ? -result : result;
+        }
+    }
+
+    private static class Item {
+        final String name;
+        final boolean directory;
+        final long size;
+        final long modified;
+        final String mimeType;
+
+        Item(String name, boolean directory, long size, long modified, String mimeType) {
+            this.name = name;
+            this.directory = directory;
+            this.size = size;
+            this.modified = modified;
+            this.mimeType = mimeType;
+        }
+    }
+
+    /**
+     * The entries of a directory as it was when it was read.  Each order that is asked for is sorted once and kept.
+     */
+    private static class Listing {
+        final long lastModified;
+        final long expires;
+        private final Item[] items;
+        private final Map sorted = new HashMap();
+
+        Listing(long lastModified, long expires, Item[] items) {
+            this.lastModified = lastModified;
+            this.expires = expires;
+            this.items = items;
+        }
+
+        synchronized Item[] sortedBy(String sort, boolean descending) {
+            String key = sort + (descending ? " desc" : " asc");
+            Item[] result = (Item[]) sorted.get(key);
+            if (result == null) {
+                result = items.clone();
+                Arrays.sort(result, new ItemComparator(sort, descending));
+                sorted.put(key, result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * The directories that were read in least recently used order.
+     */
+    private static class Listings {
+        private final int maxEntries;
+        private final LinkedHashMap entries = new LinkedHashMap(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry eldest) {
+                return size() > maxEntries;
+            }
+        };
+
+        Listings(int maxEntries) {
+            this.maxEntries = maxEntries;
+        }
+
+        synchronized Listing get(Path directory) {
+            return (Listing) entries.get(directory);
+        }
+
+        synchronized void put(Path directory, Listing listing) {
+            entries.put(directory, listing);
+        }
+    }
+
+    /**
+     * Collects what goes into a zip download: every directory below the downloaded one and the files the listing
+     * would show.  Links are followed only when they stay inside the downloaded directory, and the walk stops as soon
+     * as the limits are passed.
+     */
+    private class ZipContents extends SimpleFileVisitor {
+        private final Path directory;
+        private Path realDirectory;
+        final List paths = new ArrayList();
+        final List attributes = new ArrayList();
+        private int entries;
+        private long bytes;
+        boolean tooLarge;
+
+        ZipContents(Path directory) throws IOException {
+            this.directory = directory;
+            this.realDirectory = directory.toRealPath();
+        }
+
+        public FileVisitResult preVisitDirectory(Object dir, BasicFileAttributes attrs) {
+            if (!dir.equals(directory)) {
+                if (!count()) {
+                    return FileVisitResult.TERMINATE;
+                }
+                paths.add(dir);
+                attributes.add(attrs);
+            }
+            return FileVisitResult.CONTINUE;
+        }
+
+        public FileVisitResult visitFile(Object file, BasicFileAttributes attrs) throws IOException {
+            // everything walked is counted, even what is left out, so the walk itself is bounded.
+            if (!count()) {
+                return FileVisitResult.TERMINATE;
+            }
+            Path path = (Path) file;
+            if (attrs.isSymbolicLink()) {
+                try {
+                    if (!path.toRealPath().startsWith(realDirectory)) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                } catch (IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            }
+            if (!attrs.isRegularFile() || getMimeType(path.getFileName().toString()) == null) {
+                return FileVisitResult.CONTINUE;
+            }
+            bytes += attrs.size();
+            if (bytes > zipMaxBytes) {
+                tooLarge = true;
+                return FileVisitResult.TERMINATE;
+            }
+            paths.add(path);
+            attributes.add(attrs);
+            return FileVisitResult.CONTINUE;
+        }
+
+        public FileVisitResult visitFileFailed(Object file, IOException e) {
+            log.debug("Leaving {} out of the zip: {}", file, e.getMessage());
+            return count() ? FileVisitResult.CONTINUE : FileVisitResult.TERMINATE;
+        }
+
+        /**
+         * Counts an entry walked.
+         *
+         * @return false once there are more than zip-max-files.
+         */
+        private boolean count() {
+            if (++entries > zipMaxFiles) {
+                tooLarge = true;
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * The page of the listing that was asked for.
+     */
+    private static class Page {
+        final String sort;
+        final boolean descending;
+        final int size;
+        final int number;
+        final int count;
+
+        Page(String sort, boolean descending, int size, int number, int count) {
+            this.sort = sort;
+            this.descending = descending;
+            this.size = size;
+            this.number = number;
+            this.count = count;
+        }
+
+        String query(int page) {
+            return "?sort=" + sort + "&amp;order=" + (descending ? "desc" : "asc") + "&amp;size=" + size + "&amp;page=" + page;
+        }
+    }
 }
@@ -0,0 +1,316 @@
+package pygmy.handlers;
+
+import lombok.extern.slf4j.Slf4j;
+import pygmy.core.Server;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * <p>
+ * The topics of the {@link EventStreamHandler} and the clients subscribed to them.  There is one broker per server,
+ * registered with {@link Server#registerComponent(Object)}, so anything with the server can publish events:
+ * </p>
+ * <div class="code">
+ * <pre>
+ * EventBroker.getBroker(server).publish("prices", "quote", "{\"symbol\":\"ACME\",\"price\":12.5}");
+ * </pre>
+ * </div>
+ * <p>
+ * publish() returns immediately.  A single fan-out thread encodes each event once into the bytes of a
+ * text/event-stream message and hands the same bytes to every subscriber of the topic, whose own connection writes
+ * them.  Events of a topic are numbered in the order they are published and the last few of every topic are kept, so
+ * a client that reconnects with a Last-Event-ID header is sent the ones it missed.
+ * </p>
+ * <p>
+ * Every EventStreamHandler using the broker acquires it when it is initialized and releases it when it is shut down.
+ * The broker keeps the longest history any of them asks for, and stops when the last of them releases it.
+ * </p>
+ */
+@Slf4j
+public class EventBroker {
+
+    private final ConcurrentHashMap topics = new ConcurrentHashMap();
+    private final ExecutorService fanOut;
+    private volatile int historySize;
+    private volatile boolean shutdown;
+    private int users;
+
+    public EventBroker(int historySize) {
+        this.historySize = historySize;
+        this.fanOut = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "EventBroker fan-out");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Returns the server's broker, creating and registering it the first time.
+     *
+     * @param server the server the broker belongs to.
+     * @return the broker.
+     */
+    public static EventBroker getBroker(Server server) {
+        synchronized (server) {
+            EventBroker broker = (EventBroker) server.getRegisteredComponent(EventBroker.class);
+            if (broker == null) {
+                broker = new EventBroker(0);
+                server.registerComponent(broker);
+            }
+            return broker;
+        }
+    }
+
+    /**
+     * Adds a user of the broker, which keeps it running until the user releases it.
+     *
+     * @param historySize the number of the latest events of each topic the user wants kept for clients that
+     *                    reconnect.  The broker keeps the most any user wants.
+     */
+    synchronized void acquire(int historySize) {
+        users++;
+        this.historySize = Math.max(this.historySize, historySize);
+    }
+
+    /**
+     * Removes a user of the broker, and shuts it down if it was the last one.
+     */
+    synchronized void release() {
+        if (--users == 0) {
+            shutdown();
+        }
+    }
+
+    /**
+     * Sends an event to every subscriber of the topic.
+     *
+     * @param topic the name of the topic.
+     * @param event the type of the event, or null for the default type, message.
+     * @param data  the data of the event.  It can have more than one line.
+     */
+    public void publish(final String topic, final String event, final String data) {
+        if (shutdown) {
+            return;
+        }
+        try {
+            fanOut.execute(new Runnable() {
+                public void run() {
+                    while (!getTopic(topic).publish(event, data)) {
+                        // the topic was removed by its last subscriber leaving, so a new one is needed.
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.debug("Event for " + topic + " published after shutdown.");
+        }
+    }
+
+    /**
+     * Subscribes to a topic and queues the kept events that came after lastEventId.
+     *
+     * @param topic       the name of the topic.
+     * @param subscriber  the subscriber.
+     * @param lastEventId the id of the last event the client saw, or null if it is a new client.
+     * @param maxReplay   the most of those events queued, starting from the latest.  It shouldn't be more than the
+     *                    subscriber can queue, or the replay alone would overflow it.
+     */
+    void subscribe(String topic, Subscriber subscriber, String lastEventId, int maxReplay) {
+        while (!getTopic(topic).subscribe(subscriber, lastEventId, maxReplay)) {
+            // the topic was removed by its last subscriber leaving, so a new one is needed.
+        }
+    }
+
+    /**
+     * Removes the subscriber.  A topic left with no subscribers and no events is removed, so clients asking for
+     * made up topics don't leave them behind.
+     */
+    void unsubscribe(String topic, Subscriber subscriber) {
+        Topic found = (Topic) topics.get(topic);
+        if (found != null) {
+            synchronized (found) {
+                found.subscribers.remove(subscriber);
+                if (found.subscribers.isEmpty() && found.history.isEmpty()) {
+                    found.removed = true;
+                    topics.remove(topic, found);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of clients subscribed to the topic.
+     */
+    public int getSubscriberCount(String topic) {
+        Topic found = (Topic) topics.get(topic);
+        return (found != null) ? found.subscribers.size() : 0;
+    }
+
+    /**
+     * Stops the fan-out thread and closes every subscriber.
+     */
+    public void shutdown() {
+        shutdown = true;
+        fanOut.shutdown();
+        for (Iterator i = topics.values().iterator(); i.hasNext(); ) {
+            Topic topic = (Topic) i.next();
+            for (Iterator j = topic.subscribers.iterator(); j.hasNext(); ) {
+                ((Subscriber) j.next()).close();
+            }
+        }
+    }
+
+    private Topic getTopic(String name) {
+        Topic topic = (Topic) topics.get(name);
+        if (topic == null) {
+            Topic created = new Topic();
+            topic = (Topic) topics.putIfAbsent(name, created);
+            if (topic == null) {
+                topic = created;
+            }
+        }
+        return topic;
+    }
+
+    /**
+     * Encodes an event as a text/event-stream message.  Every line of the data gets its own data field.
+     */
+    static byte[] encode(long id, String event, String data) {
+        StringBuffer message = new StringBuffer(data.length() + 32);
+        message.append("id: ").append(id).append('\n');
+        if (event != null) {
+            message.append("event: ").append(event).append('\n');
+        }
+        int start = 0;
+        while (true) {
+            int end = nextLineEnd(data, start);
+            message.append("data: ").append(data, start, end).append('\n');
+            if (end == data.length()) {
+                break;
+            }
+            start = end + ((data.charAt(end) == '\r' && end + 1 < data.length() && data.charAt(end + 1) == '\n') ? 2 : 1);
+        }
+        message.append('\n');
+        try {
+            return message.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.toString());
+        }
+    }
+
+    private static int nextLineEnd(String data, int from) {
+        for (int i = from; i < data.length(); i++) {
+            char c = data.charAt(i);
+            if (c == '\n' || c == '\r') {
+                return i;
+            }
+        }
+        return data.length();
+    }
+
+    /**
+     * An encoded event.  The same instance is queued for every subscriber.
+     */
+    static class Event {
+        final long id;
+        final byte[] bytes;
+
+        Event(long id, byte[] bytes) {
+            this.id = id;
+            this.bytes = bytes;
+        }
+    }
+
+    private class Topic {
+        final CopyOnWriteArrayList subscribers = new CopyOnWriteArrayList();
+        final LinkedList history = new LinkedList();
+        boolean removed;
+        private long lastId;
+
+        /**
+         * Only called on the fan-out thread, so ids follow the order of publish() calls.
+         *
+         * @return false if the topic has been removed.
+         */
+        boolean publish(String event, String data) {
+            Event encoded;
+            Iterator i;
+            synchronized (this) {
+                if (removed) {
+                    return false;
+                }
+                lastId++;
+                encoded = new Event(lastId, encode(lastId, event, data));
+                history.addLast(encoded);
+                while (history.size() > historySize) {
+                    history.removeFirst();
+                }
+                // the subscribers as of now, so one subscribing after this gets the event from the history only.
+                i = subscribers.iterator();
+            }
+            while (i.hasNext()) {
+                ((Subscriber) i.next()).offer(encoded);
+            }
+            return true;
+        }
+
+        /**
+         * @return false if the topic has been removed.
+         */
+        boolean subscribe(Subscriber subscriber, String lastEventId, int maxReplay) {
+            // holding the lock keeps an event from being both replayed and delivered.
+            synchronized (this) {
+                if (removed) {
+                    return false;
+                }
+                if (lastEventId != null) {
+                    long seen = -1;
+                    try {
+                        seen = Long.parseLong(lastEventId.trim());
+                    } catch (NumberFormatException e) {
+                        log.debug("Ignoring Last-Event-ID " + lastEventId);
+                    }
+                    List missed = new ArrayList();
+                    for (Iterator i = history.iterator(); seen >= 0 && i.hasNext(); ) {
+                        Event event = (Event) i.next();
+                        if (event.id > seen) {
+                            missed.add(event);
+                        }
+                    }
+                    for (int i = Math.max(0, missed.size() - maxReplay); i < missed.size(); i++) {
+                        subscriber.offer((Event) missed.get(i));
+                    }
+                }
+                subscribers.add(subscriber);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * A client subscribed to a topic.
+     */
+    interface Subscriber {
+
+        /**
+         * Queues an event for the client.  Called on the fan-out thread, so it must not block.
+         */
+        void offer(Event event);
+
+        /**
+         * Ends the client's stream.
+         */
+        void close();
+    }
+}
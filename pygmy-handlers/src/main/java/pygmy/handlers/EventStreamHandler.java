@@ -0,0 +1,251 @@
+package pygmy.handlers;
+
+import lombok.extern.slf4j.Slf4j;
+import pygmy.core.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * Sends Server-Sent Events.  A GET for <i>url-prefix</i>/<i>topic</i> is answered with a text/event-stream that stays
+ * open and is sent every event published to the topic through the server's {@link EventBroker}, so a page can
+ * listen with <code>new EventSource("/events/prices")</code> instead of polling.  Events are encoded once by the
+ * broker and the same bytes are written to every client.  The stream is held by the request's thread, so
+ * <i>threadpool.size</i> has to leave room for the clients, and <i>max-subscribers</i> keeps them from taking every
+ * thread.
+ * </p>
+ * <p>
+ * Each client has a queue of up to <i>queue-size</i> events waiting to be written.  When a client reads too slowly
+ * and its queue is full, <i>drop-policy</i> decides what happens: <i>oldest</i> drops the oldest queued event,
+ * <i>newest</i> drops the new event, and <i>disconnect</i> ends the stream so the client reconnects and is sent what
+ * it missed from the broker's history.  A client that reconnects is sent at most the last <i>history</i> events it
+ * missed, and never more than <i>queue-size</i>, so the replay itself can't overflow its queue.  A comment is sent
+ * when no event has been written for <i>heartbeat</i> milliseconds, which keeps proxies from closing the connection
+ * and finds clients that have gone away.
+ * </p>
+ * <p>
+ * With <i>publish</i> set to true a POST to a topic publishes an event, with the <i>data</i> and <i>event</i>
+ * parameters of a form or the body of the request as the data.
+ * </p>
+ *
+ * <table class="inner">
+ * <tr class="header"><td>Parameter Name</td><td>Explanation</td><td>Default Value</td><td>Required</td></tr>
+ * <tr class="row"><td>url-prefix</td><td>The prefix to filter request urls.</td><td>/</td><td>No</td></tr>
+ * <tr class="altrow"><td>topics</td><td>A space or comma seperated list of the topics clients can subscribe to.</td><td>Any topic</td><td>No</td></tr>
+ * <tr class="row"><td>queue-size</td><td>The most events waiting to be written to a client.</td><td>64</td><td>No</td></tr>
+ * <tr class="altrow"><td>drop-policy</td><td>oldest, newest or disconnect.</td><td>oldest</td><td>No</td></tr>
+ * <tr class="row"><td>heartbeat</td><td>Milliseconds without events before a heartbeat is sent.</td><td>15000</td><td>No</td></tr>
+ * <tr class="altrow"><td>retry</td><td>Milliseconds clients wait before reconnecting.</td><td>3000</td><td>No</td></tr>
+ * <tr class="row"><td>history</td><td>Events kept of each topic for clients that reconnect.</td><td>100</td><td>No</td></tr>
+ * <tr class="altrow"><td>max-subscribers</td><td>The most clients connected at once.  More are answered with 503.</td><td>100</td><td>No</td></tr>
+ * <tr class="row"><td>publish</td><td>Allow events to be published with a POST.</td><td>false</td><td>No</td></tr>
+ * </table>
+ */
+@Slf4j
+public class EventStreamHandler extends AbstractHandler implements Handler {
+
+    public static final ConfigOption TOPICS_OPTION = new ConfigOption("topics", false, "A list of the topics clients can subscribe to.");
+    public static final ConfigOption QUEUE_SIZE_OPTION = new ConfigOption("queue-size", "64", "The most events waiting to be written to a client.");
+    public static final ConfigOption DROP_POLICY_OPTION = new ConfigOption("drop-policy", "oldest", "oldest, newest or disconnect.");
+    public static final ConfigOption HEARTBEAT_OPTION = new ConfigOption("heartbeat", "15000", "Milliseconds without events before a heartbeat is sent.");
+    public static final ConfigOption RETRY_OPTION = new ConfigOption("retry", "3000", "Milliseconds clients wait before reconnecting.");
+    public static final ConfigOption HISTORY_OPTION = new ConfigOption("history", "100", "Events kept of each topic for clients that reconnect.");
+    public static final ConfigOption MAX_SUBSCRIBERS_OPTION = new ConfigOption("max-subscribers", "100", "The most clients connected at once.");
+    public static final ConfigOption PUBLISH_OPTION = new ConfigOption("publish", "false", "Allow events to be published with a POST.");
+
+    private static final byte[] HEARTBEAT = {':', '\n', '\n'};
+    private static final EventBroker.Event CLOSED = new EventBroker.Event(-1, new byte[0]);
+    /**
+     * The most bytes written to a client before flushing, when several events are waiting.
+     */
+    private static final int MAX_BATCH = 65536;
+
+    private EventBroker broker;
+    private Set topics;
+    private int queueSize;
+    private int maxReplay;
+    private String dropPolicy;
+    private long heartbeat;
+    private byte[] retry;
+    private int maxSubscribers;
+    private boolean publish;
+    private final AtomicInteger subscriberCount = new AtomicInteger();
+
+    public boolean initialize(String handlerName, Server server) {
+        super.initialize(handlerName, server);
+        String topicList = TOPICS_OPTION.getProperty(server, handlerName);
+        if (topicList != null) {
+            topics = new HashSet();
+            StringTokenizer tokenizer = new StringTokenizer(topicList, " ,");
+            while (tokenizer.hasMoreTokens()) {
+                topics.add(tokenizer.nextToken());
+            }
+        }
+        dropPolicy = DROP_POLICY_OPTION.getProperty(server, handlerName);
+        if (!"oldest".equals(dropPolicy) && !"newest".equals(dropPolicy) && !"disconnect".equals(dropPolicy)) {
+            log.error(handlerName + " drop-policy must be oldest, newest or disconnect.");
+            return false;
+        }
+        publish = PUBLISH_OPTION.getBoolean(server, handlerName).booleanValue();
+        int history;
+        try {
+            queueSize = Math.max(1, QUEUE_SIZE_OPTION.getInteger(server, handlerName).intValue());
+            heartbeat = Long.parseLong(HEARTBEAT_OPTION.getProperty(server, handlerName));
+            retry = ("retry: " + Long.parseLong(RETRY_OPTION.getProperty(server, handlerName)) + "\n\n").getBytes("ISO-8859-1");
+            history = HISTORY_OPTION.getInteger(server, handlerName).intValue();
+            maxSubscribers = MAX_SUBSCRIBERS_OPTION.getInteger(server, handlerName).intValue();
+        } catch (NumberFormatException e) {
+            log.error(handlerName + " queue-size, heartbeat, retry, history and max-subscribers must be numbers.");
+            return false;
+        } catch (IOException e) {
+            throw new IllegalStateException(e.toString());
+        }
+        maxReplay = Math.max(0, Math.min(history, queueSize));
+        broker = EventBroker.getBroker(server);
+        broker.acquire(history);
+        return true;
+    }
+
+    public boolean shutdown(Server server) {
+        if (broker != null) {
+            broker.release();
+        }
+        return super.shutdown(server);
+    }
+
+    protected boolean handleBody(HttpRequest request, HttpResponse response) throws IOException {
+        String topic = request.getUrl().substring(getUrlPrefix().length());
+        while (topic.startsWith("/")) {
+            topic = topic.substring(1);
+        }
+        if (topic.length() == 0 || (topics != null && !topics.contains(topic))) {
+            return false;
+        }
+        if ("POST".equals(request.getMethod()) && publish) {
+            String data = request.getParameter("data");
+            if (data == null) {
+                data = (request.getPostData() != null) ? new String(request.getPostData(), "UTF-8") : "";
+            }
+            broker.publish(topic, request.getParameter("event"), data);
+            response.setStatusCode(HttpURLConnection.HTTP_NO_CONTENT);
+            return true;
+        }
+        if (!"GET".equals(request.getMethod()) && !"HEAD".equals(request.getMethod())) {
+            return false;
+        }
+
+        response.setMimeType("text/event-stream");
+        response.addHeader("Cache-Control", "no-cache");
+        // tells nginx not to buffer the stream.
+        response.addHeader("X-Accel-Buffering", "no");
+        if ("HEAD".equals(request.getMethod())) {
+            return true;
+        }
+        if (subscriberCount.incrementAndGet() > maxSubscribers) {
+            subscriberCount.decrementAndGet();
+            response.sendError(HttpURLConnection.HTTP_UNAVAILABLE, "Too many subscribers.");
+            return true;
+        }
+        Subscriber subscriber = new Subscriber();
+        try {
+            OutputStream out = response.startStreaming();
+            out.write(retry);
+            out.flush();
+            broker.subscribe(topic, subscriber, request.getRequestHeader("Last-Event-ID"), maxReplay);
+            stream(subscriber, out);
+        } finally {
+            broker.unsubscribe(topic, subscriber);
+            subscriberCount.decrementAndGet();
+            if (subscriber.dropped > 0 && log.isDebugEnabled()) {
+                log.debug(handlerName + " dropped " + subscriber.dropped + " events of " + topic + " for a slow client.");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the subscriber's events until it is closed or the client goes away.  Events that are already waiting
+     * are written together before flushing.
+     */
+    private void stream(Subscriber subscriber, OutputStream out) throws IOException {
+        while (true) {
+            EventBroker.Event event = subscriber.take(heartbeat);
+            if (event == CLOSED) {
+                return;
+            }
+            if (event == null) {
+                out.write(HEARTBEAT);
+                out.flush();
+                continue;
+            }
+            int written = 0;
+            while (event != null && event != CLOSED) {
+                out.write(event.bytes);
+                written += event.bytes.length;
+                event = (written < MAX_BATCH) ? subscriber.poll() : null;
+            }
+            out.flush();
+            if (event == CLOSED) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * The queue of events waiting to be written to one client.
+     */
+    private class Subscriber implements EventBroker.Subscriber {
+        private final BlockingQueue queue = new ArrayBlockingQueue(queueSize);
+        private volatile boolean closed;
+        long dropped;
+
+        public void offer(EventBroker.Event event) {
+            if (closed || queue.offer(event)) {
+                return;
+            }
+            if ("oldest".equals(dropPolicy)) {
+                do {
+                    queue.poll();
+                    dropped++;
+                } while (!queue.offer(event));
+            } else if ("newest".equals(dropPolicy)) {
+                dropped++;
+            } else {
+                dropped += queue.size() + 1;
+                close();
+            }
+        }
+
+        public void close() {
+            closed = true;
+            queue.clear();
+            queue.offer(CLOSED);
+        }
+
+        /**
+         * @return the next event, null if none came within the timeout, or CLOSED.
+         */
+        EventBroker.Event take(long timeout) {
+            try {
+                return closed ? CLOSED : (EventBroker.Event) queue.poll(timeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // the server is shutting down its threads.
+                Thread.currentThread().interrupt();
+                return CLOSED;
+            }
+        }
+
+        EventBroker.Event poll() {
+            return closed ? CLOSED : (EventBroker.Event) queue.poll();
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package pygmy.handlers;
+
+import pygmy.core.Http;
+import pygmy.core.Server;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ * Remembers what a url resolves to under a root directory, so that serving a file doesn't have to decode the url,
+ * check it is inside the root and ask the file system about it for every request.  Each {@link Entry} holds the
+ * resolved path with its size, modification time, mime type and whether it exists, is a directory, and can be
+ * read.  Urls that don't resolve to a file, or that point outside of the root, are remembered as well so that
+ * repeated requests for missing files are just as cheap.
+ * </p>
+ * <p>
+ * Entries are trusted for <i>ttl</i> milliseconds, after which the file system is asked again the next time the url
+ * is requested.  A ttl of 0 turns caching off.  Once there are <i>maxEntries</i> urls the expired ones are removed,
+ * and if that isn't enough the cache is emptied.
+ * </p>
+ */
+public class FileCache {
+
+    private final Server server;
+    private final Path root;
+    private final Path realRoot;
+    private final String defaultFile;
+    private final long ttl;
+    private final int maxEntries;
+    private final Map entries = new ConcurrentHashMap();
+
+    public FileCache(Server server, String root, String defaultFile, long ttl, int maxEntries) throws IOException {
+        this.server = server;
+        this.root = Paths.get(root).toAbsolutePath().normalize();
+        this.realRoot = this.root.toRealPath();
+        this.defaultFile = defaultFile;
+        this.ttl = ttl;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Finds what the url resolves to, asking the file system only if it isn't known or its entry has expired.
+     *
+     * @param url the url relative to the root, still url encoded.
+     * @return the entry for the url, never null.
+     */
+    public Entry lookup(String url) throws UnsupportedEncodingException {
+        if (ttl <= 0) {
+            return resolve(url, 0);
+        }
+        long now = System.currentTimeMillis();
+        Entry entry = (Entry) entries.get(url);
+        if (entry == null || entry.expires <= now) {
+            if (entry == null && entries.size() >= maxEntries) {
+                removeExpired(now);
+            }
+            entry = resolve(url, now + ttl);
+            entries.put(url, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Forgets everything, so the next lookup of every url goes to the file system.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    private void removeExpired(long now) {
+        for (Iterator i = entries.values().iterator(); i.hasNext(); ) {
+            if (((Entry) i.next()).expires <= now) {
+                i.remove();
+            }
+        }
+        if (entries.size() >= maxEntries) {
+            entries.clear();
+        }
+    }
+
+    private Entry resolve(String url, long expires) throws UnsupportedEncodingException {
+        String name = URLDecoder.decode(url, "UTF-8");
+        while (name.startsWith("/")) {
+            name = name.substring(1);
+        }
+        Entry entry = new Entry(expires);
+        Path path;
+        try {
+            path = root.resolve(name).normalize();
+        } catch (InvalidPathException e) {
+            return entry;
+        }
+        if (!path.startsWith(root)) {
+            return entry;
+        }
+        entry.secure = true;
+        entry.requestedPath = path.toString();
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            if (attributes.isDirectory()) {
+                path = path.resolve(defaultFile);
+                attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            }
+            // a symbolic link may still lead out of the root.
+            if (!path.toRealPath().startsWith(realRoot)) {
+                entry.secure = false;
+                return entry;
+            }
+            entry.path = path;
+            entry.exists = true;
+            entry.file = attributes.isRegularFile();
+            entry.readable = Files.isReadable(path);
+            entry.size = attributes.size();
+            entry.lastModified = attributes.lastModifiedTime().toMillis();
+            entry.lastModifiedHeader = Http.formatTime(entry.lastModified);
+            entry.mimeType = mimeType(path.getFileName().toString());
+        } catch (IOException e) {
+            entry.path = path;
+        }
+        return entry;
+    }
+
+    private String mimeType(String filename) {
+        int index = filename.lastIndexOf(".");
+        if (index > 0) {
+            return server.getProperty("mime" + filename.substring(index).toLowerCase());
+        }
+        return null;
+    }
+
+    /**
+     * What a url resolved to.  Entries are never changed once they are returned.
+     */
+    public static class Entry {
+        private final long expires;
+        private boolean secure;
+        private boolean exists;
+        private boolean file;
+        private boolean readable;
+        private Path path;
+        private String requestedPath;
+        private long size;
+        private long lastModified;
+        private String lastModifiedHeader;
+        private String mimeType;
+
+        Entry(long expires) {
+            this.expires = expires;
+        }
+
+        /**
+         * @return false if the url leads outside of the root.
+         */
+        public boolean isSecure() {
+            return secure;
+        }
+
+        public boolean exists() {
+            return exists;
+        }
+
+        /**
+         * @return true if the path is a regular file, rather than a directory or device.
+         */
+        public boolean isFile() {
+            return file;
+        }
+
+        public boolean isReadable() {
+            return readable;
+        }
+
+        /**
+         * @return the file to send, with the default file added if the url named a directory.
+         */
+        public Path getPath() {
+            return path;
+        }
+
+        /**
+         * @return the absolute path the url translates to, before the default file was added.
+         */
+        public String getRequestedPath() {
+            return requestedPath;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return the modification time formatted for the Last-Modified header.
+         */
+        public String getLastModifiedHeader() {
+            return lastModifiedHeader;
+        }
+
+        /**
+         * @return the mime type of the file, or null if none is configured for its extension.
+         */
+        public String getMimeType() {
+            return mimeType;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package pygmy.handlers;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Keeps read only FileChannels open so that popular files aren't opened again for every request.  A channel is
+ * shared by every response sending the file at the same time, which is safe since they only use positional reads.
+ * Each user takes a {@link Handle} with {@link #acquire} and must give it back with {@link #release}.  At most
+ * <i>maxOpen</i> channels are kept; the least recently used is evicted when another file is opened, and a channel is
+ * only closed once it has been evicted and every response using it has released it.  A file whose modification time
+ * changed is opened again, so a file replaced on disk is never served from the old channel to new requests.
+ * </p>
+ */
+@Slf4j
+public class FileChannelCache {
+
+    private final int maxOpen;
+    private final LinkedHashMap handles;
+    private boolean closed;
+
+    public FileChannelCache(int maxOpen) {
+        this.maxOpen = maxOpen;
+        this.handles = new LinkedHashMap(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry eldest) {
+                if (size() > FileChannelCache.this.maxOpen) {
+                    ((Handle) eldest.getValue()).evict();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Takes a reference to an open channel for the file, opening it if it isn't open already.
+     *
+     * @param path         the file.
+     * @param lastModified the modification time of the file the caller expects.
+     * @return the handle, which must be given back to {@link #release}.
+     * @throws IOException if the file can't be opened.
+     */
+    public Handle acquire(Path path, long lastModified) throws IOException {
+        synchronized (this) {
+            Handle handle = (Handle) handles.get(path);
+            if (handle != null && handle.lastModified == lastModified) {
+                handle.references++;
+                return handle;
+            }
+        }
+        // opening is done outside the lock so a slow file system doesn't hold up requests for other files.
+        Handle opened = new Handle(FileChannel.open(path, StandardOpenOption.READ), lastModified);
+        synchronized (this) {
+            opened.references++;
+            Handle handle = (Handle) handles.get(path);
+            if (handle != null && handle.lastModified == lastModified) {
+                handle.references++;
+                opened.references--;
+                opened.evict();
+                return handle;
+            }
+            if (handle != null) {
+                handle.evict();
+            }
+            if (closed) {
+                opened.evicted = true;
+            } else {
+                handles.put(path, opened);
+            }
+            return opened;
+        }
+    }
+
+    /**
+     * Gives back a handle taken with {@link #acquire}.
+     *
+     * @param handle the handle.
+     */
+    public synchronized void release(Handle handle) {
+        handle.references--;
+        if (handle.evicted && handle.references == 0) {
+            handle.close();
+        }
+    }
+
+    /**
+     * Evicts every channel.  Channels still in use are closed as soon as they are released.
+     */
+    public synchronized void close() {
+        closed = true;
+        for (Iterator i = handles.values().iterator(); i.hasNext(); ) {
+            ((Handle) i.next()).evict();
+        }
+        handles.clear();
+    }
+
+    /**
+     * A reference to a shared channel.  The fields are guarded by the cache.  The channel is closed once it has been
+     * evicted and no response holds a reference to it.
+     */
+    public static class Handle {
+        private final FileChannel channel;
+        private final long lastModified;
+        private int references;
+        private boolean evicted;
+
+        Handle(FileChannel channel, long lastModified) {
+            this.channel = channel;
+            this.lastModified = lastModified;
+        }
+
+        public FileChannel getChannel() {
+            return channel;
+        }
+
+        private void evict() {
+            if (evicted) {
+                return;
+            }
+            evicted = true;
+            if (references == 0) {
+                close();
+            }
+        }
+
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.debug("Could not close channel: {}", e.getMessage());
+            }
+        }
+    }
+}
@@ -17,12 +17,22 @@ import java.text.ParseException;
  * directory requests, but will serve up default files ( like index.html, if the config parameter is set ).  It does
  * not provide a directory listing see {@link DirectoryHandler} for that functionality.
  * </p>
+ * <p>
+ * What each url resolves to, and the file's size, modification time and mime type, are kept in a {@link FileCache}
+ * for <i>cache-ttl</i> milliseconds, so popular files are served without asking the file system about them again.
+ * Urls that weren't found are remembered too.  Set cache-ttl to 0 if files change and must be seen immediately.
+ * Files are only opened when their body is sent, not for HEAD requests or 304 responses.  With <i>open-files</i>
+ * set, up to that many files are kept open in a {@link FileChannelCache} and shared between requests.
+ * </p>
  *
  * <table class="inner">
  * <tr class="header"><td>Parameter Name</td><td>Explanation</td><td>Default Value</td><td>Required</td></tr>
  * <tr class="row"><td>url-prefix</td><td>The prefix to filter request urls.</td><td>None</td><td>Yes</td></tr>
  * <tr class="altrow"><td>root</td><td>A local system path to the root of the folder to share.</td><td>None</td><td>Yes</td></tr>
  * <tr class="row"><td>default-file</td><td>The name of the default file that should be used if no file is specified in the URL.</td><td>index.html</td><td>No</td></tr>
+ * <tr class="altrow"><td>cache-ttl</td><td>Milliseconds that what a url resolves to is remembered.  0 turns the cache off.</td><td>1000</td><td>No</td></tr>
+ * <tr class="row"><td>cache-size</td><td>The most urls remembered.</td><td>10000</td><td>No</td></tr>
+ * <tr class="altrow"><td>open-files</td><td>The most files kept open between requests.  0 opens each file for every request.</td><td>0</td><td>No</td></tr>
  * </table>
  */
 @Slf4j
@@ -30,6 +40,9 @@ public class FileHandler extends AbstractHandler implements Handler {
 
     public static final ConfigOption ROOT_OPTION = new ConfigOption("root", true, "The path to the directory share files.");
     public static final ConfigOption DEFAULT_FILE_OPTION = new ConfigOption("default-file", "index.html", "The default file to send if no file is specified.");
+    public static final ConfigOption CACHE_TTL_OPTION = new ConfigOption("cache-ttl", "1000", "Milliseconds that what a url resolves to is remembered.");
+    public static final ConfigOption CACHE_SIZE_OPTION = new ConfigOption("cache-size", "10000", "The most urls remembered.");
+    public static final ConfigOption OPEN_FILES_OPTION = new ConfigOption("open-files", "0", "The most files kept open between requests.");
 
     public static final String IF_MODIFIED = "If-Modified-Since";
     public static final String LAST_MODIFIED_KEY = "Last-Modified";
@@ -37,38 +50,95 @@ public class FileHandler extends AbstractHandler implements Handler {
 
     private String root;
     private String defaultFile;
+    private FileCache cache;
+    private FileChannelCache channelCache;
 
     public boolean initialize(String handlerName, Server server) {
         super.initialize(handlerName, server);
         root = ROOT_OPTION.getProperty(server, handlerName);
         defaultFile = DEFAULT_FILE_OPTION.getProperty(server, handlerName);
+        long ttl = 1000;
+        int size = 10000;
+        int openFiles = 0;
+        try {
+            ttl = Long.parseLong(CACHE_TTL_OPTION.getProperty(server, handlerName));
+            size = CACHE_SIZE_OPTION.getInteger(server, handlerName).intValue();
+            openFiles = OPEN_FILES_OPTION.getInteger(server, handlerName).intValue();
+        } catch (NumberFormatException e) {
+            log.warn(handlerName + " cache-ttl, cache-size and open-files must be numbers.  Using the defaults.");
+        }
+        if (openFiles > 0) {
+            channelCache = new FileChannelCache(openFiles);
+        }
+        try {
+            cache = new FileCache(server, root, defaultFile, ttl, size);
+        } catch (IOException e) {
+            log.error(handlerName + " root " + root + " does not exist.", e);
+            return false;
+        }
         return true;
     }
 
+    public boolean shutdown(Server server) {
+        if (channelCache != null) {
+            channelCache.close();
+        }
+        return super.shutdown(server);
+    }
+
     protected boolean handleBody(HttpRequest request, HttpResponse response) throws IOException {
-        File file = Http.translatePath(root, request.getUrl().substring(getUrlPrefix().length()));
-        if (!Http.isSecure(root, file)) {
-            log.warn("Access denied to " + file.getAbsolutePath());
+        FileCache.Entry entry = cache.lookup(request.getUrl().substring(getUrlPrefix().length()));
+        if (!entry.isSecure()) {
+            log.warn("Access denied to " + request.getUrl());
             return false;
         }
-        request.putProperty("file-path", file.getAbsolutePath());
-        if (file.isDirectory()) {
-            file = new File(file, defaultFile);
-        }
-        if (!file.exists()) {
-            log.warn("File " + file.getAbsolutePath() + " was not found.");
+        request.putProperty("file-path", entry.getRequestedPath());
+        if (!entry.exists()) {
+            log.warn("File " + entry.getPath() + " was not found.");
             return false;
         }
-        String type = getMimeType(file.getName());
-        if (type != null) {
-            sendFile(request, response, file, type);
+        if (entry.getMimeType() != null) {
+            sendFile(request, response, entry);
             return true;
         } else {
-            log.warn("Mime type for file " + file.getAbsolutePath() + " was not found.");
+            log.warn("Mime type for file " + entry.getPath() + " was not found.");
             return false;
         }
     }
 
+    protected void sendFile(HttpRequest request, HttpResponse response, FileCache.Entry entry) throws IOException {
+        if (!entry.isFile()) {
+            response.sendError(HttpURLConnection.HTTP_NOT_FOUND, " not a normal file");
+            return;
+        }
+        if (!entry.isReadable()) {
+            response.sendError(HttpURLConnection.HTTP_FORBIDDEN, " Permission Denied");
+            return;
+        }
+        if (isNotModified(request, entry.getLastModified())) {
+            response.setStatusCode(HttpURLConnection.HTTP_NOT_MODIFIED);
+            return;
+        }
+        response.addHeader(LAST_MODIFIED_KEY, entry.getLastModifiedHeader());
+        long[] range = getRange(request, entry.getSize());
+        response.setMimeType(entry.getMimeType());
+        response.sendResponse(createBody(response, entry, range[0], range[1] - range[0]));
+    }
+
+    /**
+     * Creates the data that sends the file.  Subclasses can override this to send files some other way.
+     *
+     * @param response the response the data is for.
+     * @param entry    the file.
+     * @param offset   the first byte to send.
+     * @param length   the number of bytes to send.
+     * @return the data.
+     * @throws IOException if the file can't be read.
+     */
+    protected ResponseData createBody(HttpResponse response, FileCache.Entry entry, long offset, long length) throws IOException {
+        return new FileResponseData(entry.getPath(), entry.getLastModified(), offset, length, channelCache, response.getBufferPool());
+    }
+
     static public void sendFile(HttpRequest request, HttpResponse response, File file, String type) throws IOException {
         if (!file.isFile()) {
             response.sendError(HttpURLConnection.HTTP_NOT_FOUND, " not a normal file");
@@ -79,28 +149,31 @@ public class FileHandler extends AbstractHandler implements Handler {
             return;
         }
 
+        if (isNotModified(request, file.lastModified())) {
+            response.setStatusCode(HttpURLConnection.HTTP_NOT_MODIFIED);
+            return;
+        }
+        response.addHeader(LAST_MODIFIED_KEY, Http.formatTime(file.lastModified()));
+        long[] range = getRange(request, file.length());
+        response.setMimeType(type);
+        response.sendResponse(new FileResponseData(file.toPath(), file.lastModified(), range[0], range[1] - range[0], null, response.getBufferPool()));
+    }
+
+    private static boolean isNotModified(HttpRequest request, long lastModified) {
         if (request.getRequestHeader(IF_MODIFIED) != null) {
             try {
-                long modified = Http.parseTime(request.getRequestHeader(IF_MODIFIED));
-                if (file.lastModified() <= modified) {
-                    response.setStatusCode(HttpURLConnection.HTTP_NOT_MODIFIED);
-                    return;
-                }
+                return lastModified <= Http.parseTime(request.getRequestHeader(IF_MODIFIED));
             } catch (ParseException ignore) {
                 // ignore the date.
             }
         }
-        InputStream in = new BufferedInputStream(new FileInputStream(file));
-        response.addHeader(LAST_MODIFIED_KEY, Http.formatTime(file.lastModified()));
-        long[] range = getRange(request, file);
-        response.setMimeType(type);
-        response.sendResponse(in, range[0], range[1]);
+        return false;
     }
 
-    private static long[] getRange(HttpRequest request, File file) {
+    private static long[] getRange(HttpRequest request, long length) {
         long range[] = new long[2];
         range[0] = 0;
-        range[1] = file.length();
+        range[1] = length;
         String rangeStr = request.getRequestHeader(RANGE_HEADER_KEY, "bytes=0-");
         int equalSplit = rangeStr.indexOf("=") + 1;
         int split = rangeStr.indexOf("-");
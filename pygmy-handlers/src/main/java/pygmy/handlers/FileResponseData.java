@@ -0,0 +1,96 @@
+package pygmy.handlers;
+
+import pygmy.core.BufferPool;
+import pygmy.core.ResponseData;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Sends a range of a file.  The file isn't opened until the data is actually sent, so HEAD requests and responses
+ * that are replaced by an error never touch it, and it is closed again when the response is finished with it.  If a
+ * {@link FileChannelCache} is given the channel is borrowed from it instead of being opened.
+ */
+public class FileResponseData implements ResponseData {
+
+    private static final int SEND_BUFFER_SIZE = 8192;
+
+    private final Path path;
+    private final long lastModified;
+    private final long offset;
+    private final long length;
+    private final FileChannelCache cache;
+    private final BufferPool bufferPool;
+    private FileChannelCache.Handle handle;
+    private FileChannel channel;
+
+    public FileResponseData(Path path, long lastModified, long offset, long length, FileChannelCache cache, BufferPool bufferPool) {
+        this.path = path;
+        this.lastModified = lastModified;
+        this.offset = offset;
+        this.length = length;
+        this.cache = cache;
+        this.bufferPool = bufferPool;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public void send(OutputStream os) throws IOException {
+        open();
+        byte[] buffer = (bufferPool != null) ? bufferPool.acquire(SEND_BUFFER_SIZE) : new byte[(int) Math.max(1, Math.min(SEND_BUFFER_SIZE, length))];
+        try {
+            ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+            long position = offset;
+            long end = offset + length;
+            while (position < end) {
+                wrapped.clear();
+                if (end - position < wrapped.capacity()) {
+                    wrapped.limit((int) (end - position));
+                }
+                // positional reads leave the channel's own position alone, so a shared channel can be read at once.
+                int read = channel.read(wrapped, position);
+                if (read < 0) {
+                    break;
+                }
+                os.write(buffer, 0, read);
+                position += read;
+            }
+        } finally {
+            if (bufferPool != null) {
+                bufferPool.release(buffer);
+            }
+        }
+    }
+
+    private void open() throws IOException {
+        if (channel != null) {
+            return;
+        }
+        if (cache != null) {
+            handle = cache.acquire(path, lastModified);
+            channel = handle.getChannel();
+        } else {
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+        }
+    }
+
+    public void close() {
+        if (handle != null) {
+            cache.release(handle);
+            handle = null;
+        } else if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing more can be done with it.
+            }
+        }
+        channel = null;
+    }
+}
@@ -0,0 +1,375 @@
+package pygmy.handlers;
+
+import lombok.extern.slf4j.Slf4j;
+import pygmy.core.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * <p>
+ * Assembles pages from fragments with server side includes.  Files under <i>root</i> whose names end in one of the
+ * <i>extensions</i> are pages, and every <code>&lt;!--#include virtual="/url" --&gt;</code> in a page is replaced by
+ * the body of an internal request for the url.  A url not starting with / is relative to the page's url.  All the
+ * fragments of a page are requested at the same time on the server's {@link ThreadPool}, so the page takes as long
+ * as its slowest fragment rather than the sum of them.  When the pool is too busy to start a fragment, the request
+ * for the page fetches it itself, so pages still complete while every pool thread is serving other pages.  A handler
+ * can't be interrupted, so a fragment fetched that way is waited for even past its timeout.
+ * </p>
+ * <p>
+ * A fragment that isn't answered with a 2xx status within <i>timeout</i> milliseconds is replaced by the
+ * <i>fallback</i> text.  An include can set its own with <code>timeout="500"</code> and <code>fallback="..."</code>
+ * attributes.  Fragments get the headers of the page's request, except conditional and range headers, and can be
+ * pages with includes themselves up to <i>max-depth</i> levels deep.
+ * </p>
+ * <p>
+ * Pages are parsed once and kept as a list of the text between includes and the includes.  A page's modification
+ * time is checked at most every <i>reload-interval</i> milliseconds and it is parsed again when it changes.  The
+ * text of the page is sent from the parsed copy, shared by every request, together with the bodies of the fragments.
+ * </p>
+ *
+ * <table class="inner">
+ * <tr class="header"><td>Parameter Name</td><td>Explanation</td><td>Default Value</td><td>Required</td></tr>
+ * <tr class="row"><td>url-prefix</td><td>The prefix to filter request urls.</td><td>/</td><td>No</td></tr>
+ * <tr class="altrow"><td>root</td><td>A local system path to the directory of the pages.</td><td>None</td><td>Yes</td></tr>
+ * <tr class="row"><td>extensions</td><td>A space or comma seperated list of the endings of page file names.</td><td>.shtml</td><td>No</td></tr>
+ * <tr class="altrow"><td>timeout</td><td>Milliseconds a page waits for a fragment.</td><td>2000</td><td>No</td></tr>
+ * <tr class="row"><td>fallback</td><td>The text sent in place of a fragment that failed or timed out.</td><td>None</td><td>No</td></tr>
+ * <tr class="altrow"><td>max-depth</td><td>How deeply fragments can include other fragments.</td><td>3</td><td>No</td></tr>
+ * <tr class="row"><td>reload-interval</td><td>Milliseconds between checks of a page for changes.</td><td>1000</td><td>No</td></tr>
+ * <tr class="altrow"><td>cache-size</td><td>The most parsed pages kept.</td><td>1000</td><td>No</td></tr>
+ * </table>
+ */
+@Slf4j
+public class IncludeHandler extends AbstractHandler implements Handler {
+
+    public static final ConfigOption ROOT_OPTION = new ConfigOption("root", true, "The path to the directory of the pages.");
+    public static final ConfigOption EXTENSIONS_OPTION = new ConfigOption("extensions", ".shtml", "A list of the endings of page file names.");
+    public static final ConfigOption TIMEOUT_OPTION = new ConfigOption("timeout", "2000", "Milliseconds a page waits for a fragment.");
+    public static final ConfigOption FALLBACK_OPTION = new ConfigOption("fallback", "", "The text sent in place of a fragment that failed.");
+    public static final ConfigOption MAX_DEPTH_OPTION = new ConfigOption("max-depth", "3", "How deeply fragments can include other fragments.");
+    public static final ConfigOption RELOAD_INTERVAL_OPTION = new ConfigOption("reload-interval", "1000", "Milliseconds between checks of a page for changes.");
+    public static final ConfigOption CACHE_SIZE_OPTION = new ConfigOption("cache-size", "1000", "The most parsed pages kept.");
+
+    /**
+     * The request property holding how many includes deep a fragment request is.
+     */
+    public static final String DEPTH_KEY = "include-depth";
+
+    private static final Pattern INCLUDE = Pattern.compile("<!--#include\\s+(.*?)\\s*-->", Pattern.DOTALL);
+    private static final Pattern ATTRIBUTE = Pattern.compile("([\\w-]+)\\s*=\\s*\"([^\"]*)\"");
+    private static final String[] SKIPPED_HEADERS = {
+            "Connection", "Content-Length", "Transfer-Encoding", "Expect", "If-Modified-Since", "If-Unmodified-Since",
+            "If-None-Match", "If-Match", "If-Range", "Range"
+    };
+
+    private Path root;
+    private String[] extensions;
+    private long timeout;
+    private ByteBuffer fallback;
+    private int maxDepth;
+    private long reloadInterval;
+    private int cacheSize;
+    private final ConcurrentHashMap templates = new ConcurrentHashMap();
+
+    public boolean initialize(String handlerName, Server server) {
+        super.initialize(handlerName, server);
+        root = Paths.get(ROOT_OPTION.getProperty(server, handlerName)).toAbsolutePath().normalize();
+        if (!Files.isDirectory(root)) {
+            log.error(handlerName + " root " + root + " does not exist.");
+            return false;
+        }
+        List list = new ArrayList();
+        StringTokenizer tokenizer = new StringTokenizer(EXTENSIONS_OPTION.getProperty(server, handlerName), " ,");
+        while (tokenizer.hasMoreTokens()) {
+            list.add(tokenizer.nextToken().toLowerCase());
+        }
+        extensions = (String[]) list.toArray(new String[list.size()]);
+        try {
+            fallback = ByteBuffer.wrap(FALLBACK_OPTION.getProperty(server, handlerName).getBytes("UTF-8")).asReadOnlyBuffer();
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.toString());
+        }
+        try {
+            timeout = Long.parseLong(TIMEOUT_OPTION.getProperty(server, handlerName));
+            maxDepth = MAX_DEPTH_OPTION.getInteger(server, handlerName).intValue();
+            reloadInterval = Long.parseLong(RELOAD_INTERVAL_OPTION.getProperty(server, handlerName));
+            cacheSize = CACHE_SIZE_OPTION.getInteger(server, handlerName).intValue();
+        } catch (NumberFormatException e) {
+            log.error(handlerName + " timeout, max-depth, reload-interval and cache-size must be numbers.");
+            return false;
+        }
+        return true;
+    }
+
+    public boolean shutdown(Server server) {
+        templates.clear();
+        return super.shutdown(server);
+    }
+
+    protected boolean handleBody(HttpRequest request, HttpResponse response) throws IOException {
+        if (!isPage(request.getUrl()) || !("GET".equals(request.getMethod()) || "HEAD".equals(request.getMethod()))) {
+            return false;
+        }
+        Path path = translatePath(request.getUrl());
+        if (path == null || !Files.isRegularFile(path)) {
+            return false;
+        }
+        Object[] parts = getTemplate(path).getParts(reloadInterval);
+        int depth = Integer.parseInt(request.getProperty(DEPTH_KEY, "0"));
+
+        long start = System.currentTimeMillis();
+        Fragment[] fragments = new Fragment[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            if (parts[i] instanceof Include && depth < maxDepth) {
+                fragments[i] = new Fragment((Include) parts[i], fragmentRequest(request, (Include) parts[i], depth + 1));
+                server.post(fragments[i]);
+            }
+        }
+
+        ByteBuffer[] body = new ByteBuffer[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            if (parts[i] instanceof ByteBuffer) {
+                body[i] = (ByteBuffer) parts[i];
+                continue;
+            }
+            Include include = (Include) parts[i];
+            ByteBuffer fragment = null;
+            if (fragments[i] != null) {
+                long wait = start + ((include.timeout >= 0) ? include.timeout : timeout) - System.currentTimeMillis();
+                // a fragment the pool hasn't started yet is fetched here rather than waited for.
+                if (wait > 0) {
+                    fragments[i].run();
+                } else {
+                    fragments[i].cancel();
+                }
+                fragment = fragments[i].await(wait);
+                if (fragment == null && log.isDebugEnabled()) {
+                    log.debug(handlerName + " used the fallback for " + include.url + " in " + request.getUrl());
+                }
+            }
+            body[i] = (fragment != null) ? fragment : ((include.fallback != null) ? include.fallback : fallback);
+        }
+        String mimeType = getMimeType(path.getFileName().toString());
+        response.setMimeType((mimeType != null) ? mimeType : "text/html");
+        response.sendResponse(new ByteBufferResponseData(body, response.getBufferPool()));
+        return true;
+    }
+
+    private boolean isPage(String url) {
+        String lower = url.toLowerCase();
+        for (int i = 0; i < extensions.length; i++) {
+            if (lower.endsWith(extensions[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Path translatePath(String url) throws UnsupportedEncodingException {
+        String name = URLDecoder.decode(url.substring(getUrlPrefix().length()), "UTF-8");
+        while (name.startsWith("/")) {
+            name = name.substring(1);
+        }
+        try {
+            Path path = root.resolve(name).normalize();
+            return path.startsWith(root) ? path : null;
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
+    private HttpRequest fragmentRequest(HttpRequest page, Include include, int depth) {
+        String url = include.url;
+        if (!url.startsWith("/")) {
+            String pageUrl = page.getUrl();
+            url = pageUrl.substring(0, pageUrl.lastIndexOf('/') + 1) + url;
+        }
+        HttpRequest request = new HttpRequest(url, server.getConfig(), true);
+        HttpHeaders headers = page.getHeaders();
+        for (Iterator i = headers.iterator(); i.hasNext(); ) {
+            String key = (String) i.next();
+            boolean skipped = false;
+            for (int j = 0; j < SKIPPED_HEADERS.length && !skipped; j++) {
+                skipped = SKIPPED_HEADERS[j].equalsIgnoreCase(key);
+            }
+            if (!skipped) {
+                request.getHeaders().put(key, headers.get(key));
+            }
+        }
+        request.putProperty(DEPTH_KEY, String.valueOf(depth));
+        return request;
+    }
+
+    private CachedTemplate getTemplate(Path path) {
+        CachedTemplate template = (CachedTemplate) templates.get(path);
+        if (template == null) {
+            template = new CachedTemplate(path);
+            if (templates.size() < cacheSize) {
+                CachedTemplate existing = (CachedTemplate) templates.putIfAbsent(path, template);
+                if (existing != null) {
+                    template = existing;
+                }
+            }
+        }
+        return template;
+    }
+
+    /**
+     * Splits a page into the text between includes, as read only buffers, and {@link Include}s.  The page is read
+     * as ISO-8859-1 so every char is one byte of the file and the text is kept in the file's own encoding.
+     */
+    static Object[] parse(byte[] page) throws UnsupportedEncodingException {
+        String text = new String(page, "ISO-8859-1");
+        List parts = new ArrayList();
+        Matcher matcher = INCLUDE.matcher(text);
+        int last = 0;
+        while (matcher.find()) {
+            Include include = new Include();
+            Matcher attribute = ATTRIBUTE.matcher(matcher.group(1));
+            while (attribute.find()) {
+                String name = attribute.group(1).toLowerCase();
+                String value = attribute.group(2);
+                if ("virtual".equals(name)) {
+                    include.url = value;
+                } else if ("timeout".equals(name)) {
+                    try {
+                        include.timeout = Long.parseLong(value);
+                    } catch (NumberFormatException e) {
+                        log.warn("Ignoring include timeout " + value + ", it is not a number.");
+                    }
+                } else if ("fallback".equals(name)) {
+                    include.fallback = ByteBuffer.wrap(value.getBytes("ISO-8859-1")).asReadOnlyBuffer();
+                }
+            }
+            if (include.url == null) {
+                // not an include we understand, so it's left in the page as it is.
+                continue;
+            }
+            if (matcher.start() > last) {
+                parts.add(ByteBuffer.wrap(page, last, matcher.start() - last).slice().asReadOnlyBuffer());
+            }
+            parts.add(include);
+            last = matcher.end();
+        }
+        if (last < page.length) {
+            parts.add(ByteBuffer.wrap(page, last, page.length - last).slice().asReadOnlyBuffer());
+        }
+        return parts.toArray();
+    }
+
+    private static class Include {
+        String url;
+        long timeout = -1;
+        ByteBuffer fallback;
+    }
+
+    /**
+     * A page and its parts when it was last parsed.  Parsing is synchronized so a changed page is only parsed once
+     * however many requests are waiting for it.
+     */
+    private static class CachedTemplate {
+        private final Path path;
+        private volatile Object[] parts;
+        private volatile long nextCheck;
+        private long lastModified;
+
+        CachedTemplate(Path path) {
+            this.path = path;
+        }
+
+        Object[] getParts(long reloadInterval) throws IOException {
+            Object[] current = parts;
+            if (current != null && System.currentTimeMillis() < nextCheck) {
+                return current;
+            }
+            synchronized (this) {
+                long modified = Files.getLastModifiedTime(path).toMillis();
+                if (parts == null || modified != lastModified) {
+                    parts = parse(Files.readAllBytes(path));
+                    lastModified = modified;
+                }
+                nextCheck = System.currentTimeMillis() + reloadInterval;
+                return parts;
+            }
+        }
+    }
+
+    /**
+     * The internal request for one include.  It runs once, on whichever thread claims it first: a pool thread, or
+     * the page's own thread when the pool hasn't got to it by the time the page needs it.
+     */
+    private class Fragment implements Runnable {
+        private final Include include;
+        private final HttpRequest request;
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile ByteBuffer body;
+
+        Fragment(Include include, HttpRequest request) {
+            this.include = include;
+            this.request = request;
+        }
+
+        public void run() {
+            if (!claimed.compareAndSet(false, true)) {
+                return;
+            }
+            HttpResponse response = new HttpResponse(request, new ByteArrayOutputStream());
+            try {
+                if (server.post(request, response) && response.getStatusCode() / 100 == 2 && !response.isStreaming()) {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.max(0, response.getContentLength()));
+                    response.drainBody(out);
+                    body = ByteBuffer.wrap(out.toByteArray()).asReadOnlyBuffer();
+                } else if (log.isDebugEnabled()) {
+                    log.debug(handlerName + " include " + include.url + " answered " + response.getStatusCode());
+                }
+            } catch (Exception e) {
+                log.warn(handlerName + " include " + include.url + " failed: " + e.getMessage());
+            } finally {
+                response.release();
+                done.countDown();
+            }
+        }
+
+        /**
+         * Stops the fragment from being fetched if it hasn't been started yet.
+         */
+        void cancel() {
+            if (claimed.compareAndSet(false, true)) {
+                done.countDown();
+            }
+        }
+
+        /**
+         * @return the body of the fragment, or null if it failed or didn't finish in time.
+         */
+        ByteBuffer await(long wait) {
+            try {
+                if (wait > 0 && done.await(wait, TimeUnit.MILLISECONDS)) {
+                    return body;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return (done.getCount() == 0) ? body : null;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package pygmy.handlers;
+
+import lombok.extern.slf4j.Slf4j;
+import pygmy.core.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>
+ * This handler allows or denies requests by the client's network.  Rules are CIDR blocks for IPv4 or IPv6, i.e.
+ * <code>10.0.0.0/8</code> or <code>2001:db8::/32</code>, each marked allow or deny.  The most specific rule that
+ * contains the client's address decides, and clients no rule matches get the <i>default</i>.  Denied requests are
+ * answered with 403 Forbidden, allowed requests are passed down the chain, so put it at the front of a chain.
+ * </p>
+ * <p>
+ * Rules are compiled into a binary trie over the bits of the address, so checking a client takes at most 32 steps for
+ * IPv4 and 128 for IPv6 however many rules there are, and works on the raw bytes of the client's address without
+ * any string parsing.  Rules come from the <i>allow</i> and <i>deny</i> lists and from the <i>rules</i> file, which
+ * has one rule per line:
+ * </p>
+ * <div class="code"><pre>
+ * # comment
+ * allow 10.0.0.0/8
+ * deny 10.1.2.0/24
+ * deny 2001:db8::/32
+ * </pre></div>
+ * <p>
+ * The file's modification time is checked at most every <i>reload-interval</i> seconds, and the rules are rebuilt
+ * when it changes.  Requests keep using the old rules while the new ones are built.  If the file can't be read the
+ * old rules stay in effect.
+ * </p>
+ *
+ * <table class="inner">
+ * <tr class="header"><td>Parameter Name</td><td>Explanation</td><td>Default Value</td><td>Required</td></tr>
+ * <tr class="row"><td>rules</td><td>File of allow and deny rules.</td><td>None</td><td>No</td></tr>
+ * <tr class="altrow"><td>allow</td><td>Space or comma separated list of CIDR blocks to allow.</td><td>None</td><td>No</td></tr>
+ * <tr class="row"><td>deny</td><td>Space or comma separated list of CIDR blocks to deny.</td><td>None</td><td>No</td></tr>
+ * <tr class="altrow"><td>default</td><td>allow or deny clients that match no rule.</td><td>allow</td><td>No</td></tr>
+ * <tr class="row"><td>reload-interval</td><td>Seconds between checks of the rules file for changes.</td><td>10</td><td>No</td></tr>
+ * </table>
+ */
+@Slf4j
+public class IpAccessHandler extends AbstractHandler implements Handler {
+
+    public static final ConfigOption RULES_OPTION = new ConfigOption("rules", false, "File of allow and deny rules.");
+    public static final ConfigOption ALLOW_OPTION = new ConfigOption("allow", false, "List of CIDR blocks to allow.");
+    public static final ConfigOption DENY_OPTION = new ConfigOption("deny", false, "List of CIDR blocks to deny.");
+    public static final ConfigOption DEFAULT_OPTION = new ConfigOption("default", "allow", "allow or deny clients that match no rule.");
+    public static final ConfigOption RELOAD_INTERVAL_OPTION = new ConfigOption("reload-interval", "10", "Seconds between checks of the rules file.");
+
+    private File rulesFile;
+    private long reloadInterval;
+    private boolean allowByDefault;
+    private volatile Rules rules;
+    private volatile long nextCheck;
+    private long lastModified;
+    private final AtomicBoolean reloading = new AtomicBoolean();
+
+    public boolean initialize(String handlerName, Server server) {
+        super.initialize(handlerName, server);
+        allowByDefault = !"deny".equalsIgnoreCase(DEFAULT_OPTION.getProperty(server, handlerName));
+        String filename = RULES_OPTION.getProperty(server, handlerName);
+        rulesFile = (filename != null) ? new File(filename) : null;
+        try {
+            reloadInterval = RELOAD_INTERVAL_OPTION.getInteger(server, handlerName).intValue() * 1000L;
+        } catch (NumberFormatException e) {
+            log.warn(handlerName + " reload-interval was not a number using default of 10");
+            reloadInterval = 10000;
+        }
+        try {
+            rules = loadRules();
+        } catch (IOException e) {
+            log.error(handlerName + " could not read rules file " + rulesFile, e);
+            return false;
+        }
+        nextCheck = System.currentTimeMillis() + reloadInterval;
+        return true;
+    }
+
+    protected boolean handleBody(HttpRequest request, HttpResponse response) throws IOException {
+        InetAddress address = request.getRemoteInetAddress();
+        if (address == null) {
+            return false;
+        }
+        if (rulesFile != null && System.currentTimeMillis() >= nextCheck) {
+            reloadIfChanged();
+        }
+        if (rules.isAllowed(address.getAddress(), allowByDefault)) {
+            return false;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug(address.getHostAddress() + " was denied access to " + request.getUrl());
+        }
+        response.sendError(HttpURLConnection.HTTP_FORBIDDEN, " is not available to your network.");
+        return true;
+    }
+
+    private void reloadIfChanged() {
+        if (!reloading.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            nextCheck = System.currentTimeMillis() + reloadInterval;
+            if (rulesFile.lastModified() != lastModified) {
+                rules = loadRules();
+                log.info(handlerName + " reloaded rules from " + rulesFile);
+            }
+        } catch (IOException e) {
+            log.warn(handlerName + " could not reload " + rulesFile + ", keeping the old rules: " + e.getMessage());
+        } finally {
+            reloading.set(false);
+        }
+    }
+
+    private Rules loadRules() throws IOException {
+        Rules newRules = new Rules();
+        addRules(newRules, ALLOW_OPTION.getProperty(server, handlerName), true);
+        addRules(newRules, DENY_OPTION.getProperty(server, handlerName), false);
+        if (rulesFile != null) {
+            lastModified = rulesFile.lastModified();
+            BufferedReader reader = new BufferedReader(new FileReader(rulesFile));
+            try {
+                String line;
+                int lineNumber = 0;
+                while ((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    line = line.trim();
+                    if (line.length() == 0 || line.startsWith("#")) {
+                        continue;
+                    }
+                    StringTokenizer tokenizer = new StringTokenizer(line);
+                    String action = tokenizer.nextToken();
+                    if (!tokenizer.hasMoreTokens() || !("allow".equalsIgnoreCase(action) || "deny".equalsIgnoreCase(action))) {
+                        log.warn(rulesFile + ":" + lineNumber + " must be 'allow' or 'deny' followed by a CIDR block.");
+                        continue;
+                    }
+                    addRule(newRules, tokenizer.nextToken(), "allow".equalsIgnoreCase(action));
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        return newRules;
+    }
+
+    private void addRules(Rules newRules, String list, boolean allow) {
+        if (list != null) {
+            StringTokenizer tokenizer = new StringTokenizer(list, " ,");
+            while (tokenizer.hasMoreTokens()) {
+                addRule(newRules, tokenizer.nextToken(), allow);
+            }
+        }
+    }
+
+    private void addRule(Rules newRules, String cidr, boolean allow) {
+        try {
+            int slash = cidr.indexOf('/');
+            String host = (slash >= 0) ? cidr.substring(0, slash) : cidr;
+            if (!isAddressLiteral(host)) {
+                throw new UnknownHostException(host + " is not an IP address");
+            }
+            byte[] address = InetAddress.getByName(host).getAddress();
+            int bits = (slash >= 0) ? Integer.parseInt(cidr.substring(slash + 1)) : address.length * 8;
+            if (bits < 0 || bits > address.length * 8) {
+                throw new NumberFormatException("prefix length " + bits + " out of range");
+            }
+            newRules.add(address, bits, allow);
+        } catch (UnknownHostException e) {
+            log.warn(handlerName + " ignoring rule " + cidr + ": " + e.getMessage());
+        } catch (NumberFormatException e) {
+            log.warn(handlerName + " ignoring rule " + cidr + ": " + e.getMessage());
+        }
+    }
+
+    private static boolean isAddressLiteral(String host) {
+        // only literals are accepted so a rule never causes a DNS lookup.
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if (!(Character.digit(c, 16) >= 0 || c == '.' || c == ':')) {
+                return false;
+            }
+        }
+        return host.length() > 0;
+    }
+
+    /**
+     * The compiled rules.  There is a binary trie for IPv4 and one for IPv6.  The children of node n are stored at
+     * children[2n] for a 0 bit and children[2n + 1] for a 1 bit, 0 meaning no child since the root is never a child.
+     */
+    private static class Rules {
+        private static final byte NONE = 0;
+        private static final byte ALLOW = 1;
+        private static final byte DENY = 2;
+
+        private final Trie ipv4 = new Trie();
+        private final Trie ipv6 = new Trie();
+
+        void add(byte[] address, int bits, boolean allow) {
+            (address.length == 4 ? ipv4 : ipv6).add(address, bits, allow ? ALLOW : DENY);
+        }
+
+        boolean isAllowed(byte[] address, boolean allowByDefault) {
+            byte action = (address.length == 4 ? ipv4 : ipv6).match(address);
+            return (action == NONE) ? allowByDefault : action == ALLOW;
+        }
+    }
+
+    private static class Trie {
+        private int[] children = new int[64];
+        private byte[] actions = new byte[32];
+        private int nodes = 1;
+
+        void add(byte[] address, int bits, byte action) {
+            int node = 0;
+            for (int i = 0; i < bits; i++) {
+                int slot = 2 * node + bit(address, i);
+                if (children[slot] == 0) {
+                    // newNode may grow the arrays, so it has to be called before children is read.
+                    int child = newNode();
+                    children[slot] = child;
+                }
+                node = children[slot];
+            }
+            actions[node] = action;
+        }
+
+        byte match(byte[] address) {
+            byte action = actions[0];
+            int node = 0;
+            int bits = address.length * 8;
+            for (int i = 0; i < bits; i++) {
+                node = children[2 * node + bit(address, i)];
+                if (node == 0) {
+                    break;
+                }
+                if (actions[node] != Rules.NONE) {
+                    action = actions[node];
+                }
+            }
+            return action;
+        }
+
+        private int newNode() {
+            if (nodes == actions.length) {
+                int[] newChildren = new int[children.length * 2];
+                System.arraycopy(children, 0, newChildren, 0, children.length);
+                children = newChildren;
+                byte[] newActions = new byte[actions.length * 2];
+                System.arraycopy(actions, 0, newActions, 0, actions.length);
+                actions = newActions;
+            }
+            return nodes++;
+        }
+
+        private static int bit(byte[] address, int index) {
+            return (address[index >> 3] >> (7 - (index & 7))) & 1;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package pygmy.handlers;
+
+import lombok.extern.slf4j.Slf4j;
+import pygmy.core.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * A {@link FileHandler} for small, popular files like icons, style sheets and scripts.  Files up to
+ * <i>max-file-size</i> bytes are memory mapped the first time they are requested, and the mapping is kept so later
+ * requests are answered straight from the operating system's page cache.  When the endpoint accepts connections
+ * through channels the mapping is written to the socket with the headers in a single gathering write, without the
+ * file being opened or copied into the Java heap.  Together with the {@link FileCache} of the FileHandler this serves
+ * a hot file with no file system calls at all beyond the write.
+ * </p>
+ * <p>
+ * Mappings are kept in least recently used order until they add up to <i>max-mapped</i> bytes.  A file is mapped again
+ * when its modification time changes.  Files that are bigger than <i>max-file-size</i>, or that can't be mapped, are
+ * sent the same way the FileHandler sends them.  It takes all the parameters of the FileHandler as well.  Note that an
+ * evicted mapping is only released by the garbage collector, so the address space used can stay above max-mapped for
+ * a while.
+ * </p>
+ * <p>
+ * Files served by this handler have to be replaced by writing a new file and renaming it over the old one, the way
+ * most deploy tools do.  The modification time used to find the mapping is the one in the FileCache, which can be
+ * up to <i>cache-ttl</i> old, so a file rewritten in place can be sent from the old mapping with the old length.
+ * Reading a mapping past the end of a file that shrank would crash the JVM, so mappings are only read by the
+ * operating system in a gathering write, which fails with an IOException instead.  Responses that are copied, over
+ * SSL or when throttled, read the file through a channel and fail the same way when it has shrunk.  The mapping of a
+ * response that wasn't sent completely is dropped, so the file is mapped again for the next request.
+ * </p>
+ *
+ * <table class="inner">
+ * <tr class="header"><td>Parameter Name</td><td>Explanation</td><td>Default Value</td><td>Required</td></tr>
+ * <tr class="row"><td>max-file-size</td><td>The largest file in bytes that is mapped.</td><td>1048576</td><td>No</td></tr>
+ * <tr class="altrow"><td>max-mapped</td><td>The most bytes kept mapped.</td><td>67108864</td><td>No</td></tr>
+ * </table>
+ */
+@Slf4j
+public class MappedFileHandler extends FileHandler {
+
+    public static final ConfigOption MAX_FILE_SIZE_OPTION = new ConfigOption("max-file-size", "1048576", "The largest file in bytes that is mapped.");
+    public static final ConfigOption MAX_MAPPED_OPTION = new ConfigOption("max-mapped", "67108864", "The most bytes kept mapped.");
+
+    private static final int SEND_BUFFER_SIZE = 8192;
+
+    private long maxFileSize;
+    private Mappings mappings;
+
+    public boolean initialize(String handlerName, Server server) {
+        if (!super.initialize(handlerName, server)) {
+            return false;
+        }
+        long maxMapped = 67108864;
+        try {
+            maxFileSize = Long.parseLong(MAX_FILE_SIZE_OPTION.getProperty(server, handlerName));
+            maxMapped = Long.parseLong(MAX_MAPPED_OPTION.getProperty(server, handlerName));
+        } catch (NumberFormatException e) {
+            log.warn(handlerName + " max-file-size and max-mapped must be numbers.  Using the defaults.");
+            maxFileSize = 1048576;
+        }
+        mappings = new Mappings(maxMapped);
+        return true;
+    }
+
+    public boolean shutdown(Server server) {
+        mappings.clear();
+        return super.shutdown(server);
+    }
+
+    protected ResponseData createBody(HttpResponse response, FileCache.Entry entry, long offset, long length) throws IOException {
+        if (entry.getSize() <= maxFileSize && offset >= 0 && length >= 0 && offset + length <= entry.getSize()) {
+            try {
+                MappedByteBuffer mapped = mappings.get(entry.getPath(), entry.getLastModified(), entry.getSize());
+                ByteBuffer data = mapped.duplicate();
+                // the file may have shrunk since it was looked up.
+                if (offset + length <= data.capacity()) {
+                    data.position((int) offset);
+                    data.limit((int) (offset + length));
+                    return new MappedBody(entry.getPath(), mapped, offset, data.slice(), response.getBufferPool());
+                }
+            } catch (IOException e) {
+                log.debug("Could not map {}: {}", entry.getPath(), e.getMessage());
+            }
+        }
+        return super.createBody(response, entry, offset, length);
+    }
+
+    /**
+     * Sends part of a mapping.  A gathering write hands the mapping to the operating system.  Copying it would read
+     * the mapping in the JVM, which faults if the file was truncated under it, so the copy reads the file instead.
+     */
+    private class MappedBody extends ByteBufferResponseData {
+        private final Path path;
+        private final MappedByteBuffer mapped;
+        private final long offset;
+        private final BufferPool bufferPool;
+        private boolean started;
+        private boolean finished;
+        private ByteBuffer[] views;
+
+        MappedBody(Path path, MappedByteBuffer mapped, long offset, ByteBuffer data, BufferPool bufferPool) {
+            super(data, bufferPool);
+            this.path = path;
+            this.mapped = mapped;
+            this.offset = offset;
+            this.bufferPool = bufferPool;
+        }
+
+        public void send(OutputStream os) throws IOException {
+            started = true;
+            long length = getLength();
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+            byte[] bytes = (bufferPool != null) ? bufferPool.acquire(SEND_BUFFER_SIZE) : new byte[SEND_BUFFER_SIZE];
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            try {
+                long sent = 0;
+                while (sent < length) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), length - sent));
+                    int read = channel.read(buffer, offset + sent);
+                    if (read < 0) {
+                        log.warn(handlerName + " " + path + " shrank while it was mapped.  Replace files by renaming them.");
+                        throw new IOException(path + " ended after " + (offset + sent) + " bytes.");
+                    }
+                    os.write(bytes, 0, read);
+                    sent += read;
+                }
+                finished = true;
+            } finally {
+                channel.close();
+                if (bufferPool != null) {
+                    bufferPool.release(bytes);
+                }
+            }
+        }
+
+        public ByteBuffer[] toByteBuffers() {
+            started = true;
+            views = super.toByteBuffers();
+            return views;
+        }
+
+        /**
+         * Drops the mapping if the body was started but not finished, since the file may have changed under it.  The
+         * gathering write moves the views it was given, so what is left in them is what wasn't sent.
+         */
+        public void close() {
+            boolean complete = finished || views != null;
+            for (int i = 0; views != null && i < views.length; i++) {
+                complete = complete && !views[i].hasRemaining();
+            }
+            if (started && !complete) {
+                mappings.remove(path, mapped);
+            }
+        }
+    }
+
+    /**
+     * The mappings in least recently used order, bounded by the total bytes mapped.
+     */
+    private static class Mappings {
+        private final long maxMapped;
+        private final LinkedHashMap mapped = new LinkedHashMap(16, 0.75f, true);
+        private long totalMapped;
+
+        Mappings(long maxMapped) {
+            this.maxMapped = maxMapped;
+        }
+
+        MappedByteBuffer get(Path path, long lastModified, long size) throws IOException {
+            synchronized (this) {
+                Mapping mapping = (Mapping) mapped.get(path);
+                if (mapping != null && mapping.lastModified == lastModified) {
+                    return mapping.buffer;
+                }
+            }
+            // mapping is done outside the lock, two threads may map the same file but only one is kept.
+            Mapping mapping = new Mapping(map(path, size), lastModified);
+            synchronized (this) {
+                Mapping old = (Mapping) mapped.put(path, mapping);
+                if (old != null) {
+                    totalMapped -= old.buffer.capacity();
+                }
+                totalMapped += mapping.buffer.capacity();
+                for (Iterator i = mapped.values().iterator(); totalMapped > maxMapped && i.hasNext(); ) {
+                    Mapping eldest = (Mapping) i.next();
+                    if (eldest != mapping) {
+                        totalMapped -= eldest.buffer.capacity();
+                        i.remove();
+                    }
+                }
+            }
+            return mapping.buffer;
+        }
+
+        /**
+         * Drops the path's mapping if it is still the given one.
+         */
+        synchronized void remove(Path path, MappedByteBuffer buffer) {
+            Mapping mapping = (Mapping) mapped.get(path);
+            if (mapping != null && mapping.buffer == buffer) {
+                mapped.remove(path);
+                totalMapped -= buffer.capacity();
+            }
+        }
+
+        synchronized void clear() {
+            mapped.clear();
+            totalMapped = 0;
+        }
+
+        private static MappedByteBuffer map(Path path, long size) throws IOException {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+            try {
+                // the mapping stays valid after the channel is closed.
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, channel.size()));
+            } finally {
+                channel.close();
+            }
+        }
+    }
+
+    private static class Mapping {
+        final MappedByteBuffer buffer;
+        final long lastModified;
+
+        Mapping(MappedByteBuffer buffer, long lastModified) {
+            this.buffer = buffer;
+            this.lastModified = lastModified;
+        }
+    }
+}
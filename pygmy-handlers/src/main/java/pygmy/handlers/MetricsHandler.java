@@ -0,0 +1,114 @@
+package pygmy.handlers;
+
+import pygmy.core.*;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * <p>
+ * This handler publishes the {@link ServerMetrics} of the server in the Prometheus text format.  Point a Prometheus
+ * scrape job at the url-prefix of this handler.  It publishes the connections accepted and active, the requests
+ * received, the time tasks waited in the thread pool's queue, and for every handler the time spent in it, how many
+ * requests it handled, passed on, or failed, and the body bytes it produced.  Handlers that share a pool of some
+ * resource between requests also publish how long requests waited for it.  Handler times are only recorded for
+ * handlers inside a {@link DefaultChainHandler} and for the server's root handler.  Rates are left to the scraper,
+ * like rate(pygmy_requests_total[1m]), so any number of scrapers and people reading the page see the same counters.
+ * </p>
+ *
+ * <table class="inner">
+ * <tr class="header"><td>Parameter Name</td><td>Explanation</td><td>Default Value</td><td>Required</td></tr>
+ * <tr class="row"><td>url-prefix</td><td>The url the metrics are served from.</td><td>/</td><td>No</td></tr>
+ * </table>
+ */
+public class MetricsHandler extends AbstractHandler implements Handler {
+
+    private static final String[] BUCKET_LABELS = {
+            "0.0001", "0.00025", "0.0005", "0.001", "0.0025", "0.005", "0.01", "0.025", "0.05", "0.1", "0.25", "0.5",
+            "1", "2.5", "5", "10"
+    };
+    private static final long[] BUCKET_NANOS = new long[BUCKET_LABELS.length];
+
+    static {
+        for (int i = 0; i < BUCKET_LABELS.length; i++) {
+            BUCKET_NANOS[i] = (long) (Double.parseDouble(BUCKET_LABELS[i]) * 1000000000L);
+        }
+    }
+
+    protected boolean handleBody(HttpRequest request, HttpResponse response) throws IOException {
+        ServerMetrics metrics = server.getMetrics();
+        response.setMimeType("text/plain; version=0.0.4");
+        PrintWriter out = response.getPrintWriter();
+
+        header(out, "pygmy_connections_accepted_total", "counter", "Connections accepted by the endpoints.");
+        out.print("pygmy_connections_accepted_total " + metrics.getAcceptedConnections() + "\n");
+        header(out, "pygmy_connections_active", "gauge", "Connections currently open.");
+        out.print("pygmy_connections_active " + metrics.getActiveConnections() + "\n");
+        header(out, "pygmy_requests_total", "counter", "Requests received by the endpoints.");
+        out.print("pygmy_requests_total " + metrics.getRequests() + "\n");
+        header(out, "pygmy_threadpool_queue_wait_seconds", "histogram", "Time tasks waited for a pooled thread.");
+        histogram(out, "pygmy_threadpool_queue_wait_seconds", "", metrics.getQueueWait());
+
+        List handlers = metrics.getAllHandlerMetrics();
+        header(out, "pygmy_handler_duration_seconds", "histogram", "Time spent in each handler.");
+        for (int i = 0; i < handlers.size(); i++) {
+            ServerMetrics.HandlerMetrics handler = (ServerMetrics.HandlerMetrics) handlers.get(i);
+            histogram(out, "pygmy_handler_duration_seconds", handlerLabel(handler), handler.getLatency());
+        }
+        header(out, "pygmy_handler_wait_seconds", "histogram", "Time requests waited for a resource shared by the handler.");
+        for (int i = 0; i < handlers.size(); i++) {
+            ServerMetrics.HandlerMetrics handler = (ServerMetrics.HandlerMetrics) handlers.get(i);
+            if (handler.getWait().getCount() > 0) {
+                histogram(out, "pygmy_handler_wait_seconds", handlerLabel(handler), handler.getWait());
+            }
+        }
+        header(out, "pygmy_handler_requests_total", "counter", "Calls of each handler by result.");
+        for (int i = 0; i < handlers.size(); i++) {
+            ServerMetrics.HandlerMetrics handler = (ServerMetrics.HandlerMetrics) handlers.get(i);
+            String label = handlerLabel(handler);
+            out.print("pygmy_handler_requests_total{" + label + ",result=\"handled\"} " + handler.getHandled() + "\n");
+            out.print("pygmy_handler_requests_total{" + label + ",result=\"passed\"} " + handler.getPassed() + "\n");
+            out.print("pygmy_handler_requests_total{" + label + ",result=\"error\"} " + handler.getErrors() + "\n");
+        }
+        header(out, "pygmy_handler_response_bytes_total", "counter", "Body bytes produced by each handler.");
+        for (int i = 0; i < handlers.size(); i++) {
+            ServerMetrics.HandlerMetrics handler = (ServerMetrics.HandlerMetrics) handlers.get(i);
+            out.print("pygmy_handler_response_bytes_total{" + handlerLabel(handler) + "} " + handler.getBytes() + "\n");
+        }
+        return true;
+    }
+
+    private static void header(PrintWriter out, String name, String type, String help) {
+        out.print("# HELP " + name + " " + help + "\n");
+        out.print("# TYPE " + name + " " + type + "\n");
+    }
+
+    private static void histogram(PrintWriter out, String name, String labels, Histogram histogram) {
+        String prefix = (labels.length() > 0) ? labels + "," : "";
+        long count = histogram.getCount();
+        for (int i = 0; i < BUCKET_LABELS.length; i++) {
+            out.print(name + "_bucket{" + prefix + "le=\"" + BUCKET_LABELS[i] + "\"} " + histogram.getCountAtOrBelow(BUCKET_NANOS[i]) + "\n");
+        }
+        out.print(name + "_bucket{" + prefix + "le=\"+Inf\"} " + count + "\n");
+        String braces = (labels.length() > 0) ? "{" + labels + "}" : "";
+        out.print(name + "_sum" + braces + " " + (histogram.getSum() / 1000000000.0) + "\n");
+        out.print(name + "_count" + braces + " " + count + "\n");
+    }
+
+    private static String handlerLabel(ServerMetrics.HandlerMetrics handler) {
+        StringBuffer buffer = new StringBuffer("handler=\"");
+        String name = handler.getName();
+        for (int i = 0; name != null && i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '\\' || c == '"') {
+                buffer.append('\\').append(c);
+            } else if (c == '\n') {
+                buffer.append("\\n");
+            } else {
+                buffer.append(c);
+            }
+        }
+        return buffer.append('"').toString();
+    }
+}
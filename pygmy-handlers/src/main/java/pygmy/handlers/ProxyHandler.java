@@ -0,0 +1,770 @@
+package pygmy.handlers;
+
+import lombok.extern.slf4j.Slf4j;
+import pygmy.core.*;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * A reverse proxy.  Requests under the url-prefix are forwarded to one of the HTTP/1.1 servers listed in
+ * <i>upstreams</i>, and their responses are sent back to the client.  Connections to each upstream are kept open and
+ * reused, up to <i>max-idle</i> idle ones per upstream, and idle connections are closed after <i>idle-timeout</i>
+ * milliseconds.  The upstream's response body is not buffered: it is copied from the upstream connection to the client
+ * as the response is sent, with its Content-Length if the upstream gave one, and in chunked encoding otherwise.  The
+ * connection goes back to the pool once the whole body was read.  Request bodies are read by the server before any
+ * handler runs, so they are forwarded from memory.
+ * </p>
+ * <p>
+ * <i>balance</i> picks the upstream for each request:
+ * </p>
+ * <ul>
+ * <li><i>round-robin</i> takes the upstreams in turn.</li>
+ * <li><i>least-outstanding</i> takes the upstream with the fewest requests in progress.</li>
+ * <li><i>hash</i> takes an upstream by consistent hashing of <i>hash-key</i>, so the same key keeps going to the same
+ * upstream, and only the keys of an upstream that is added, removed or ejected move.  hash-key is <i>url</i> for the
+ * url and query, <i>client</i> for the client's address, or the name of a request header.</li>
+ * </ul>
+ * <p>
+ * Upstreams are checked passively.  An upstream that fails <i>max-fails</i> times in a row, by refusing the
+ * connection, timing out, breaking the connection, or answering 502, 503 or 504, is ejected for <i>fail-timeout</i>
+ * milliseconds and gets no requests during that time unless every upstream is ejected.  A request whose connection
+ * couldn't be made, or took longer than <i>connect-timeout</i> to make, is tried on another upstream, and an
+ * idempotent request whose reused connection turned out to be closed or reset is tried again on a new connection.
+ * When no upstream answers the client gets 502, or 504 if the upstream didn't answer within <i>read-timeout</i>.
+ * </p>
+ * <p>
+ * The client's Host header is passed on and X-Forwarded-For is added to.  X-Forwarded-Host and X-Forwarded-Proto
+ * are always set from the Host header and the scheme of the request, replacing any the client sent.
+ * Hop-by-hop headers are dropped in both directions.
+ * </p>
+ *
+ * <table class="inner">
+ * <tr class="header"><td>Parameter Name</td><td>Explanation</td><td>Default Value</td><td>Required</td></tr>
+ * <tr class="row"><td>url-prefix</td><td>The prefix to filter request urls.</td><td>/</td><td>No</td></tr>
+ * <tr class="altrow"><td>upstreams</td><td>A space or comma seperated list of host:port of the upstream servers.</td><td>None</td><td>Yes</td></tr>
+ * <tr class="row"><td>strip-prefix</td><td>Remove the url-prefix from the url sent upstream.</td><td>false</td><td>No</td></tr>
+ * <tr class="altrow"><td>balance</td><td>round-robin, least-outstanding or hash.</td><td>round-robin</td><td>No</td></tr>
+ * <tr class="row"><td>hash-key</td><td>What is hashed with balance=hash: url, client, or a request header name.</td><td>url</td><td>No</td></tr>
+ * <tr class="altrow"><td>max-idle</td><td>The most idle connections kept to each upstream.</td><td>8</td><td>No</td></tr>
+ * <tr class="row"><td>idle-timeout</td><td>Milliseconds an idle connection is kept.</td><td>30000</td><td>No</td></tr>
+ * <tr class="altrow"><td>connect-timeout</td><td>Milliseconds to wait for a connection to an upstream.</td><td>2000</td><td>No</td></tr>
+ * <tr class="row"><td>read-timeout</td><td>Milliseconds to wait for an upstream to send something.</td><td>30000</td><td>No</td></tr>
+ * <tr class="altrow"><td>max-fails</td><td>Failures in a row that eject an upstream.  0 never ejects.</td><td>3</td><td>No</td></tr>
+ * <tr class="row"><td>fail-timeout</td><td>Milliseconds an ejected upstream gets no requests.</td><td>10000</td><td>No</td></tr>
+ * </table>
+ */
+@Slf4j
+public class ProxyHandler extends AbstractHandler implements Handler {
+
+    public static final ConfigOption UPSTREAMS_OPTION = new ConfigOption("upstreams", true, "A list of host:port of the upstream servers.");
+    public static final ConfigOption STRIP_PREFIX_OPTION = new ConfigOption("strip-prefix", "false", "Remove the url-prefix from the url sent upstream.");
+    public static final ConfigOption BALANCE_OPTION = new ConfigOption("balance", "round-robin", "round-robin, least-outstanding or hash.");
+    public static final ConfigOption HASH_KEY_OPTION = new ConfigOption("hash-key", "url", "url, client, or a request header name.");
+    public static final ConfigOption MAX_IDLE_OPTION = new ConfigOption("max-idle", "8", "The most idle connections kept to each upstream.");
+    public static final ConfigOption IDLE_TIMEOUT_OPTION = new ConfigOption("idle-timeout", "30000", "Milliseconds an idle connection is kept.");
+    public static final ConfigOption CONNECT_TIMEOUT_OPTION = new ConfigOption("connect-timeout", "2000", "Milliseconds to wait for a connection to an upstream.");
+    public static final ConfigOption READ_TIMEOUT_OPTION = new ConfigOption("read-timeout", "30000", "Milliseconds to wait for an upstream to send something.");
+    public static final ConfigOption MAX_FAILS_OPTION = new ConfigOption("max-fails", "3", "Failures in a row that eject an upstream.");
+    public static final ConfigOption FAIL_TIMEOUT_OPTION = new ConfigOption("fail-timeout", "10000", "Milliseconds an ejected upstream gets no requests.");
+
+    private static final String[] HOP_BY_HOP = {
+            "Connection", "Keep-Alive", "Proxy-Connection", "Proxy-Authenticate", "Proxy-Authorization", "TE", "Trailer",
+            "Transfer-Encoding", "Upgrade", "Expect", "Content-Length", "Host"
+    };
+    private static final String[] IDEMPOTENT = {"GET", "HEAD", "PUT", "DELETE", "OPTIONS", "TRACE"};
+    private static final int VIRTUAL_NODES = 160;
+    private static final int BODY_BUFFER_SIZE = 8192;
+
+    private Upstream[] upstreams;
+    private boolean stripPrefix;
+    private String balance;
+    private String hashKey;
+    private int maxIdle;
+    private long idleTimeout;
+    private int connectTimeout;
+    private int readTimeout;
+    private int maxFails;
+    private long failTimeout;
+    private final AtomicInteger next = new AtomicInteger();
+    private final TreeMap ring = new TreeMap();
+
+    public boolean initialize(String handlerName, Server server) {
+        super.initialize(handlerName, server);
+        List list = new ArrayList();
+        StringTokenizer tokenizer = new StringTokenizer(UPSTREAMS_OPTION.getProperty(server, handlerName), " ,");
+        while (tokenizer.hasMoreTokens()) {
+            String address = tokenizer.nextToken();
+            try {
+                list.add(new Upstream(address));
+            } catch (IllegalArgumentException e) {
+                log.error(handlerName + " upstream " + address + " is not host:port.");
+                return false;
+            }
+        }
+        if (list.isEmpty()) {
+            log.error(handlerName + " has no upstreams.");
+            return false;
+        }
+        upstreams = (Upstream[]) list.toArray(new Upstream[list.size()]);
+        stripPrefix = STRIP_PREFIX_OPTION.getBoolean(server, handlerName).booleanValue();
+        balance = BALANCE_OPTION.getProperty(server, handlerName);
+        if (!"round-robin".equals(balance) && !"least-outstanding".equals(balance) && !"hash".equals(balance)) {
+            log.error(handlerName + " balance must be round-robin, least-outstanding or hash.");
+            return false;
+        }
+        hashKey = HASH_KEY_OPTION.getProperty(server, handlerName);
+        try {
+            maxIdle = MAX_IDLE_OPTION.getInteger(server, handlerName).intValue();
+            idleTimeout = Long.parseLong(IDLE_TIMEOUT_OPTION.getProperty(server, handlerName));
+            connectTimeout = CONNECT_TIMEOUT_OPTION.getInteger(server, handlerName).intValue();
+            readTimeout = READ_TIMEOUT_OPTION.getInteger(server, handlerName).intValue();
+            maxFails = MAX_FAILS_OPTION.getInteger(server, handlerName).intValue();
+            failTimeout = Long.parseLong(FAIL_TIMEOUT_OPTION.getProperty(server, handlerName));
+        } catch (NumberFormatException e) {
+            log.error(handlerName + " max-idle, idle-timeout, connect-timeout, read-timeout, max-fails and fail-timeout must be numbers.");
+            return false;
+        }
+        for (int i = 0; i < upstreams.length; i++) {
+            for (int node = 0; node < VIRTUAL_NODES; node++) {
+                ring.put(Long.valueOf(hash(upstreams[i].address + "#" + node)), upstreams[i]);
+            }
+        }
+        return true;
+    }
+
+    public boolean shutdown(Server server) {
+        for (int i = 0; i < upstreams.length; i++) {
+            upstreams[i].closeIdle();
+        }
+        return super.shutdown(server);
+    }
+
+    protected boolean handleBody(HttpRequest request, HttpResponse response) throws IOException {
+        byte[] body = request.getPostData();
+        boolean idempotent = false;
+        for (int i = 0; i < IDEMPOTENT.length; i++) {
+            idempotent = idempotent || IDEMPOTENT[i].equals(request.getMethod());
+        }
+
+        List tried = new ArrayList();
+        boolean timedOut = false;
+        for (int attempt = 0; attempt < upstreams.length; attempt++) {
+            Upstream upstream = choose(request, tried);
+            tried.add(upstream);
+            upstream.outstanding.incrementAndGet();
+            boolean handedOff = false;
+            try {
+                Connection connection = upstream.acquire();
+                if (connection == null) {
+                    continue;
+                }
+                try {
+                    byte[] head = requestHead(request, upstream);
+                    UpstreamResponse upstreamResponse;
+                    try {
+                        upstreamResponse = exchange(connection, head, body, request.getMethod());
+                    } catch (SocketException e) {
+                        if (!connection.reused || !idempotent) {
+                            throw e;
+                        }
+                        // an idle connection the upstream closed can be reset instead of ending, retried the same way.
+                        upstreamResponse = null;
+                    }
+                    if (upstreamResponse == null && connection.reused && idempotent) {
+                        // the upstream closed the idle connection, nothing was processed so it's safe to send again.
+                        connection.close();
+                        connection = upstream.connect();
+                        upstreamResponse = exchange(connection, head, body, request.getMethod());
+                    }
+                    if (upstreamResponse == null) {
+                        throw new IOException("Upstream closed the connection without a response.");
+                    }
+                    if (upstreamResponse.status == HttpURLConnection.HTTP_BAD_GATEWAY || upstreamResponse.status == HttpURLConnection.HTTP_UNAVAILABLE
+                            || upstreamResponse.status == HttpURLConnection.HTTP_GATEWAY_TIMEOUT) {
+                        upstream.failed();
+                    } else {
+                        upstream.succeeded();
+                    }
+                    sendResponse(request, response, upstream, connection, upstreamResponse);
+                    handedOff = true;
+                    return true;
+                } catch (IOException e) {
+                    connection.close();
+                    throw e;
+                }
+            } catch (ConnectException e) {
+                log.warn(handlerName + " could not connect to " + upstream.address + ": " + e.getMessage());
+                upstream.failed();
+            } catch (SocketTimeoutException e) {
+                log.warn(handlerName + " timed out waiting for " + upstream.address);
+                upstream.failed();
+                timedOut = true;
+                break;
+            } catch (IOException e) {
+                log.warn(handlerName + " request to " + upstream.address + " failed: " + e.getMessage());
+                upstream.failed();
+                break;
+            } finally {
+                if (!handedOff) {
+                    upstream.outstanding.decrementAndGet();
+                }
+            }
+        }
+        int status = timedOut ? HttpURLConnection.HTTP_GATEWAY_TIMEOUT : HttpURLConnection.HTTP_BAD_GATEWAY;
+        response.sendError(status, Http.getStatusPhrase(status));
+        return true;
+    }
+
+    /**
+     * Picks the upstream for the request among the ones not tried yet, leaving out ejected upstreams unless all of
+     * them are.
+     */
+    private Upstream choose(HttpRequest request, List tried) {
+        long now = System.currentTimeMillis();
+        boolean anyAvailable = false;
+        for (int i = 0; i < upstreams.length && !anyAvailable; i++) {
+            anyAvailable = !tried.contains(upstreams[i]) && upstreams[i].isAvailable(now);
+        }
+        if ("hash".equals(balance)) {
+            String key = hashKey(request);
+            Map.Entry entry = ring.ceilingEntry(Long.valueOf(hash(key)));
+            for (int i = 0; i < ring.size(); i++) {
+                if (entry == null) {
+                    entry = ring.firstEntry();
+                }
+                Upstream upstream = (Upstream) entry.getValue();
+                if (!tried.contains(upstream) && (!anyAvailable || upstream.isAvailable(now))) {
+                    return upstream;
+                }
+                entry = ring.higherEntry(entry.getKey());
+            }
+        }
+        int start = next.getAndIncrement() & Integer.MAX_VALUE;
+        Upstream best = null;
+        for (int i = 0; i < upstreams.length; i++) {
+            Upstream upstream = upstreams[(start + i) % upstreams.length];
+            if (tried.contains(upstream) || (anyAvailable && !upstream.isAvailable(now))) {
+                continue;
+            }
+            if (!"least-outstanding".equals(balance)) {
+                return upstream;
+            }
+            if (best == null || upstream.outstanding.get() < best.outstanding.get()) {
+                best = upstream;
+            }
+        }
+        return (best != null) ? best : upstreams[start % upstreams.length];
+    }
+
+    private String hashKey(HttpRequest request) {
+        if ("url".equals(hashKey)) {
+            return (request.getQuery() != null) ? request.getUrl() + "?" + request.getQuery() : request.getUrl();
+        } else if ("client".equals(hashKey)) {
+            InetAddress address = request.getRemoteInetAddress();
+            return (address != null) ? address.getHostAddress() : "";
+        }
+        return request.getRequestHeader(hashKey, "");
+    }
+
+    /**
+     * 64 bit FNV-1a, with a final mix so keys that differ only at the end still spread around the ring.
+     */
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Builds the request line and headers sent upstream.
+     */
+    private byte[] requestHead(HttpRequest request, Upstream upstream) throws IOException {
+        String url = request.getUrl();
+        if (stripPrefix && url.startsWith(getUrlPrefix())) {
+            url = url.substring(getUrlPrefix().length());
+            if (!url.startsWith("/")) {
+                url = "/" + url;
+            }
+        }
+        StringBuffer head = new StringBuffer(256);
+        head.append(request.getMethod()).append(' ').append(url);
+        if (request.getQuery() != null) {
+            head.append('?').append(request.getQuery());
+        }
+        head.append(" HTTP/1.1\r\n");
+        HttpHeaders headers = request.getHeaders();
+        String connection = headers.get("Connection", "");
+        String forwardedFor = null;
+        for (Iterator i = headers.iterator(); i.hasNext(); ) {
+            String key = (String) i.next();
+            if (isHopByHop(key, connection)) {
+                continue;
+            }
+            if ("X-Forwarded-For".equalsIgnoreCase(key)) {
+                forwardedFor = headers.get(key);
+                continue;
+            }
+            if ("X-Forwarded-Host".equalsIgnoreCase(key) || "X-Forwarded-Proto".equalsIgnoreCase(key)) {
+                // set below from what this server saw, a client can't choose them.
+                continue;
+            }
+            head.append(key).append(": ").append(headers.get(key)).append("\r\n");
+        }
+        String host = request.getRequestHeader("Host");
+        head.append("Host: ").append((host != null) ? host : upstream.address).append("\r\n");
+        InetAddress client = request.getRemoteInetAddress();
+        if (client != null) {
+            forwardedFor = (forwardedFor != null) ? forwardedFor + ", " + client.getHostAddress() : client.getHostAddress();
+        }
+        if (forwardedFor != null) {
+            head.append("X-Forwarded-For: ").append(forwardedFor).append("\r\n");
+        }
+        if (host != null) {
+            head.append("X-Forwarded-Host: ").append(host).append("\r\n");
+        }
+        head.append("X-Forwarded-Proto: ").append(request.getScheme()).append("\r\n");
+        byte[] body = request.getPostData();
+        if (body != null) {
+            head.append("Content-Length: ").append(body.length).append("\r\n");
+        }
+        head.append("\r\n");
+        return head.toString().getBytes("ISO-8859-1");
+    }
+
+    private static boolean isHopByHop(String key, String connection) {
+        for (int i = 0; i < HOP_BY_HOP.length; i++) {
+            if (HOP_BY_HOP[i].equalsIgnoreCase(key)) {
+                return true;
+            }
+        }
+        // headers named in Connection are for this hop only.
+        StringTokenizer tokenizer = new StringTokenizer(connection, " ,");
+        while (tokenizer.hasMoreTokens()) {
+            if (tokenizer.nextToken().equalsIgnoreCase(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Sends the request and reads the status and headers of the response.
+     *
+     * @return the response, or null if the connection was closed before anything was read.
+     */
+    private UpstreamResponse exchange(Connection connection, byte[] head, byte[] body, String method) throws IOException {
+        connection.out.write(head);
+        if (body != null) {
+            connection.out.write(body);
+        }
+        connection.out.flush();
+        while (true) {
+            String statusLine = connection.in.readline();
+            if (statusLine == null) {
+                return null;
+            }
+            UpstreamResponse response = new UpstreamResponse();
+            StringTokenizer tokenizer = new StringTokenizer(statusLine, " ");
+            try {
+                response.protocol = tokenizer.nextToken();
+                response.status = Integer.parseInt(tokenizer.nextToken());
+            } catch (RuntimeException e) {
+                throw new IOException("Bad status line from upstream: " + statusLine);
+            }
+            response.headers = new HttpHeaders(connection.in);
+            // interim responses are answered for the client, since its body was already read.
+            if (response.status >= 100 && response.status < 200 && response.status != 101) {
+                continue;
+            }
+            response.hasBody = !"HEAD".equals(method) && response.status != HttpURLConnection.HTTP_NO_CONTENT
+                    && response.status != HttpURLConnection.HTTP_NOT_MODIFIED;
+            return response;
+        }
+    }
+
+    private void sendResponse(HttpRequest request, HttpResponse response, Upstream upstream, Connection connection, UpstreamResponse upstreamResponse) throws IOException {
+        HttpHeaders headers = upstreamResponse.headers;
+        String connectionHeader = getHeader(headers, "Connection");
+        boolean keepAlive = "HTTP/1.1".equals(upstreamResponse.protocol) && (connectionHeader == null || connectionHeader.toLowerCase().indexOf("close") < 0);
+        response.setStatusCode(upstreamResponse.status);
+        for (Iterator i = headers.iterator(); i.hasNext(); ) {
+            String key = (String) i.next();
+            if ("Content-Type".equalsIgnoreCase(key)) {
+                response.setMimeType(headers.get(key));
+            } else if (!isHopByHop(key, (connectionHeader != null) ? connectionHeader : "") && !"Date".equalsIgnoreCase(key) && !"Server".equalsIgnoreCase(key)) {
+                response.addHeader(key, headers.get(key));
+            }
+        }
+
+        long length = -1;
+        String contentLength = getHeader(headers, "Content-Length");
+        if (contentLength != null) {
+            try {
+                length = Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad Content-Length from upstream: " + contentLength);
+            }
+        }
+        InputStream body;
+        if (!upstreamResponse.hasBody && !"HEAD".equals(request.getMethod())) {
+            // a 204 or 304 has no body at all, so nothing is added that could be sent as an empty chunked body.
+            upstream.outstanding.decrementAndGet();
+            if (keepAlive) {
+                upstream.release(connection);
+            } else {
+                connection.close();
+            }
+            return;
+        } else if (!upstreamResponse.hasBody) {
+            body = null;
+        } else if ("chunked".equalsIgnoreCase(getHeader(headers, "Transfer-Encoding"))) {
+            body = new ChunkedInputStream(connection.in);
+            length = -1;
+        } else if (length >= 0) {
+            body = new LimitedInputStream(connection.in, length);
+        } else {
+            // the body ends when the upstream closes the connection.
+            body = connection.in;
+            keepAlive = false;
+        }
+        response.sendResponse(new UpstreamBody(upstream, connection, body, length, keepAlive, response.getBufferPool()));
+    }
+
+    private static String getHeader(HttpHeaders headers, String name) {
+        for (Iterator i = headers.iterator(); i.hasNext(); ) {
+            String key = (String) i.next();
+            if (name.equalsIgnoreCase(key)) {
+                return headers.get(key);
+            }
+        }
+        return null;
+    }
+
+    private static class UpstreamResponse {
+        String protocol;
+        int status;
+        HttpHeaders headers;
+        boolean hasBody;
+    }
+
+    /**
+     * An upstream server with its idle connections and health.
+     */
+    private class Upstream {
+        final String address;
+        final String host;
+        final int port;
+        final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicInteger fails = new AtomicInteger();
+        private volatile long ejectedUntil;
+        private final LinkedList idle = new LinkedList();
+
+        Upstream(String address) {
+            if (address.startsWith("http://")) {
+                address = address.substring("http://".length());
+            }
+            while (address.endsWith("/")) {
+                address = address.substring(0, address.length() - 1);
+            }
+            int colon = address.lastIndexOf(':');
+            if (colon > address.lastIndexOf(']')) {
+                host = address.substring(0, colon);
+                port = Integer.parseInt(address.substring(colon + 1));
+            } else {
+                host = address;
+                port = 80;
+            }
+            if (host.length() == 0) {
+                throw new IllegalArgumentException(address);
+            }
+            this.address = address;
+        }
+
+        boolean isAvailable(long now) {
+            return now >= ejectedUntil;
+        }
+
+        void succeeded() {
+            fails.set(0);
+        }
+
+        void failed() {
+            if (maxFails > 0 && fails.incrementAndGet() >= maxFails) {
+                fails.set(0);
+                ejectedUntil = System.currentTimeMillis() + failTimeout;
+                log.warn(handlerName + " ejected " + address + " for " + failTimeout + "ms");
+            }
+        }
+
+        /**
+         * Takes the most recently used idle connection that hasn't timed out, or opens a new one.
+         */
+        Connection acquire() throws IOException {
+            long now = System.currentTimeMillis();
+            while (true) {
+                Connection connection;
+                synchronized (idle) {
+                    connection = (Connection) idle.pollFirst();
+                }
+                if (connection == null) {
+                    return connect();
+                }
+                if (now - connection.lastUsed < idleTimeout) {
+                    connection.reused = true;
+                    return connection;
+                }
+                connection.close();
+            }
+        }
+
+        /**
+         * Opens a new connection.  Any failure to connect, timing out included, is thrown as a ConnectException so
+         * the request is tried on another upstream.
+         */
+        Connection connect() throws IOException {
+            Socket socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                try {
+                    socket.connect(new InetSocketAddress(host.startsWith("[") ? host.substring(1, host.length() - 1) : host, port), connectTimeout);
+                } catch (IOException e) {
+                    if (e instanceof ConnectException) {
+                        throw e;
+                    }
+                    ConnectException failed = new ConnectException(e.getMessage());
+                    failed.initCause(e);
+                    throw failed;
+                }
+                socket.setSoTimeout(readTimeout);
+                return new Connection(this, socket);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Puts a connection whose response was read completely back in the pool, closing connections that have been
+         * idle too long.
+         */
+        void release(Connection connection) {
+            connection.lastUsed = System.currentTimeMillis();
+            List expired = new ArrayList();
+            synchronized (idle) {
+                idle.addFirst(connection);
+                while (idle.size() > maxIdle || (!idle.isEmpty() && connection.lastUsed - ((Connection) idle.getLast()).lastUsed >= idleTimeout)) {
+                    expired.add(idle.removeLast());
+                }
+            }
+            for (int i = 0; i < expired.size(); i++) {
+                ((Connection) expired.get(i)).close();
+            }
+        }
+
+        void closeIdle() {
+            synchronized (idle) {
+                while (!idle.isEmpty()) {
+                    ((Connection) idle.removeFirst()).close();
+                }
+            }
+        }
+    }
+
+    private static class Connection {
+        final Upstream upstream;
+        final Socket socket;
+        final InternetInputStream in;
+        final InternetOutputStream out;
+        long lastUsed;
+        boolean reused;
+
+        Connection(Upstream upstream, Socket socket) throws IOException {
+            this.upstream = upstream;
+            this.socket = socket;
+            this.in = new InternetInputStream(new BufferedInputStream(socket.getInputStream(), BODY_BUFFER_SIZE));
+            this.out = new InternetOutputStream(socket.getOutputStream());
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing more can be done with it.
+            }
+        }
+    }
+
+    /**
+     * The body of an upstream response, copied to the client when the response is sent.  The connection goes back
+     * to the pool when the response is done with the body, if all of it was read, and is closed otherwise.
+     */
+    private static class UpstreamBody implements ResponseData {
+        private final Upstream upstream;
+        private final Connection connection;
+        private final InputStream body;
+        private final long length;
+        private final boolean keepAlive;
+        private final BufferPool bufferPool;
+        private boolean complete;
+
+        UpstreamBody(Upstream upstream, Connection connection, InputStream body, long length, boolean keepAlive, BufferPool bufferPool) {
+            this.upstream = upstream;
+            this.connection = connection;
+            this.body = body;
+            this.length = length;
+            this.keepAlive = keepAlive;
+            this.bufferPool = bufferPool;
+            this.complete = (body == null);
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public void send(OutputStream os) throws IOException {
+            if (body == null) {
+                return;
+            }
+            byte[] buffer = (bufferPool != null) ? bufferPool.acquire(BODY_BUFFER_SIZE) : new byte[BODY_BUFFER_SIZE];
+            try {
+                long copied = 0;
+                int read;
+                while ((read = readBody(buffer)) >= 0) {
+                    os.write(buffer, 0, read);
+                    copied += read;
+                }
+                if (length >= 0 && copied < length) {
+                    throw new IOException("Upstream body ended after " + copied + " of " + length + " bytes.");
+                }
+                complete = true;
+            } finally {
+                if (bufferPool != null) {
+                    bufferPool.release(buffer);
+                }
+            }
+        }
+
+        private int readBody(byte[] buffer) throws IOException {
+            try {
+                return body.read(buffer);
+            } catch (IOException e) {
+                upstream.failed();
+                throw e;
+            }
+        }
+
+        public void close() {
+            upstream.outstanding.decrementAndGet();
+            if (complete && keepAlive) {
+                upstream.release(connection);
+            } else {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Reads a body of a known length and then reports the end, leaving the connection at the next response.
+     */
+    private static class LimitedInputStream extends InputStream {
+        private final InputStream in;
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long length) {
+            this.in = in;
+            this.remaining = length;
+        }
+
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return (read(one, 0, 1) < 0) ? -1 : one[0] & 0xff;
+        }
+
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            int read = in.read(buffer, offset, (int) Math.min(length, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+            return read;
+        }
+    }
+
+    /**
+     * Decodes a chunked body, including the trailer, leaving the connection at the next response.
+     */
+    private static class ChunkedInputStream extends InputStream {
+        private final InternetInputStream in;
+        private long remaining;
+        private boolean finished;
+
+        ChunkedInputStream(InternetInputStream in) {
+            this.in = in;
+        }
+
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return (read(one, 0, 1) < 0) ? -1 : one[0] & 0xff;
+        }
+
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (finished) {
+                return -1;
+            }
+            if (remaining == 0) {
+                String line = in.readline();
+                if (line == null) {
+                    throw new IOException("Upstream closed the connection inside a chunked body.");
+                }
+                int extension = line.indexOf(';');
+                try {
+                    remaining = Long.parseLong(((extension >= 0) ? line.substring(0, extension) : line).trim(), 16);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Bad chunk size from upstream: " + line);
+                }
+                if (remaining == 0) {
+                    // the trailer ends with a blank line like headers do.
+                    new HttpHeaders(in);
+                    finished = true;
+                    return -1;
+                }
+            }
+            int read = in.read(buffer, offset, (int) Math.min(length, remaining));
+            if (read < 0) {
+                throw new IOException("Upstream closed the connection inside a chunk.");
+            }
+            remaining -= read;
+            if (remaining == 0) {
+                in.readline();
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package pygmy.handlers;
+
+import lombok.extern.slf4j.Slf4j;
+import pygmy.core.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+/**
+ * <p>
+ * This handler limits how many requests each client IP address can make.  Put it at the front of a chain in front
+ * of expensive handlers.  Every client gets a token bucket that refills at <i>rate</i> requests per second and holds
+ * up to <i>burst</i> requests.  A request that finds the bucket empty is answered with 429 Too Many Requests and a
+ * Retry-After header saying when the next request will be allowed.  Any other request is passed down the chain.
+ * </p>
+ * <p>
+ * Different limits can be given for urls under a prefix with <i>limits</i>, a comma separated list of
+ * prefix=rate/burst (i.e. <code>/search=2/5, /api=20/40</code>).  The longest matching prefix is used, and urls
+ * that match none of the prefixes get the default limit.  Each limit counts separately.
+ * </p>
+ * <p>
+ * Buckets refill when they are used, there is no timer thread.  They are kept in <i>stripes</i> separately locked
+ * maps, so clients rarely wait for each other, and each map keeps only its most recently used clients so that at
+ * most <i>max-clients</i> buckets are kept per limit.  A client that is dropped had not been seen for the longest
+ * time and its bucket would most likely be full again anyway.
+ * </p>
+ *
+ * <table class="inner">
+ * <tr class="header"><td>Parameter Name</td><td>Explanation</td><td>Default Value</td><td>Required</td></tr>
+ * <tr class="row"><td>rate</td><td>Requests per second allowed for each client.</td><td>10</td><td>No</td></tr>
+ * <tr class="altrow"><td>burst</td><td>Requests a client can make at once.</td><td>20</td><td>No</td></tr>
+ * <tr class="row"><td>limits</td><td>Comma separated list of prefix=rate/burst.</td><td>None</td><td>No</td></tr>
+ * <tr class="altrow"><td>max-clients</td><td>Maximum number of clients tracked per limit.</td><td>10000</td><td>No</td></tr>
+ * <tr class="row"><td>stripes</td><td>Number of separately locked maps per limit.</td><td>16</td><td>No</td></tr>
+ * </table>
+ */
+@Slf4j
+public class RateLimitHandler extends AbstractHandler implements Handler {
+
+    public static final ConfigOption RATE_OPTION = new ConfigOption("rate", "10", "Requests per second allowed for each client.");
+    public static final ConfigOption BURST_OPTION = new ConfigOption("burst", "20", "Requests a client can make at once.");
+    public static final ConfigOption LIMITS_OPTION = new ConfigOption("limits", false, "Comma separated list of prefix=rate/burst.");
+    public static final ConfigOption MAX_CLIENTS_OPTION = new ConfigOption("max-clients", "10000", "Maximum number of clients tracked per limit.");
+    public static final ConfigOption STRIPES_OPTION = new ConfigOption("stripes", "16", "Number of separately locked maps per limit.");
+
+    public static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private static final int MAX_RETRY_AFTER = 3600;
+
+    private static final byte[] TOO_MANY_REQUESTS_BODY = ("<html>\n<head>\n<title>Error: 429</title>\n<body>\n"
+            + "<h1>429 <b>Too Many Requests</b></h1><br>\nSlow down and try again later.\n<hr></body>\n</html>").getBytes();
+
+    private static final String[] RETRY_AFTER = new String[61];
+
+    static {
+        for (int i = 0; i < RETRY_AFTER.length; i++) {
+            RETRY_AFTER[i] = Integer.toString(i);
+        }
+    }
+
+    private Limit defaultLimit;
+    private String[] prefixes;
+    private Limit[] prefixLimits;
+
+    public boolean initialize(String handlerName, Server server) {
+        super.initialize(handlerName, server);
+        int maxClients = 10000;
+        int stripes = 16;
+        try {
+            maxClients = MAX_CLIENTS_OPTION.getInteger(server, handlerName).intValue();
+            stripes = STRIPES_OPTION.getInteger(server, handlerName).intValue();
+            defaultLimit = new Limit(Double.parseDouble(RATE_OPTION.getProperty(server, handlerName)),
+                    BURST_OPTION.getInteger(server, handlerName).intValue(), maxClients, stripes);
+        } catch (NumberFormatException e) {
+            log.error(handlerName + " rate, burst, max-clients and stripes must be numbers.");
+            return false;
+        }
+
+        List prefixList = new ArrayList();
+        List limitList = new ArrayList();
+        String limits = LIMITS_OPTION.getProperty(server, handlerName);
+        if (limits != null) {
+            StringTokenizer tokenizer = new StringTokenizer(limits, " ,");
+            while (tokenizer.hasMoreTokens()) {
+                String rule = tokenizer.nextToken();
+                try {
+                    int equals = rule.lastIndexOf('=');
+                    int slash = rule.indexOf('/', equals);
+                    double rate = Double.parseDouble(rule.substring(equals + 1, slash));
+                    int burst = Integer.parseInt(rule.substring(slash + 1));
+                    limitList.add(new Limit(rate, burst, maxClients, stripes));
+                    prefixList.add(rule.substring(0, equals));
+                } catch (RuntimeException e) {
+                    log.warn(handlerName + " ignoring limit '" + rule + "'.  It must be prefix=rate/burst.");
+                }
+            }
+        }
+        prefixes = (String[]) prefixList.toArray(new String[prefixList.size()]);
+        prefixLimits = (Limit[]) limitList.toArray(new Limit[limitList.size()]);
+        return true;
+    }
+
+    protected boolean handleBody(HttpRequest request, HttpResponse response) throws IOException {
+        if (request.isInternal()) {
+            return false;
+        }
+        long wait = limitFor(request.getUrl()).acquire(request.getRemoteAddr());
+        if (wait == 0) {
+            return false;
+        }
+        if (log.isDebugEnabled()) {
+            log.debug(request.getRemoteAddr() + " is over the limit for " + request.getUrl());
+        }
+        response.setStatusCode(HTTP_TOO_MANY_REQUESTS);
+        response.addHeader("Retry-After", retryAfter(wait));
+        response.setMimeType("text/html");
+        response.sendResponse(new ByteArrayInputStream(TOO_MANY_REQUESTS_BODY), TOO_MANY_REQUESTS_BODY.length);
+        return true;
+    }
+
+    private Limit limitFor(String url) {
+        Limit limit = defaultLimit;
+        int longest = -1;
+        for (int i = 0; i < prefixes.length; i++) {
+            if (prefixes[i].length() > longest && url.startsWith(prefixes[i])) {
+                limit = prefixLimits[i];
+                longest = prefixes[i].length();
+            }
+        }
+        return limit;
+    }
+
+    private static String retryAfter(long nanos) {
+        long seconds = Math.max(1, nanos / 1000000000L + ((nanos % 1000000000L != 0) ? 1 : 0));
+        if (seconds < RETRY_AFTER.length) {
+            return RETRY_AFTER[(int) seconds];
+        }
+        return Long.toString(Math.min(seconds, MAX_RETRY_AFTER));
+    }
+
+    /**
+     * The buckets of one limit, striped by client address.
+     */
+    private static class Limit {
+        private final double tokensPerNano;
+        private final int burst;
+        private final Stripe[] stripes;
+
+        Limit(double ratePerSecond, int burst, int maxClients, int stripeCount) {
+            this.tokensPerNano = ratePerSecond / 1000000000.0;
+            this.burst = Math.max(1, burst);
+            int count = 1;
+            while (count < stripeCount) {
+                count <<= 1;
+            }
+            stripes = new Stripe[count];
+            for (int i = 0; i < count; i++) {
+                stripes[i] = new Stripe(Math.max(1, maxClients / count));
+            }
+        }
+
+        /**
+         * Takes a token from the client's bucket.
+         *
+         * @return 0 if the request is allowed, otherwise the nanoseconds until it would be.
+         */
+        long acquire(String client) {
+            int h = client.hashCode();
+            Stripe stripe = stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+            long now = System.nanoTime();
+            synchronized (stripe) {
+                Bucket bucket = (Bucket) stripe.buckets.get(client);
+                if (bucket == null) {
+                    bucket = new Bucket(burst, now);
+                    stripe.buckets.put(client, bucket);
+                } else {
+                    bucket.tokens = Math.min(burst, bucket.tokens + (now - bucket.lastRefill) * tokensPerNano);
+                    bucket.lastRefill = now;
+                }
+                if (bucket.tokens >= 1) {
+                    bucket.tokens -= 1;
+                    return 0;
+                }
+                return (tokensPerNano > 0) ? (long) Math.ceil((1 - bucket.tokens) / tokensPerNano) : Long.MAX_VALUE;
+            }
+        }
+    }
+
+    /**
+     * A map of client address to bucket that drops its least recently used client once it is full.
+     */
+    private static class Stripe {
+        private final int maxClients;
+        private final LinkedHashMap buckets = new LinkedHashMap(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry eldest) {
+                return size() > maxClients;
+            }
+        };
+
+        Stripe(int maxClients) {
+            this.maxClients = maxClients;
+        }
+    }
+
+    private static class Bucket {
+        double tokens;
+        long lastRefill;
+
+        Bucket(double tokens, long now) {
+            this.tokens = tokens;
+            this.lastRefill = now;
+        }
+    }
+}
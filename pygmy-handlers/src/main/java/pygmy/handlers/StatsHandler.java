@@ -1,82 +1,257 @@
 package pygmy.handlers;
 
+import lombok.extern.slf4j.Slf4j;
 import pygmy.core.*;
 
 import java.io.*;
-import java.util.HashMap;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Map;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * <p>
+ * This handler counts the requests made to each URL.  It never handles a request itself, so put it at the front of a
+ * chain.  Counting is done with lock free counters in memory.  A background thread writes a snapshot of the
+ * counters to the stats file every <i>interval</i> seconds, and once more on shutdown.  The snapshot is written to
+ * a temporary file first then renamed over the stats file, so readers never see a half written file.
+ * </p>
+ * <p>
+ * To keep memory bounded when clients request many distinct URLs, at most <i>max-urls</i> URLs are tracked.  Once
+ * the limit is reached requests for new URLs are counted under <i>(other)</i>.  If <i>view-url</i> is set, the
+ * current counters are served from memory at that URL as plain text, or as JSON when the query is
+ * <i>format=json</i>.
+ * </p>
+ *
+ * <table class="inner">
+ * <tr class="header"><td>Parameter Name</td><td>Explanation</td><td>Default Value</td><td>Required</td></tr>
+ * <tr class="row"><td>file</td><td>File name for the stats.</td><td>stats.log</td><td>No</td></tr>
+ * <tr class="altrow"><td>interval</td><td>Seconds between writes of the stats file.</td><td>60</td><td>No</td></tr>
+ * <tr class="row"><td>max-urls</td><td>Maximum number of distinct URLs tracked.</td><td>10000</td><td>No</td></tr>
+ * <tr class="altrow"><td>view-url</td><td>URL where the current stats are served from.</td><td>None</td><td>No</td></tr>
+ * </table>
+ */
+@Slf4j
 public class StatsHandler extends AbstractHandler {
 
     public static final ConfigOption FILE_OPTION = new ConfigOption( "file", "stats.log", "File name for the stats." );
+    public static final ConfigOption INTERVAL_OPTION = new ConfigOption( "interval", "60", "Seconds between writes of the stats file." );
+    public static final ConfigOption MAX_URLS_OPTION = new ConfigOption( "max-urls", "10000", "Maximum number of distinct URLs tracked." );
+    public static final ConfigOption VIEW_URL_OPTION = new ConfigOption( "view-url", false, "URL where the current stats are served from." );
+
+    public static final String OTHER_URLS = "(other)";
 
     private String filename;
-    private Map statsMap = Collections.synchronizedMap( new HashMap() );
+    private int maxUrls;
+    private String viewUrl;
+    private Map statsMap = new ConcurrentHashMap();
+    private AtomicBoolean dirty = new AtomicBoolean();
+    private ScheduledExecutorService flusher;
 
     public boolean initialize(String handlerName, Server server) {
         super.initialize(handlerName, server);
         filename = FILE_OPTION.getProperty( server, getName() );
+        viewUrl = VIEW_URL_OPTION.getProperty( server, getName() );
+        long interval = 60;
+        try {
+            interval = INTERVAL_OPTION.getInteger( server, getName() ).intValue();
+            maxUrls = MAX_URLS_OPTION.getInteger( server, getName() ).intValue();
+        } catch( NumberFormatException e ) {
+            log.warn( "interval or max-urls was not a number.  Using the defaults." );
+            maxUrls = 10000;
+        }
+        if( interval < 1 ) {
+            log.warn( "interval must be at least 1 second, was " + interval + ".  Using 1." );
+            interval = 1;
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor( new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread( r, getName() + " StatsHandler flusher" );
+                thread.setDaemon( true );
+                return thread;
+            }
+        });
+        flusher.scheduleWithFixedDelay( new Runnable() {
+            public void run() {
+                flushIfDirty();
+            }
+        }, interval, interval, TimeUnit.SECONDS );
         return true;
     }
 
     protected boolean handleBody(HttpRequest request, HttpResponse response) throws IOException {
-        UrlStatistics stats = (UrlStatistics)statsMap.get( request.getUrl() );
+        String url = request.getUrl();
+        if( viewUrl != null && viewUrl.equals( url ) ) {
+            sendStatistics( request, response );
+            return true;
+        }
+        UrlStatistics stats = (UrlStatistics) statsMap.get( url );
         if( stats == null ) {
-            stats = new UrlStatistics( System.currentTimeMillis() );
-            statsMap.put( request.getUrl(), stats );
-        } else {
-            stats.lastTime = System.currentTimeMillis();
+            stats = createStatistics( statsMap.size() < maxUrls ? url : OTHER_URLS );
         }
-        stats.increment();
-        saveStatistics();
+        stats.increment( System.currentTimeMillis() );
+        dirty.set( true );
         return false;
     }
 
-    private void saveStatistics() throws IOException {
-        Writer file = new BufferedWriter( new FileWriter(filename) );
-        try {
-            for( Iterator i = statsMap.keySet().iterator(); i.hasNext(); ) {
-                String url = (String) i.next();
-                UrlStatistics stats = (UrlStatistics) statsMap.get(url);
-                synchronized( stats ) {
-                    file.write( url + " " + stats.count() + " " + stats.getFirstTime() + " " + stats.getLastTime() + "\n" );
+    private UrlStatistics createStatistics(String url) {
+        UrlStatistics stats = (UrlStatistics) statsMap.get( url );
+        if( stats == null ) {
+            UrlStatistics created = new UrlStatistics( System.currentTimeMillis() );
+            stats = (UrlStatistics) ((ConcurrentHashMap) statsMap).putIfAbsent( url, created );
+            if( stats == null ) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Returns a copy of the current counters ordered from the most requested URL to the least.
+     *
+     * @return a list of Map.Entry of URL to {@link UrlStatistics}.
+     */
+    public List snapshot() {
+        List entries = new ArrayList( statsMap.entrySet() );
+        Collections.sort( entries, new Comparator() {
+            public int compare(Object o1, Object o2) {
+                long c1 = ((UrlStatistics) ((Map.Entry) o1).getValue()).count();
+                long c2 = ((UrlStatistics) ((Map.Entry) o2).getValue()).count();
+                return c1 < c2 ? 1 : ( c1 == c2 ? 0 : -1 );
+            }
+        });
+        return entries;
+    }
+
+    private void sendStatistics(HttpRequest request, HttpResponse response) throws IOException {
+        boolean json = "format=json".equals( request.getQuery() );
+        response.setMimeType( json ? "application/json" : "text/plain" );
+        PrintWriter out = response.getPrintWriter();
+        List entries = snapshot();
+        if( json ) {
+            out.write( "[" );
+            for( Iterator i = entries.iterator(); i.hasNext(); ) {
+                Map.Entry entry = (Map.Entry) i.next();
+                UrlStatistics stats = (UrlStatistics) entry.getValue();
+                out.write( "{\"url\":\"" + escapeJson( (String) entry.getKey() ) + "\",\"count\":" + stats.count()
+                        + ",\"first\":" + stats.getFirstTime() + ",\"last\":" + stats.getLastTime() + "}" );
+                if( i.hasNext() ) {
+                    out.write( "," );
                 }
             }
+            out.write( "]" );
+        } else {
+            writeStatistics( out, entries );
+        }
+    }
+
+    private void writeStatistics(Writer out, List entries) throws IOException {
+        for( Iterator i = entries.iterator(); i.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) i.next();
+            UrlStatistics stats = (UrlStatistics) entry.getValue();
+            out.write( entry.getKey() + " " + stats.count() + " " + stats.getFirstTime() + " " + stats.getLastTime() + "\n" );
+        }
+    }
+
+    private static String escapeJson(String value) {
+        StringBuffer buffer = new StringBuffer( value.length() );
+        for( int i = 0; i < value.length(); i++ ) {
+            char c = value.charAt( i );
+            if( c == '"' || c == '\\' ) {
+                buffer.append( '\\' ).append( c );
+            } else if( c < 0x20 ) {
+                buffer.append( "\\u00" ).append( Character.forDigit( c >> 4, 16 ) ).append( Character.forDigit( c & 0xF, 16 ) );
+            } else {
+                buffer.append( c );
+            }
+        }
+        return buffer.toString();
+    }
+
+    private void flushIfDirty() {
+        if( dirty.getAndSet( false ) ) {
+            try {
+                saveStatistics();
+            } catch( IOException e ) {
+                log.warn( "Could not write stats to " + filename + ": " + e.getMessage() );
+                dirty.set( true );
+            }
+        }
+    }
+
+    private void saveStatistics() throws IOException {
+        File file = new File( filename ).getAbsoluteFile();
+        File temp = new File( file.getParentFile(), file.getName() + ".tmp" );
+        Writer out = new BufferedWriter( new FileWriter( temp ) );
+        try {
+            writeStatistics( out, snapshot() );
         } finally {
-            file.close();
+            out.close();
+        }
+        try {
+            Files.move( temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+        } catch( IOException e ) {
+            Files.move( temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
         }
     }
 
+    public boolean shutdown(Server server) {
+        if( flusher != null ) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination( 5, TimeUnit.SECONDS );
+            } catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flushIfDirty();
+        return true;
+    }
+
     public static class UrlStatistics {
-        private long lastTime;
-        private int count;
-        private long firstTime;
+        private volatile long lastTime;
+        private final LongAdder count = new LongAdder();
+        private final long firstTime;
 
         public UrlStatistics(long currentTime) {
             this.firstTime = currentTime;
             this.lastTime = currentTime;
         }
 
-        public synchronized void lastTime( long currentTime ) {
+        public void lastTime( long currentTime ) {
             lastTime = currentTime;
         }
 
-        public synchronized void increment() {
-            count++;
+        public void increment() {
+            count.increment();
+        }
+
+        public void increment( long currentTime ) {
+            count.increment();
+            lastTime = currentTime;
         }
 
-        public synchronized long getFirstTime() {
+        public long getFirstTime() {
             return firstTime;
         }
 
-        public synchronized long getLastTime() {
+        public long getLastTime() {
             return lastTime;
         }
 
-        public synchronized int count() {
-            return count;
+        public long count() {
+            return count.sum();
         }
     }
 }
@@ -0,0 +1,284 @@
+package pygmy.handlers;
+
+import lombok.extern.slf4j.Slf4j;
+import pygmy.core.*;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ * Serves several web sites from one server by the name the client asked for in the Host header.  The <i>hosts</i>
+ * parameter lists the names of the handlers, one for each site, and each of them lists the host names it answers to
+ * in its own <i>host-names</i> parameter.  A site's handler is usually a {@link DefaultChainHandler} with the site's
+ * own FileHandler, {@link CachingHandler} and so on, so every site has its own configuration, caches, and
+ * {@link ServerMetrics.HandlerMetrics} under its handler name.  A site can keep the configuration of its handlers in a
+ * file of its own named by its <i>config</i> parameter, which is added to the server's configuration before the site
+ * is started.  Only keys that start with the name of one of the site's handlers are taken from it, that is the
+ * site's name or a name in the <i>chain</i> of one of them, and keys the server already has are never replaced, so
+ * one site's file can't change the configuration of the server or of another site.  Each key that is left out is
+ * logged.
+ * </p>
+ * <p>
+ * A host name is matched in this order:
+ * </p>
+ * <ul>
+ * <li>an exact name with the port, like <i>example.com:8080</i>.</li>
+ * <li>an exact name for any port, like <i>example.com</i>.</li>
+ * <li>a wildcard, like <i>*.example.com</i>, which matches every name ending in .example.com.  Longer suffixes are
+ * tried first, and each suffix is tried with the port before without it.</li>
+ * <li>the site named by <i>default</i>.  Requests without a Host header go there too.</li>
+ * </ul>
+ * <p>
+ * Names are compared in lower case, without a trailing dot, and a missing port is taken to be the default port of
+ * the request's scheme.  The site found for a Host header is remembered, so after the first request for a name
+ * dispatching is a single hash lookup on the header as the client sent it.  Requests that match no site and have no
+ * default are passed on to the next handler.
+ * </p>
+ *
+ * <table class="inner">
+ * <tr class="header"><td>Parameter Name</td><td>Explanation</td><td>Default Value</td><td>Required</td></tr>
+ * <tr class="row"><td>url-prefix</td><td>The prefix to filter request urls.</td><td>/</td><td>No</td></tr>
+ * <tr class="altrow"><td>hosts</td><td>A space or comma seperated list of the names of the handlers of the sites.</td><td>None</td><td>Yes</td></tr>
+ * <tr class="row"><td>default</td><td>The name of the handler for requests that match no site.  It doesn't have to be in hosts.</td><td>None</td><td>No</td></tr>
+ * <tr class="altrow"><td><i>site</i>.host-names</td><td>A space or comma seperated list of the host names of a site.</td><td>None</td><td>Yes</td></tr>
+ * <tr class="row"><td><i>site</i>.config</td><td>A properties file with the configuration of the site's handlers.</td><td>None</td><td>No</td></tr>
+ * <tr class="altrow"><td><i>site</i>.class</td><td>The class of the site's handler.</td><td>None</td><td>Yes</td></tr>
+ * </table>
+ */
+@Slf4j
+public class VirtualHostHandler extends AbstractHandler implements Handler {
+
+    public static final ConfigOption HOSTS_OPTION = new ConfigOption("hosts", true, "A list of the names of the handlers of the sites.");
+    public static final ConfigOption DEFAULT_OPTION = new ConfigOption("default", false, "The handler for requests that match no site.");
+    public static final ConfigOption HOST_NAMES_OPTION = new ConfigOption("host-names", true, "A list of the host names of a site.");
+    public static final ConfigOption CONFIG_OPTION = new ConfigOption("config", false, "A file with the configuration of the site's handlers.");
+
+    /**
+     * The most distinct Host headers remembered, so clients making up names can't grow the memory without bound.
+     */
+    private static final int MAX_REMEMBERED = 4096;
+    private static final Site NO_SITE = new Site(null, null, null);
+
+    private final List sites = new ArrayList();
+    private final Map names = new HashMap();
+    private final ConcurrentHashMap remembered = new ConcurrentHashMap();
+    private Site defaultSite = NO_SITE;
+
+    public boolean initialize(String handlerName, Server server) {
+        super.initialize(handlerName, server);
+        StringTokenizer tokenizer = new StringTokenizer(HOSTS_OPTION.getProperty(server, handlerName), " ,");
+        while (tokenizer.hasMoreTokens()) {
+            String siteName = tokenizer.nextToken();
+            Site site = createSite(siteName);
+            if (site == null) {
+                continue;
+            }
+            StringTokenizer hostNames = new StringTokenizer(HOST_NAMES_OPTION.getProperty(server, siteName), " ,");
+            while (hostNames.hasMoreTokens()) {
+                String name = normalize(hostNames.nextToken(), null);
+                Site previous = (Site) names.put(name, site);
+                if (previous != null && previous != site) {
+                    log.warn(handlerName + " " + name + " is a host name of both " + previous.name + " and " + siteName + ", using " + siteName);
+                }
+            }
+        }
+        String defaultName = DEFAULT_OPTION.getProperty(server, handlerName);
+        if (defaultName != null) {
+            for (int i = 0; i < sites.size() && defaultSite == NO_SITE; i++) {
+                if (((Site) sites.get(i)).name.equals(defaultName)) {
+                    defaultSite = (Site) sites.get(i);
+                }
+            }
+            if (defaultSite == NO_SITE) {
+                Site site = createSite(defaultName);
+                defaultSite = (site != null) ? site : NO_SITE;
+            }
+        }
+        return true;
+    }
+
+    private Site createSite(String siteName) {
+        String configFile = CONFIG_OPTION.getProperty(server, siteName);
+        if (configFile != null && !loadConfig(siteName, configFile)) {
+            return null;
+        }
+        try {
+            Handler handler = (Handler) server.constructPygmyObject(siteName);
+            if (handler != null && handler.initialize(siteName, server)) {
+                Site site = new Site(siteName, handler, server.getMetrics().getHandlerMetrics(siteName));
+                sites.add(site);
+                return site;
+            }
+            log.error(siteName + " was not initialized");
+        } catch (ClassCastException e) {
+            log.error(siteName + " class does not implement the Handler interface.", e);
+        }
+        return null;
+    }
+
+    private boolean loadConfig(String siteName, String configFile) {
+        Properties config = new Properties();
+        InputStream is = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(configFile));
+            config.load(is);
+        } catch (IOException e) {
+            log.error(siteName + " could not read its config " + configFile + ": " + e.getMessage());
+            return false;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+        Set handlerNames = handlerNames(siteName, config);
+        for (Iterator i = config.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry entry = (Map.Entry) i.next();
+            String key = (String) entry.getKey();
+            int dot = key.indexOf('.');
+            if (dot < 0 || !handlerNames.contains(key.substring(0, dot))) {
+                log.warn(siteName + " ignoring " + key + " in " + configFile + ", it is not a key of one of the site's handlers.");
+            } else if (server.hasProperty(key)) {
+                if (!entry.getValue().equals(server.getConfig().get(key))) {
+                    log.warn(siteName + " ignoring " + key + " in " + configFile + ", the server already has it.");
+                }
+            } else {
+                server.putProperty(key, entry.getValue());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the names of the site's handlers, the site's own name and every name in the chain of one of them, looking
+     * in the site's configuration before the server's.
+     */
+    private Set handlerNames(String siteName, Properties config) {
+        Set found = new HashSet();
+        LinkedList pending = new LinkedList();
+        pending.add(siteName);
+        while (!pending.isEmpty()) {
+            String name = (String) pending.removeFirst();
+            if (!found.add(name)) {
+                continue;
+            }
+            String chain = config.getProperty(name + DefaultChainHandler.CHAIN, server.getProperty(name + DefaultChainHandler.CHAIN));
+            if (chain != null) {
+                StringTokenizer tokenizer = new StringTokenizer(chain, " ,");
+                while (tokenizer.hasMoreTokens()) {
+                    pending.add(tokenizer.nextToken());
+                }
+            }
+        }
+        return found;
+    }
+
+    protected boolean handleBody(HttpRequest request, HttpResponse response) throws IOException {
+        Site site = findSite(request);
+        if (site == NO_SITE) {
+            return false;
+        }
+        return site.metrics.handle(site.handler, request, response);
+    }
+
+    private Site findSite(HttpRequest request) {
+        String host = request.getRequestHeader("Host");
+        if (host == null) {
+            return defaultSite;
+        }
+        // remembered per scheme since a missing port means a different port for each.
+        String key = request.getScheme() + " " + host;
+        Site site = (Site) remembered.get(key);
+        if (site == null) {
+            site = lookup(normalize(host, request.getScheme()));
+            if (remembered.size() < MAX_REMEMBERED) {
+                remembered.put(key, site);
+            }
+        }
+        return site;
+    }
+
+    /**
+     * Finds the site of a normalized host name with its port.
+     */
+    private Site lookup(String hostAndPort) {
+        int colon = portIndex(hostAndPort);
+        String host = (colon >= 0) ? hostAndPort.substring(0, colon) : hostAndPort;
+        String port = (colon >= 0) ? hostAndPort.substring(colon) : "";
+        Site site = (Site) names.get(hostAndPort);
+        if (site == null) {
+            site = (Site) names.get(host);
+        }
+        for (int dot = host.indexOf('.'); site == null && dot >= 0; dot = host.indexOf('.', dot + 1)) {
+            String wildcard = "*" + host.substring(dot);
+            site = (Site) names.get(wildcard + port);
+            if (site == null) {
+                site = (Site) names.get(wildcard);
+            }
+        }
+        return (site != null) ? site : defaultSite;
+    }
+
+    /**
+     * Lower cases the name and drops a trailing dot.  With a scheme a missing port is filled in with the scheme's
+     * default port, which is how names from requests are compared to configured names.
+     */
+    private static String normalize(String name, String scheme) {
+        name = name.trim().toLowerCase();
+        int colon = portIndex(name);
+        String host = (colon >= 0) ? name.substring(0, colon) : name;
+        String port = (colon >= 0) ? name.substring(colon + 1) : null;
+        if (host.endsWith(".")) {
+            host = host.substring(0, host.length() - 1);
+        }
+        if (port == null && scheme != null) {
+            port = "https".equalsIgnoreCase(scheme) ? "443" : "80";
+        }
+        return (port != null) ? host + ":" + port : host;
+    }
+
+    /**
+     * @return the index of the colon before the port, or -1 if there is no port.  IPv6 addresses are in brackets.
+     */
+    private static int portIndex(String name) {
+        int colon = name.lastIndexOf(':');
+        return (colon > name.lastIndexOf(']')) ? colon : -1;
+    }
+
+    public boolean shutdown(Server server) {
+        boolean success = true;
+        for (int i = 0; i < sites.size(); i++) {
+            boolean siteSuccess = ((Site) sites.get(i)).handler.shutdown(server);
+            success = success && siteSuccess;
+        }
+        return success;
+    }
+
+    private static class Site {
+        final String name;
+        final Handler handler;
+        final ServerMetrics.HandlerMetrics metrics;
+
+        Site(String name, Handler handler, ServerMetrics.HandlerMetrics metrics) {
+            this.name = name;
+            this.handler = handler;
+            this.metrics = metrics;
+        }
+    }
+}
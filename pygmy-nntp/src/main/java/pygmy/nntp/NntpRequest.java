@@ -12,6 +12,8 @@ public class NntpRequest extends Request {
     NntpInputStream stream;
     String command;
     String[] parameters;
+    String currentNewsgroup;
+    String currentArticle;
 
     public NntpRequest( Socket connection, Properties serverConfig, InputStream stream ) throws IOException {
         super(connection, serverConfig );
@@ -52,23 +54,21 @@ public class NntpRequest extends Request {
     }
 
     public String getCurrentNewsgroup() throws NoCurrentNewsgroupException {
-        String group = getProperty("newsgroup",null);
-        if( group == null ) throw new NoCurrentNewsgroupException();
-        return group;
+        if( currentNewsgroup == null ) throw new NoCurrentNewsgroupException();
+        return currentNewsgroup;
     }
 
     public String getCurrentArticle() throws NoCurrentArticleException {
-        String group = getProperty("currentArticle",null);
-        if( group == null ) throw new NoCurrentArticleException();
-        return group;
+        if( currentArticle == null ) throw new NoCurrentArticleException();
+        return currentArticle;
     }
 
     public void setCurrentNewsgroup( String newsgroup ) {
-        putProperty("newsgroup", newsgroup);
+        this.currentNewsgroup = newsgroup;
     }
 
     public void setCurrentArticle( String articlePointer ) {
-        putProperty( "currentArticle", articlePointer );
+        this.currentArticle = articlePointer;
     }
 
     public int parameterLength() {